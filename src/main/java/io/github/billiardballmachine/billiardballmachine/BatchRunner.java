@@ -0,0 +1,258 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Runs many {@code .bbm} files without the UI, each for a number of steps or until it stops, and reports on each.
+ * <p>
+ * A report row holds the final state hash, ball count, speed and anything unexpected, such as objects the placement
+ * rules rejected on loading, balls going missing, or a final state that differs from the file's golden one. Golden
+ * files are the expected final configurations, kept as {@code <name>.bbm} in a directory of their own.
+ */
+public final class BatchRunner {
+
+    public enum StopCondition {
+        /** Run every file for the full number of steps. */
+        NONE,
+        /**
+         * Stop once every ball has left the bounding box of the objects loaded. Balls are never lost, so this is how a
+         * circuit whose outputs run off into empty space finishes.
+         */
+        ESCAPED,
+        /** Stop once the machine returns to a state it was in before. */
+        CYCLE
+    }
+
+    /**
+     * @param golden the directory of golden files, or null to compare with none
+     * @param updateGolden whether to write each file's final state as its golden file instead of comparing with it
+     */
+    public record Options(long steps, int concurrency, StopCondition stopCondition, Path golden, boolean updateGolden) {
+        public Options {
+            if (steps < 0 || concurrency <= 0) {
+                throw new IllegalArgumentException("Steps must not be negative and concurrency must be positive: " + steps + ", " + concurrency);
+            }
+            if (updateGolden && golden == null) {
+                throw new IllegalArgumentException("Updating golden files needs a golden directory");
+            }
+        }
+    }
+
+    /**
+     * @param goldenMatch whether the final state matched the golden file, or null if there was none to compare with
+     * @param anomalies descriptions of anything unexpected, empty if nothing was
+     */
+    public record Result(String file, long steps, long stateHash, long ballCount, double stepsPerSecond,
+                         long wallClockNanos, Boolean goldenMatch, List<String> anomalies) {}
+
+    private final Options options;
+
+    public BatchRunner(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * @param pattern a directory, whose {@code .bbm} files are run, or a glob such as {@code examples/fredkin_*.bbm}
+     * @return the matching files, in name order
+     */
+    public static List<Path> findFiles(String pattern) throws IOException {
+        var path = Path.of(pattern);
+        Path directory;
+        String glob;
+        if (Files.isDirectory(path)) {
+            directory = path;
+            glob = "*.bbm";
+        } else {
+            directory = path.getParent() == null ? Path.of(".") : path.getParent();
+            glob = path.getFileName().toString();
+        }
+        var matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> Files.isRegularFile(f) && matcher.matches(f.getFileName())).sorted().toList();
+        }
+    }
+
+    /**
+     * Runs the files, at most {@link Options#concurrency()} at a time.
+     * @return a result for each file, in the same order
+     */
+    public List<Result> run(List<Path> files) throws InterruptedException {
+        var executor = Executors.newFixedThreadPool(options.concurrency());
+        try {
+            var futures = new ArrayList<Future<Result>>();
+            for (Path file : files) {
+                futures.add(executor.submit(() -> runFile(file)));
+            }
+            var results = new ArrayList<Result>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new Result(files.get(i).toString(), 0, 0, 0, 0, 0, null, List.of("Failed: " + e.getCause())));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    Result runFile(Path file) throws IOException {
+        var anomalies = new ArrayList<String>();
+        var configuration = Files.readAllLines(file).stream().filter(line -> !line.isBlank()).toList();
+        var start = System.nanoTime();
+        var machine = Machine.emptyMachine();
+        machine.loadFromConfiguration(configuration);
+        var initialBalls = countBalls(machine);
+        var loaded = initialBalls + countWalls(machine);
+        if (loaded != configuration.size()) {
+            anomalies.add((configuration.size() - loaded) + " objects rejected on loading");
+        }
+
+        var seen = options.stopCondition() == StopCondition.CYCLE ? new HashSet<Long>() : null;
+        var loadedBounds = options.stopCondition() == StopCondition.ESCAPED ? machine.bounds() : null;
+        long step = 0;
+        while (step < options.steps()) {
+            if (options.stopCondition() == StopCondition.ESCAPED && !anyBallWithin(machine, loadedBounds)) {
+                break;
+            }
+            if (seen != null && !seen.add(machine.stateHash())) {
+                break;
+            }
+            machine.update();
+            step++;
+        }
+        var wallClockNanos = System.nanoTime() - start;
+
+        var ballCount = countBalls(machine);
+        if (ballCount != initialBalls) {
+            anomalies.add("Ball count changed from " + initialBalls + " to " + ballCount);
+        }
+        var finalConfiguration = machine.getConfigurationAsStrings();
+        var stateHash = machine.stateHash();
+        Boolean goldenMatch = null;
+        if (options.golden() != null) {
+            var goldenFile = options.golden().resolve(file.getFileName());
+            if (options.updateGolden()) {
+                Files.createDirectories(options.golden());
+                Files.write(goldenFile, finalConfiguration.stream().sorted().toList());
+            } else if (Files.exists(goldenFile)) {
+                var golden = Files.readAllLines(goldenFile).stream().filter(line -> !line.isBlank()).toList();
+                goldenMatch = StateHash.ofConfiguration(golden) == stateHash;
+                if (!goldenMatch) {
+                    anomalies.add("Final state differs from golden file " + goldenFile);
+                }
+            } else {
+                anomalies.add("No golden file " + goldenFile);
+            }
+        }
+        var stepsPerSecond = wallClockNanos == 0 ? 0 : step * 1e9 / wallClockNanos;
+        return new Result(file.toString(), step, stateHash, ballCount, stepsPerSecond, wallClockNanos, goldenMatch, anomalies);
+    }
+
+    private static long countBalls(Machine machine) {
+        var count = new long[1];
+        machine.forEachBall((p, ball) -> count[0]++);
+        return count[0];
+    }
+
+    private static boolean anyBallWithin(Machine machine, Partition.Region bounds) {
+        if (bounds == null) {
+            return false;
+        }
+        var within = new boolean[1];
+        machine.forEachBall((p, ball) -> within[0] |= bounds.contains(p));
+        return within[0];
+    }
+
+    private static long countWalls(Machine machine) {
+        var count = new long[1];
+        machine.forEachWall((p, wall) -> count[0]++);
+        return count[0];
+    }
+
+    public static String toJson(List<Result> results) {
+        var json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            var r = results.get(i);
+            json.append(String.format(Locale.ROOT,
+                    "  {\"file\": %s, \"steps\": %d, \"stateHash\": \"%016x\", \"ballCount\": %d, \"stepsPerSecond\": %.1f, "
+                            + "\"wallClockNanos\": %d, \"goldenMatch\": %s, \"anomalies\": [",
+                    jsonString(r.file()), r.steps(), r.stateHash(), r.ballCount(), r.stepsPerSecond(), r.wallClockNanos(), r.goldenMatch()));
+            for (int a = 0; a < r.anomalies().size(); a++) {
+                json.append(a == 0 ? "" : ", ").append(jsonString(r.anomalies().get(a)));
+            }
+            json.append(i == results.size() - 1 ? "]}\n" : "]},\n");
+        }
+        return json.append("]\n").toString();
+    }
+
+    private static String jsonString(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    public static List<String> toCsv(List<Result> results) {
+        var csv = new ArrayList<String>();
+        csv.add("file,steps,stateHash,ballCount,stepsPerSecond,wallClockNanos,goldenMatch,anomalies");
+        for (Result r : results) {
+            csv.add(String.format(Locale.ROOT, "%s,%d,%016x,%d,%.1f,%d,%s,%s",
+                    csvField(r.file()), r.steps(), r.stateHash(), r.ballCount(), r.stepsPerSecond(), r.wallClockNanos(),
+                    r.goldenMatch() == null ? "" : r.goldenMatch(), csvField(String.join("; ", r.anomalies()))));
+        }
+        return csv;
+    }
+
+    private static String csvField(String s) {
+        return s.contains(",") || s.contains("\"") ? "\"" + s.replace("\"", "\"\"") + "\"" : s;
+    }
+
+    /**
+     * Usage: {@code BatchRunner <directory or glob> <report directory> [--steps n] [--threads n]
+     * [--stop none|escaped|cycle] [--golden directory] [--update-golden]}
+     * <p>
+     * Writes {@code report.json} and {@code report.csv} to the report directory, and exits with status 1 if any file
+     * had an anomaly.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: BatchRunner <directory or glob> <report directory> [--steps n] [--threads n] "
+                    + "[--stop none|escaped|cycle] [--golden directory] [--update-golden]");
+            System.exit(2);
+        }
+        long steps = 1000;
+        var threads = Runtime.getRuntime().availableProcessors();
+        var stop = StopCondition.NONE;
+        Path golden = null;
+        var updateGolden = false;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--steps" -> steps = Long.parseLong(args[++i]);
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--stop" -> stop = StopCondition.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                case "--golden" -> golden = Path.of(args[++i]);
+                case "--update-golden" -> updateGolden = true;
+                default -> throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+        }
+        var runner = new BatchRunner(new Options(steps, threads, stop, golden, updateGolden));
+        var results = runner.run(findFiles(args[0]));
+        var reportDirectory = Path.of(args[1]);
+        Files.createDirectories(reportDirectory);
+        Files.writeString(reportDirectory.resolve("report.json"), toJson(results));
+        Files.write(reportDirectory.resolve("report.csv"), toCsv(results));
+        var anomalous = results.stream().filter(r -> !r.anomalies().isEmpty()).count();
+        System.out.println(results.size() + " files run, " + anomalous + " with anomalies");
+        System.exit(anomalous == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,25 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.Objects;
+
+/**
+ * The contents of one grid position before and after an edit. {@code null} means nothing was there.
+ */
+record CellChange(Machine.Position position, Ball ballBefore, Ball ballAfter, DiagonalWall wallBefore, DiagonalWall wallAfter) {
+
+    boolean isEmpty() {
+        return Objects.equals(ballBefore, ballAfter) && wallBefore == wallAfter;
+    }
+
+    CellChange followedBy(CellChange next) {
+        return new CellChange(position, ballBefore, next.ballAfter, wallBefore, next.wallAfter);
+    }
+
+    CellChange inverse() {
+        return new CellChange(position, ballAfter, ballBefore, wallAfter, wallBefore);
+    }
+
+    void apply(Machine machine) {
+        machine.restoreCell(position, ballAfter, wallAfter);
+    }
+}
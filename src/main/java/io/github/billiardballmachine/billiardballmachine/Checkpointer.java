@@ -0,0 +1,183 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes checkpoints of a long run to a file every so many steps, so that the run can be resumed after a crash.
+ * <p>
+ * A checkpoint is taken from a {@link Machine#snapshot()}, which costs one pass over the balls, and written on a background
+ * thread, so stepping carries on meanwhile. It is written to a temporary file beside the checkpoint file, forced to
+ * disk and then moved over the checkpoint file, so the file always holds one complete checkpoint. If the previous
+ * checkpoint is still being written when the next is due, the writer skips to the newest.
+ * <p>
+ * A checkpoint holds the step number and every ball and wall. A {@link Machine} has no other state that affects its
+ * steps, so {@link #resume} continues exactly as the original run would have.
+ */
+public final class Checkpointer implements AutoCloseable {
+
+    private static final String HEADER = "bbm-checkpoint 1";
+
+    public record Checkpoint(long step, Machine machine) {}
+
+    private record Pending(long step, MachineState state) {}
+
+    private final Path file;
+    private final long interval;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "checkpoint-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicReference<Pending> pending = new AtomicReference<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * @param interval the number of steps between checkpoints
+     */
+    public Checkpointer(Path file, long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive: " + interval);
+        }
+        this.file = file;
+        this.interval = interval;
+    }
+
+    /**
+     * Call after each step; takes a checkpoint when one is due.
+     * @param step the number of steps the machine has taken in total, including those before any resume
+     */
+    public void stepped(Machine machine, long step) throws IOException {
+        if (step % interval == 0) {
+            checkpoint(machine, step);
+        }
+    }
+
+    /**
+     * Takes a checkpoint now, to be written in the background.
+     * @throws IOException if an earlier checkpoint failed to be written
+     */
+    public void checkpoint(Machine machine, long step) throws IOException {
+        throwIfFailed();
+        if (pending.getAndSet(new Pending(step, machine.snapshot())) != null) {
+            skipped.increment();
+        }
+        if (writing.compareAndSet(false, true)) {
+            writer.execute(this::writePending);
+        }
+    }
+
+    private void writePending() {
+        while (true) {
+            Pending next;
+            while ((next = pending.getAndSet(null)) != null) {
+                try {
+                    write(next);
+                    written.increment();
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+            writing.set(false);
+            // A checkpoint taken after the loop emptied the slot but before the flag was cleared found the writer busy.
+            if (pending.get() == null || !writing.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void write(Pending checkpoint) throws IOException {
+        var temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+            out.write(HEADER + "\n");
+            out.write("step " + checkpoint.step() + "\n");
+            out.write("hash " + Long.toHexString(checkpoint.state().stateHash()) + "\n");
+            for (String line : checkpoint.state().getConfigurationAsStrings()) {
+                out.write(line);
+                out.write('\n');
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the checkpoint in a file, restoring its machine as it was, even where stepping had brought balls closer
+     * together than the placement rules allow.
+     * @throws IOException if the file is not a complete checkpoint
+     */
+    public static Checkpoint resume(Path file) throws IOException {
+        var lines = Files.readAllLines(file);
+        if (lines.size() < 3 || !lines.get(0).equals(HEADER) || !lines.get(1).startsWith("step ") || !lines.get(2).startsWith("hash ")) {
+            throw new IOException("Not a checkpoint: " + file);
+        }
+        long step;
+        long hash;
+        var machine = Machine.emptyMachine();
+        try {
+            step = Long.parseLong(lines.get(1).substring("step ".length()));
+            hash = Long.parseUnsignedLong(lines.get(2).substring("hash ".length()), 16);
+            machine.restoreFromConfiguration(lines.subList(3, lines.size()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Not a checkpoint: " + file, e);
+        }
+        if (machine.stateHash() != hash) {
+            throw new IOException("Checkpoint does not match its hash: " + file);
+        }
+        return new Checkpoint(step, machine);
+    }
+
+    private void throwIfFailed() throws IOException {
+        var e = failure.get();
+        if (e != null) {
+            throw new IOException("Writing checkpoint " + file + " failed", e);
+        }
+    }
+
+    public long getCheckpointsWritten() {
+        return written.sum();
+    }
+
+    /**
+     * @return the checkpoints that were replaced by a newer one before the writer got to them
+     */
+    public long getCheckpointsSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * Waits for the last checkpoint taken to be written.
+     * @throws IOException if any checkpoint failed to be written
+     */
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing checkpoint " + file, e);
+        }
+        throwIfFailed();
+    }
+}
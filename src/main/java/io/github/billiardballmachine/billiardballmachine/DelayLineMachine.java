@@ -0,0 +1,476 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+
+/**
+ * An engine that keeps the balls on long straight wires and in closed mirror loops as queues instead of stepping them.
+ * <p>
+ * A wire is a straight run of cells with no wall within a cell of it, so a ball going along it carries straight on
+ * unless another ball comes within two cells. Its balls are kept as the steps at which they were at its first cell,
+ * so a ball costs nothing per step while on it, only when it joins and leaves. A loop is a closed path that the balls
+ * on it when the machine is loaded keep going round by themselves; its balls are kept as their places on the path.
+ * <p>
+ * Any other ball that comes within two cells of a wire or loop expands it: its balls are put back into the machine
+ * where they are, and stepped as usual from then on. Balls on a wire's line going the same way are the exception,
+ * since they can never meet the wire's balls. Wires are found as balls come onto them; loops only when a machine is loaded.
+ */
+public final class DelayLineMachine implements MachineEngine {
+
+    static final int MIN_WIRE_LENGTH = 16;
+    static final int MAX_WIRE_LENGTH = 4096;
+    static final int MAX_LOOP_LENGTH = 1024;
+    // How close two balls have to be to affect each other's next step.
+    private static final int REACH = 2;
+    private static final int BUCKET_SHIFT = 6;
+
+    private Machine machine = Machine.emptyMachine();
+    private long steps;
+    private long expansions;
+    private final Map<Integer, TreeSet<Integer>> wallsByRow = new HashMap<>();
+    private final Map<Integer, TreeSet<Integer>> wallsByColumn = new HashMap<>();
+    private final Map<Long, List<Line>> buckets = new HashMap<>();
+    private final Set<Wire> wires = new LinkedHashSet<>();
+    private final Set<Loop> loops = new LinkedHashSet<>();
+
+    /**
+     * A wire or loop, with the cells within {@link #REACH} of its path as its zone.
+     */
+    private abstract static class Line {
+        int minX;
+        int minY;
+        int maxX;
+        int maxY;
+
+        abstract boolean zoneContains(Machine.Position p);
+
+        abstract void forEachBall(long step, BiConsumer<Machine.Position, Ball> action);
+
+        abstract int ballCount();
+
+        boolean zonesOverlap(Line other) {
+            return minX <= other.maxX && other.minX <= maxX && minY <= other.maxY && other.minY <= maxY;
+        }
+    }
+
+    private static final class Wire extends Line {
+        final Machine.Position start;
+        final CardinalDirection direction;
+        final int length;
+        /** The steps at which the wire's balls were at its start, so the oldest is furthest along. */
+        final TreeSet<Long> entries = new TreeSet<>();
+
+        Wire(Machine.Position start, CardinalDirection direction, int length) {
+            this.start = start;
+            this.direction = direction;
+            this.length = length;
+            var end = start.inDirection(direction, length);
+            minX = Math.min(start.x(), end.x()) - REACH;
+            minY = Math.min(start.y(), end.y()) - REACH;
+            maxX = Math.max(start.x(), end.x()) + REACH;
+            maxY = Math.max(start.y(), end.y()) + REACH;
+        }
+
+        /**
+         * @return how far along the wire's line a position is, negative if behind its start, or null if off the line
+         */
+        Long indexOf(Machine.Position p) {
+            if (direction.isHorizontal() ? p.y() != start.y() : p.x() != start.x()) {
+                return null;
+            }
+            return (long) (p.x() - start.x()) * direction.horizontalCoefficient()
+                    + (long) (p.y() - start.y()) * direction.verticalCoefficient();
+        }
+
+        @Override
+        boolean zoneContains(Machine.Position p) {
+            return minX <= p.x() && p.x() <= maxX && minY <= p.y() && p.y() <= maxY;
+        }
+
+        @Override
+        void forEachBall(long step, BiConsumer<Machine.Position, Ball> action) {
+            for (long entry : entries) {
+                action.accept(start.inDirection(direction, (int) (step - entry)), new Ball(direction));
+            }
+        }
+
+        @Override
+        int ballCount() {
+            return entries.size();
+        }
+    }
+
+    private static final class Loop extends Line {
+        final List<Machine.Position> cells;
+        final List<CardinalDirection> directions;
+        final Set<Machine.Position> zone = new HashSet<>();
+        /** The places on the path of the loop's balls at step {@link #origin}. */
+        final int[] phases;
+        final long origin;
+
+        Loop(List<Machine.Position> cells, List<CardinalDirection> directions, int[] phases, long origin) {
+            this.cells = cells;
+            this.directions = directions;
+            this.phases = phases;
+            this.origin = origin;
+            minX = minY = Integer.MAX_VALUE;
+            maxX = maxY = Integer.MIN_VALUE;
+            for (Machine.Position cell : cells) {
+                for (int dx = -REACH; dx <= REACH; dx++) {
+                    for (int dy = -REACH; dy <= REACH; dy++) {
+                        zone.add(new Machine.Position(cell.x() + dx, cell.y() + dy));
+                    }
+                }
+                minX = Math.min(minX, cell.x() - REACH);
+                minY = Math.min(minY, cell.y() - REACH);
+                maxX = Math.max(maxX, cell.x() + REACH);
+                maxY = Math.max(maxY, cell.y() + REACH);
+            }
+        }
+
+        @Override
+        boolean zoneContains(Machine.Position p) {
+            return zone.contains(p);
+        }
+
+        @Override
+        void forEachBall(long step, BiConsumer<Machine.Position, Ball> action) {
+            for (int phase : phases) {
+                var i = (int) Math.floorMod(phase + step - origin, (long) cells.size());
+                action.accept(cells.get(i), new Ball(directions.get(i)));
+            }
+        }
+
+        @Override
+        int ballCount() {
+            return phases.length;
+        }
+    }
+
+    /**
+     * @return how many balls are currently kept on wires and in loops rather than stepped
+     */
+    public int getCompressedBallCount() {
+        var count = 0;
+        for (Wire wire : wires) {
+            count += wire.ballCount();
+        }
+        for (Loop loop : loops) {
+            count += loop.ballCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return how many wires and loops have been expanded because other balls came near them
+     */
+    public long getExpansions() {
+        return expansions;
+    }
+
+    @Override
+    public void loadFromConfiguration(List<String> configuration) {
+        machine = Machine.emptyMachine();
+        machine.loadFromConfiguration(configuration);
+        steps = 0;
+        expansions = 0;
+        wallsByRow.clear();
+        wallsByColumn.clear();
+        buckets.clear();
+        wires.clear();
+        loops.clear();
+        machine.forEachWall((p, wall) -> {
+            wallsByRow.computeIfAbsent(p.y(), y -> new TreeSet<>()).add(p.x());
+            wallsByColumn.computeIfAbsent(p.x(), x -> new TreeSet<>()).add(p.y());
+        });
+        findLoops();
+        compress();
+    }
+
+    @Override
+    public void update() {
+        machine.update();
+        steps++;
+        for (var iterator = wires.iterator(); iterator.hasNext(); ) {
+            var wire = iterator.next();
+            while (!wire.entries.isEmpty() && steps - wire.entries.first() > wire.length) {
+                var p = wire.start.inDirection(wire.direction, (int) (steps - wire.entries.pollFirst()));
+                machine.restoreCell(p, new Ball(wire.direction), machine.getWallAt(p));
+            }
+            if (wire.entries.isEmpty()) {
+                unregister(wire);
+                iterator.remove();
+            }
+        }
+        compress();
+    }
+
+    /**
+     * Starts wires for balls that are clear of every line, then takes balls onto the wires they are on,
+     * and expands the lines other balls have come near.
+     */
+    private void compress() {
+        var pending = new ArrayDeque<Machine.Position>();
+        machine.forEachBall((p, ball) -> pending.add(p));
+        for (Machine.Position p : pending) {
+            var ball = machine.getBallAt(p);
+            if (ball != null && linesNear(p).isEmpty()) {
+                tryToStartWire(p, ball.directionOfMovement());
+            }
+        }
+        while (!pending.isEmpty()) {
+            var p = pending.poll();
+            var ball = machine.getBallAt(p);
+            if (ball == null) {
+                continue;
+            }
+            Wire joining = null;
+            for (Line line : linesNear(p)) {
+                if (line instanceof Wire wire && wire.direction == ball.directionOfMovement() && wire.indexOf(p) != null) {
+                    var index = wire.indexOf(p);
+                    if (0 <= index && index <= wire.length) {
+                        joining = wire;
+                    }
+                } else {
+                    expand(line, pending);
+                }
+            }
+            if (joining != null && wires.contains(joining)) {
+                machine.removeBall(p);
+                joining.entries.add(steps - joining.indexOf(p));
+            }
+        }
+    }
+
+    private void tryToStartWire(Machine.Position p, CardinalDirection direction) {
+        var length = clearRun(p, direction);
+        if (length < MIN_WIRE_LENGTH) {
+            return;
+        }
+        var wire = new Wire(p, direction, (int) Math.min(length, MAX_WIRE_LENGTH));
+        if (overlapsAnyLine(wire)) {
+            return;
+        }
+        register(wire);
+        wires.add(wire);
+        machine.removeBall(p);
+        wire.entries.add(steps);
+    }
+
+    /**
+     * @return how many cells a ball can go straight on from a position, not counting the position itself,
+     *         before a wall is within a cell of it; -1 if one already is
+     */
+    private long clearRun(Machine.Position p, CardinalDirection direction) {
+        var horizontal = direction.isHorizontal();
+        var along = horizontal ? p.x() : p.y();
+        var across = horizontal ? p.y() : p.x();
+        var walls = horizontal ? wallsByRow : wallsByColumn;
+        var forward = horizontal ? direction.horizontalCoefficient() > 0 : direction.verticalCoefficient() > 0;
+        long nearest = forward ? Long.MAX_VALUE : Long.MIN_VALUE;
+        for (int lane = across - 1; lane <= across + 1; lane++) {
+            var row = walls.get(lane);
+            if (row == null) {
+                continue;
+            }
+            var wall = forward ? row.ceiling(along - 1) : row.floor(along + 1);
+            if (wall != null) {
+                nearest = forward ? Math.min(nearest, wall) : Math.max(nearest, wall);
+            }
+        }
+        if (nearest == Long.MAX_VALUE || nearest == Long.MIN_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        // A ball is clear of a wall anchored two or more cells ahead.
+        return forward ? nearest - 2 - along : along - (nearest + 2);
+    }
+
+    private void findLoops() {
+        var traced = new HashSet<Machine.Position>();
+        var balls = new ArrayList<Machine.Position>();
+        machine.forEachBall((p, ball) -> balls.add(p));
+        for (Machine.Position p : balls) {
+            if (!traced.add(p)) {
+                continue;
+            }
+            var cells = new ArrayList<Machine.Position>();
+            var directions = new ArrayList<CardinalDirection>();
+            if (!traceLoop(p, machine.getBallAt(p).directionOfMovement(), cells, directions)) {
+                continue;
+            }
+            var phases = new ArrayList<Integer>();
+            for (int i = 0; i < cells.size(); i++) {
+                var ball = machine.getBallAt(cells.get(i));
+                if (ball != null && ball.directionOfMovement() == directions.get(i)) {
+                    phases.add(i);
+                    traced.add(cells.get(i));
+                }
+            }
+            var loop = new Loop(cells, directions, phases.stream().mapToInt(Integer::intValue).toArray(), steps);
+            if (overlapsAnyLine(loop) || !keepsGoingRound(loop)) {
+                continue;
+            }
+            register(loop);
+            loops.add(loop);
+            loop.forEachBall(steps, (q, ball) -> machine.removeBall(q));
+        }
+    }
+
+    /**
+     * Follows the path a ball would take with no other balls about.
+     * @return whether it comes back to where it started within {@link #MAX_LOOP_LENGTH} steps
+     */
+    private boolean traceLoop(Machine.Position start, CardinalDirection startDirection,
+                              List<Machine.Position> cells, List<CardinalDirection> directions) {
+        var position = start;
+        var direction = startDirection;
+        for (int i = 0; i < MAX_LOOP_LENGTH; i++) {
+            if (clearRun(position, direction) > MAX_LOOP_LENGTH) {
+                return false;
+            }
+            cells.add(position);
+            directions.add(direction);
+            direction = StepRule.nextDirection(
+                    direction,
+                    machine.getWallAt(new Machine.Position(
+                            position.x() + StepRule.portBowWallDx(direction), position.y() + StepRule.portBowWallDy(direction))),
+                    machine.getWallAt(new Machine.Position(
+                            position.x() + StepRule.starboardBowWallDx(direction), position.y() + StepRule.starboardBowWallDy(direction))),
+                    null, null, null);
+            position = position.oneSpaceToward(direction);
+            if (position.equals(start) && direction == startDirection) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs a loop's balls on their own for a whole lap to check that they do not knock each other off the path.
+     */
+    private boolean keepsGoingRound(Loop loop) {
+        var lap = Machine.emptyMachine();
+        for (Machine.Position cell : loop.cells) {
+            for (int dx = -1; dx <= 0; dx++) {
+                for (int dy = -1; dy <= 0; dy++) {
+                    var anchor = new Machine.Position(cell.x() + dx, cell.y() + dy);
+                    lap.restoreCell(anchor, null, machine.getWallAt(anchor));
+                }
+            }
+        }
+        loop.forEachBall(steps, (p, ball) -> lap.restoreCell(p, ball, lap.getWallAt(p)));
+        for (int i = 1; i <= loop.cells.size(); i++) {
+            lap.update();
+            var step = steps + i;
+            var onPath = new boolean[] {true};
+            loop.forEachBall(step, (p, ball) -> onPath[0] &= ball.equals(lap.getBallAt(p)));
+            var count = new int[1];
+            lap.forEachBall((p, ball) -> count[0]++);
+            if (!onPath[0] || count[0] != loop.ballCount()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void expand(Line line, ArrayDeque<Machine.Position> pending) {
+        unregister(line);
+        if (line instanceof Wire wire) {
+            wires.remove(wire);
+        } else {
+            loops.remove((Loop) line);
+        }
+        line.forEachBall(steps, (p, ball) -> {
+            machine.restoreCell(p, ball, machine.getWallAt(p));
+            pending.add(p);
+        });
+        expansions++;
+    }
+
+    private List<Line> linesNear(Machine.Position p) {
+        var near = new ArrayList<Line>();
+        var bucket = buckets.get(bucketKey(p.x() >> BUCKET_SHIFT, p.y() >> BUCKET_SHIFT));
+        if (bucket != null) {
+            for (Line line : bucket) {
+                if (line.zoneContains(p)) {
+                    near.add(line);
+                }
+            }
+        }
+        return near;
+    }
+
+    // Lines are kept far enough apart that the balls of one can never come near those of another.
+    private boolean overlapsAnyLine(Line candidate) {
+        for (int bx = candidate.minX >> BUCKET_SHIFT; bx <= candidate.maxX >> BUCKET_SHIFT; bx++) {
+            for (int by = candidate.minY >> BUCKET_SHIFT; by <= candidate.maxY >> BUCKET_SHIFT; by++) {
+                var bucket = buckets.get(bucketKey(bx, by));
+                if (bucket != null) {
+                    for (Line line : bucket) {
+                        if (line.zonesOverlap(candidate)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void register(Line line) {
+        for (int bx = line.minX >> BUCKET_SHIFT; bx <= line.maxX >> BUCKET_SHIFT; bx++) {
+            for (int by = line.minY >> BUCKET_SHIFT; by <= line.maxY >> BUCKET_SHIFT; by++) {
+                buckets.computeIfAbsent(bucketKey(bx, by), k -> new ArrayList<>()).add(line);
+            }
+        }
+    }
+
+    private void unregister(Line line) {
+        for (int bx = line.minX >> BUCKET_SHIFT; bx <= line.maxX >> BUCKET_SHIFT; bx++) {
+            for (int by = line.minY >> BUCKET_SHIFT; by <= line.maxY >> BUCKET_SHIFT; by++) {
+                var key = bucketKey(bx, by);
+                var bucket = buckets.get(key);
+                bucket.remove(line);
+                if (bucket.isEmpty()) {
+                    buckets.remove(key);
+                }
+            }
+        }
+    }
+
+    private static long bucketKey(int bx, int by) {
+        return (long) bx << 32 | by & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return the whole machine, with the balls on wires and in loops put back where they are, for rendering or export
+     */
+    public MachineState expanded() {
+        var whole = machine.fork();
+        for (Wire wire : wires) {
+            wire.forEachBall(steps, (p, ball) -> whole.restoreCell(p, ball, whole.getWallAt(p)));
+        }
+        for (Loop loop : loops) {
+            loop.forEachBall(steps, (p, ball) -> whole.restoreCell(p, ball, whole.getWallAt(p)));
+        }
+        return whole;
+    }
+
+    @Override
+    public List<String> getConfigurationAsStrings() {
+        return expanded().getConfigurationAsStrings();
+    }
+
+    @Override
+    public long stateHash() {
+        return expanded().stateHash();
+    }
+}
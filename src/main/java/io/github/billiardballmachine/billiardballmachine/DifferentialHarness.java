@@ -0,0 +1,108 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Runs two engines side by side from the same configuration and reports the first step at which their states differ.
+ * Failing configurations can be shrunk to a minimal one that still makes the engines disagree.
+ * Each run gets new engines from the suppliers, and closes those that are {@link AutoCloseable} when it ends.
+ */
+public class DifferentialHarness {
+
+    private final Supplier<? extends MachineEngine> referenceEngine;
+    private final Supplier<? extends MachineEngine> candidateEngine;
+
+    public DifferentialHarness(Supplier<? extends MachineEngine> referenceEngine, Supplier<? extends MachineEngine> candidateEngine) {
+        this.referenceEngine = referenceEngine;
+        this.candidateEngine = candidateEngine;
+    }
+
+    /**
+     * @param step the number of updates after which the states first differed (0 means they differed after loading)
+     */
+    public record Divergence(int step, List<String> referenceConfiguration, List<String> candidateConfiguration) {}
+
+    public Optional<Divergence> run(List<String> configuration, int steps) {
+        var reference = referenceEngine.get();
+        try {
+            var candidate = candidateEngine.get();
+            try {
+                return run(reference, candidate, configuration, steps);
+            } finally {
+                close(candidate);
+            }
+        } finally {
+            close(reference);
+        }
+    }
+
+    private static Optional<Divergence> run(MachineEngine reference, MachineEngine candidate, List<String> configuration, int steps) {
+        reference.loadFromConfiguration(configuration);
+        candidate.loadFromConfiguration(configuration);
+        for (int step = 0; ; step++) {
+            if (reference.stateHash() != candidate.stateHash()) {
+                return Optional.of(new Divergence(
+                        step,
+                        reference.getConfigurationAsStrings(),
+                        candidate.getConfigurationAsStrings()));
+            }
+            if (step == steps) {
+                return Optional.empty();
+            }
+            reference.update();
+            candidate.update();
+        }
+    }
+
+    private static void close(MachineEngine engine) {
+        if (engine instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                throw new IllegalStateException("Closing engine failed", e);
+            }
+        }
+    }
+
+    /**
+     * Removes as many objects as possible from a configuration while keeping the engines diverging within the given number of steps.
+     * This is delta debugging: chunks of decreasing size are dropped as long as the divergence survives.
+     * @param configuration a configuration on which the engines diverge
+     * @return a configuration, no larger than the given one, on which the engines still diverge
+     */
+    public List<String> shrink(List<String> configuration, int steps) {
+        if (run(configuration, steps).isEmpty()) {
+            throw new IllegalArgumentException("Engines do not diverge on the given configuration within " + steps + " steps");
+        }
+        var current = new ArrayList<>(configuration);
+        var chunkSize = Math.max(1, current.size() / 2);
+        while (true) {
+            var removedAny = false;
+            for (int start = 0; start < current.size(); ) {
+                var end = Math.min(current.size(), start + chunkSize);
+                var candidate = new ArrayList<>(current.subList(0, start));
+                candidate.addAll(current.subList(end, current.size()));
+                if (run(candidate, steps).isPresent()) {
+                    current = candidate;
+                    removedAny = true;
+                } else {
+                    start = end;
+                }
+            }
+            if (chunkSize == 1 && !removedAny) {
+                return current;
+            }
+            chunkSize = Math.max(1, chunkSize / 2);
+        }
+    }
+
+    public static void writeBbm(List<String> configuration, Path path) throws IOException {
+        Files.write(path, configuration);
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
+/**
+ * Frees direct and memory-mapped buffers as soon as they are no longer needed,
+ * rather than whenever the garbage collector gets around to them.
+ */
+final class DirectBuffers {
+
+    // sun.misc.Unsafe.invokeCleaner is the only way to do this before the foreign memory API.
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    private DirectBuffers() {}
+
+    /**
+     * Frees a buffer returned by {@link ByteBuffer#allocateDirect} or {@link java.nio.channels.FileChannel#map}.
+     * The buffer must not be used afterwards.
+     */
+    static void free(ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            // Left to the garbage collector.
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(buffer);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not free direct buffer", e);
+        }
+    }
+
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            var unsafeClass = Class.forName("sun.misc.Unsafe");
+            var theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a machine across {@link RegionWorker}s, runs them, and gathers their regions back into one configuration.
+ * Workers can run as threads of this JVM, talking through queues, or as separate processes talking over sockets.
+ */
+public final class DistributedCoordinator {
+
+    private final Partition partition;
+    private final int stepsPerExchange;
+
+    public DistributedCoordinator(Partition partition, int stepsPerExchange) {
+        this.partition = partition;
+        this.stepsPerExchange = stepsPerExchange;
+    }
+
+    /**
+     * Splits a configuration into what each worker starts with: the balls within its region and halo,
+     * and the walls that any ball there can reach.
+     * The configuration is first loaded into a machine so that objects breaking the placement rules are dropped as usual.
+     * @return the configuration of each worker, indexed by worker
+     */
+    public List<List<String>> split(List<String> configuration) {
+        var machine = Machine.emptyMachine();
+        machine.loadFromConfiguration(configuration);
+        var halo = RegionWorker.haloWidth(stepsPerExchange);
+        var split = new ArrayList<List<String>>();
+        for (int worker = 0; worker < partition.regionCount(); worker++) {
+            var ballArea = partition.region(worker).expandedBy(halo);
+            // Balls look at walls up to a cell away.
+            var wallArea = ballArea.expandedBy(1);
+            var part = new ArrayList<String>();
+            machine.forEachBall((p, ball) -> {
+                if (ballArea.contains(p)) {
+                    part.add("ball " + ball.directionOfMovement().toConfigurationString() + " " + p.toConfigurationString());
+                }
+            });
+            machine.forEachWall((p, wall) -> {
+                if (wallArea.contains(p)) {
+                    part.add("wall " + wall.toConfigurationString() + " " + p.toConfigurationString());
+                }
+            });
+            split.add(part);
+        }
+        return split;
+    }
+
+    /**
+     * Runs every worker on a thread of its own in this JVM.
+     * @throws ExecutionException as soon as any worker fails, stopping the others
+     * @return the configuration of the whole machine after the given number of steps
+     */
+    public List<String> runInProcess(List<String> configuration, long steps) throws InterruptedException, ExecutionException {
+        var parts = split(configuration);
+        var transports = InProcessHaloTransport.connect(parts.size());
+        var executor = Executors.newFixedThreadPool(parts.size());
+        try {
+            var completion = new ExecutorCompletionService<List<String>>(executor);
+            var results = new ArrayList<Future<List<String>>>();
+            for (int worker = 0; worker < parts.size(); worker++) {
+                results.add(completion.submit(new RegionWorker(
+                        worker, partition, stepsPerExchange, steps, parts.get(worker), transports.get(worker))));
+            }
+            // Wait in the order workers finish, since the others wait forever for halos from one that failed.
+            for (int i = 0; i < results.size(); i++) {
+                completion.take().get();
+            }
+            var gathered = new ArrayList<String>();
+            for (Future<List<String>> result : results) {
+                gathered.addAll(result.get());
+            }
+            return gathered;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs every worker in a process of its own on this host, connected by sockets on free local ports.
+     * Each worker binds its own port and reports it, and every worker is then told the ports of all of them.
+     * The worker processes run with the classpath of this JVM.
+     * As soon as any worker exits with an error, the others are stopped.
+     * @param workDirectory where the workers' configurations and results are written
+     * @return the configuration of the whole machine after the given number of steps
+     */
+    public List<String> runInProcesses(List<String> configuration, long steps, Path workDirectory) throws IOException, InterruptedException {
+        var parts = split(configuration);
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        var processes = new ArrayList<Process>();
+        var results = new ArrayList<Path>();
+        try {
+            for (int worker = 0; worker < parts.size(); worker++) {
+                var input = workDirectory.resolve("worker-" + worker + ".bbm");
+                var result = workDirectory.resolve("worker-" + worker + "-result.bbm");
+                Files.write(input, parts.get(worker));
+                results.add(result);
+                var command = new ArrayList<>(List.of(
+                        java, "-cp", System.getProperty("java.class.path"), RegionWorker.class.getName(),
+                        Integer.toString(worker), partition.toString(), Integer.toString(stepsPerExchange), Long.toString(steps),
+                        input.toString(), result.toString()));
+                // Standard output carries only the worker's port, and standard input the addresses of all workers.
+                processes.add(new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start());
+            }
+            var addresses = new ArrayList<String>();
+            for (int worker = 0; worker < processes.size(); worker++) {
+                var reader = new BufferedReader(new InputStreamReader(processes.get(worker).getInputStream(), StandardCharsets.US_ASCII));
+                var port = reader.readLine();
+                if (port == null) {
+                    throw new IOException("Worker " + worker + " exited before reporting its port");
+                }
+                addresses.add("localhost:" + port.trim());
+            }
+            var addressLine = (String.join(" ", addresses) + "\n").getBytes(StandardCharsets.US_ASCII);
+            for (Process process : processes) {
+                try (
+                        var out = process.getOutputStream()
+                ) {
+                    out.write(addressLine);
+                }
+            }
+            var running = new ArrayList<Integer>();
+            for (int worker = 0; worker < processes.size(); worker++) {
+                running.add(worker);
+            }
+            while (!running.isEmpty()) {
+                awaitAnyExit(running.stream().map(processes::get).toList());
+                for (var iterator = running.iterator(); iterator.hasNext(); ) {
+                    var worker = iterator.next();
+                    var process = processes.get(worker);
+                    if (process.isAlive()) {
+                        continue;
+                    }
+                    iterator.remove();
+                    if (process.exitValue() != 0) {
+                        throw new IOException("Worker " + worker + " exited with code " + process.exitValue());
+                    }
+                }
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+        var gathered = new ArrayList<String>();
+        for (Path result : results) {
+            gathered.addAll(Files.readAllLines(result));
+        }
+        return gathered;
+    }
+
+    private static void awaitAnyExit(List<Process> processes) throws InterruptedException {
+        try {
+            CompletableFuture.anyOf(processes.stream().map(Process::onExit).toArray(CompletableFuture[]::new)).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Waiting for a worker to exit failed", e.getCause());
+        }
+    }
+
+    /**
+     * Usage: {@code DistributedCoordinator <in.bbm> <out.bbm> <columns> <rows> <steps per exchange> <steps>}
+     * <p>
+     * Splits the machine into about {@code columns} by {@code rows} regions holding similar numbers of objects,
+     * steps it with one worker process per region, and writes the gathered result.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        var configuration = Files.readAllLines(Path.of(args[0]));
+        var partition = Partition.balanced(configuration, Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        var coordinator = new DistributedCoordinator(partition, Integer.parseInt(args[4]));
+        var workDirectory = Files.createTempDirectory("bbm-workers");
+        try {
+            var result = coordinator.runInProcesses(configuration, Long.parseLong(args[5]), workDirectory);
+            Files.write(Path.of(args[1]), result);
+        } finally {
+            deleteRecursively(workDirectory);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (
+                var paths = Files.walk(directory)
+        ) {
+            // Deepest first, so that each directory is empty by the time it is deleted.
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Undo/redo history for edits made to a {@link Machine} through {@link EditMachineCommand}s.
+ * Each entry stores only the positions an edit changed, with their contents before and after,
+ * rather than a snapshot of the machine.
+ * Edits made between {@link #beginGroup()} and {@link #endGroup()}, e.g. during a single mouse drag,
+ * are coalesced into one entry. Once more than {@code capacity} entries exist the oldest is evicted.
+ * Entries refer to positions, which stepping moves balls away from, so stepping through the history clears it.
+ */
+public class EditHistory {
+
+    private final int capacity;
+    private final Deque<List<CellChange>> undoStack = new ArrayDeque<>();
+    private final Deque<List<CellChange>> redoStack = new ArrayDeque<>();
+
+    // Changes of the group being recorded, keyed by position so repeated edits of a cell coalesce. Null when no group is open.
+    private Map<Machine.Position, CellChange> openGroup;
+
+    public EditHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public void execute(EditMachineCommand command, Machine machine, Machine.Position position, boolean editingBall) {
+        var ballBefore = machine.getBallAt(position);
+        var wallBefore = machine.getWallAt(position);
+        command.execute(machine, position, editingBall);
+        record(new CellChange(position, ballBefore, machine.getBallAt(position), wallBefore, machine.getWallAt(position)));
+    }
+
+    public void deleteRegion(Machine machine, Machine.Position min, Machine.Position max) {
+        recordAll(machine.removeRegion(min, max));
+    }
+
+    public void pasteRegion(Machine machine, MachineRegion region, Machine.Position origin) {
+        recordAll(machine.placeRegion(region, origin));
+    }
+
+    public void moveRegion(Machine machine, Machine.Position min, Machine.Position max, Machine.Position newMin) {
+        recordAll(machine.moveRegion(min, max, newMin));
+    }
+
+    public void rotateRegion(Machine machine, Machine.Position min, Machine.Position max) {
+        recordAll(machine.rotateRegion(min, max));
+    }
+
+    /**
+     * Records changes that were already applied to the machine.
+     */
+    void record(CellChange change) {
+        if (change.isEmpty()) {
+            return;
+        }
+        if (openGroup != null) {
+            openGroup.merge(change.position(), change, CellChange::followedBy);
+            return;
+        }
+        push(List.of(change));
+    }
+
+    /**
+     * Records a batch of changes that were already applied to the machine as a single entry.
+     */
+    void recordAll(List<CellChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        if (openGroup != null) {
+            changes.forEach(this::record);
+            return;
+        }
+        push(List.copyOf(changes));
+    }
+
+    public void beginGroup() {
+        if (openGroup == null) {
+            openGroup = new LinkedHashMap<>();
+        }
+    }
+
+    public void endGroup() {
+        if (openGroup == null) {
+            return;
+        }
+        var changes = new ArrayList<CellChange>();
+        for (CellChange change : openGroup.values()) {
+            if (!change.isEmpty()) {
+                changes.add(change);
+            }
+        }
+        openGroup = null;
+        if (!changes.isEmpty()) {
+            changes.trimToSize();
+            push(changes);
+        }
+    }
+
+    private void push(List<CellChange> changes) {
+        redoStack.clear();
+        undoStack.push(changes);
+        if (undoStack.size() > capacity) {
+            undoStack.removeLast();
+        }
+    }
+
+    /**
+     * Steps the machine forward, clearing the history.
+     */
+    public void update(Machine machine) {
+        clear();
+        machine.update();
+    }
+
+    /**
+     * Steps the machine backward, clearing the history.
+     */
+    public void updateReverse(Machine machine) {
+        clear();
+        machine.updateReverse();
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    /**
+     * @return whether there was anything to undo
+     */
+    public boolean undo(Machine machine) {
+        endGroup();
+        var changes = undoStack.poll();
+        if (changes == null) {
+            return false;
+        }
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            changes.get(i).inverse().apply(machine);
+        }
+        redoStack.push(changes);
+        return true;
+    }
+
+    /**
+     * @return whether there was anything to redo
+     */
+    public boolean redo(Machine machine) {
+        endGroup();
+        var changes = redoStack.poll();
+        if (changes == null) {
+            return false;
+        }
+        for (CellChange change : changes) {
+            change.apply(machine);
+        }
+        undoStack.push(changes);
+        return true;
+    }
+
+    public void clear() {
+        openGroup = null;
+        undoStack.clear();
+        redoStack.clear();
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A rectangular component of a machine, such as a gate, that balls enter through known ports.
+ * A box can be characterised into a {@link TransferTable} and then stepped as a whole by a {@link MacroMachine}.
+ * <p>
+ * The box holds only walls. Balls enter it from the ring of cells just outside it, each port being such a cell
+ * together with a direction that leads into the box.
+ */
+public final class GateBox {
+
+    /**
+     * @param approach the cell just outside the box that a ball entering through this port comes from
+     * @param direction the direction in which the ball enters
+     */
+    public record Port(Machine.Position approach, CardinalDirection direction) {}
+
+    private final Machine.Position min;
+    private final Machine.Position max;
+    private final Map<Machine.Position, DiagonalWall> walls;
+    private final List<Port> ports;
+
+    /**
+     * @param min the northwest cell of the box
+     * @param max the southeast cell of the box
+     * @param walls the walls of the box, all anchored inside it
+     */
+    public GateBox(Machine.Position min, Machine.Position max, Map<Machine.Position, DiagonalWall> walls, List<Port> ports) {
+        if (min.x() > max.x() || min.y() > max.y()) {
+            throw new IllegalArgumentException("Box corners are the wrong way round: " + min + " " + max);
+        }
+        this.min = min;
+        this.max = max;
+        this.walls = Map.copyOf(walls);
+        this.ports = List.copyOf(ports);
+        for (Machine.Position p : walls.keySet()) {
+            if (distance(p) != 0) {
+                throw new IllegalArgumentException("Wall at " + p + " is outside the box");
+            }
+        }
+        for (Port port : ports) {
+            if (distance(port.approach()) != 1 || distance(port.approach().oneSpaceToward(port.direction())) != 0) {
+                throw new IllegalArgumentException("Port " + port + " does not lead from just outside the box into it");
+            }
+        }
+    }
+
+    /**
+     * Makes a box of the walls a machine has between two corners.
+     */
+    public static GateBox of(MachineState machine, Machine.Position min, Machine.Position max, List<Port> ports) {
+        var walls = new HashMap<Machine.Position, DiagonalWall>();
+        for (int x = min.x(); x <= max.x(); x++) {
+            for (int y = min.y(); y <= max.y(); y++) {
+                var p = new Machine.Position(x, y);
+                var wall = machine.getWallAt(p);
+                if (wall != null) {
+                    walls.put(p, wall);
+                }
+            }
+        }
+        return new GateBox(min, max, walls, ports);
+    }
+
+    public Machine.Position min() {
+        return min;
+    }
+
+    public Machine.Position max() {
+        return max;
+    }
+
+    public Map<Machine.Position, DiagonalWall> walls() {
+        return walls;
+    }
+
+    public List<Port> ports() {
+        return ports;
+    }
+
+    /**
+     * @return how many cells a position is outside the box, counting diagonal steps as one; 0 inside it
+     */
+    int distance(Machine.Position p) {
+        var dx = Math.max(0, Math.max((long) min.x() - p.x(), (long) p.x() - max.x()));
+        var dy = Math.max(0, Math.max((long) min.y() - p.y(), (long) p.y() - max.y()));
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(dx, dy));
+    }
+
+    /**
+     * @return whether a ball outside the box at this position is heading straight away from it
+     */
+    boolean isMovingAway(Machine.Position p, CardinalDirection direction) {
+        return switch (direction) {
+            case NORTH -> p.y() < min.y();
+            case SOUTH -> p.y() > max.y();
+            case WEST  -> p.x() < min.x();
+            case EAST  -> p.x() > max.x();
+        };
+    }
+
+    /**
+     * @return the index of the port a ball at this position moving in this direction is about to enter, or -1
+     */
+    int portOf(Machine.Position p, CardinalDirection direction) {
+        for (int i = 0; i < ports.size(); i++) {
+            if (ports.get(i).approach().equals(p) && ports.get(i).direction() == direction) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
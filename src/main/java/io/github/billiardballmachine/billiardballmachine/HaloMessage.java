@@ -0,0 +1,14 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+/**
+ * The balls one worker of a distributed run sends to another after a round of steps:
+ * those in the sender's own region that lie within the receiver's halo.
+ * @param round the number of rounds completed before the balls were sent
+ * @param balls the balls as consecutive triples of x, y and direction ordinal
+ */
+public record HaloMessage(int sender, long round, int[] balls) {
+
+    public int ballCount() {
+        return balls.length / 3;
+    }
+}
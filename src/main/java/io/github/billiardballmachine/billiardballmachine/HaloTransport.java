@@ -0,0 +1,18 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Carries halo messages between the workers of a distributed run.
+ * Each worker has its own transport; workers are identified by their region index in the {@link Partition}.
+ * Messages from one worker to another arrive in the order they were sent.
+ */
+public interface HaloTransport extends Closeable {
+    void send(int worker, HaloMessage message) throws IOException, InterruptedException;
+
+    /**
+     * Waits for the next message from the given worker.
+     */
+    HaloMessage receive(int worker) throws IOException, InterruptedException;
+}
@@ -0,0 +1,53 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Transport between workers running as threads of one JVM, through a queue for every ordered pair of workers.
+ */
+public final class InProcessHaloTransport implements HaloTransport {
+
+    private final int self;
+    // queues.get(receiver).get(sender)
+    private final List<List<BlockingQueue<HaloMessage>>> queues;
+
+    private InProcessHaloTransport(int self, List<List<BlockingQueue<HaloMessage>>> queues) {
+        this.self = self;
+        this.queues = queues;
+    }
+
+    /**
+     * @return connected transports for the given number of workers, indexed by worker
+     */
+    public static List<HaloTransport> connect(int workers) {
+        var queues = new ArrayList<List<BlockingQueue<HaloMessage>>>();
+        for (int receiver = 0; receiver < workers; receiver++) {
+            var inbox = new ArrayList<BlockingQueue<HaloMessage>>();
+            for (int sender = 0; sender < workers; sender++) {
+                inbox.add(new LinkedBlockingQueue<>());
+            }
+            queues.add(inbox);
+        }
+        var transports = new ArrayList<HaloTransport>();
+        for (int worker = 0; worker < workers; worker++) {
+            transports.add(new InProcessHaloTransport(worker, queues));
+        }
+        return transports;
+    }
+
+    @Override
+    public void send(int worker, HaloMessage message) throws InterruptedException {
+        queues.get(worker).get(self).put(message);
+    }
+
+    @Override
+    public HaloMessage receive(int worker) throws InterruptedException {
+        return queues.get(self).get(worker).take();
+    }
+
+    @Override
+    public void close() {}
+}
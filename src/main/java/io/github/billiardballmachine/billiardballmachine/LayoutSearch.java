@@ -0,0 +1,473 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Searches the wall layouts of a box for ones that implement a truth table.
+ * <p>
+ * Every layout of at most a given number of walls is considered, walls being placed in either orientation wherever
+ * both their ends are inside the box. A layout is tried by putting a ball at each input port that is on, for every combination of inputs,
+ * and checking that balls pass exactly the expected output ports before they have all left the box.
+ * <p>
+ * Layouts are built one cell at a time, in order, and each partial layout is tried with the rest of the box empty.
+ * Adding a wall to a cell that no ball looked at in any of those runs cannot change them, so such layouts are never
+ * tried: they fail where the partial one failed, and only add walls where it passed. Layouts that are a rotation or
+ * reflection of another that maps the ports and truth table onto themselves behave the same, so only one of each
+ * set is tried. Partial layouts are tried in parallel on a fork-join pool.
+ */
+public final class LayoutSearch {
+
+    // Partial layouts with fewer walls than this are split into a task per next wall.
+    private static final int SPLIT_WALLS = 2;
+
+    /**
+     * A layout that implements the truth table.
+     * @param latency the most steps any combination of inputs took to reach its last output
+     */
+    public record Layout(Map<Machine.Position, DiagonalWall> walls, int latency) {}
+
+    /**
+     * @param evaluated the layouts run for every combination of inputs, or until one failed
+     * @param skippedBySymmetry the layouts not run because a rotation or reflection of them is run instead
+     */
+    public record Progress(long evaluated, long skippedBySymmetry, long found, long elapsedNanos) {
+        public double candidatesPerSecond() {
+            return elapsedNanos == 0 ? 0 : evaluated * 1e9 / elapsedNanos;
+        }
+    }
+
+    private final GateBox frame;
+    private final List<GateBox.Port> outputs;
+    private final int[] truthTable;
+    private final int maxWalls;
+    private final int maxSteps;
+    private final int keep;
+    private final int width;
+    private final int height;
+    /** For each symmetry other than the identity, where each cell goes and whether wall orientations swap. */
+    private final List<int[]> symmetries = new ArrayList<>();
+    private final List<Boolean> symmetriesSwapWalls = new ArrayList<>();
+
+    private final LongAdder evaluated = new LongAdder();
+    private final LongAdder skippedBySymmetry = new LongAdder();
+    private final AtomicInteger lastFailingInputs = new AtomicInteger(1);
+    private final ConcurrentSkipListSet<Candidate> best = new ConcurrentSkipListSet<>(
+            Comparator.comparingInt(Candidate::wallCount).thenComparingInt(Candidate::latency).thenComparing(Candidate::key));
+    private long startNanos;
+
+    private record Candidate(int wallCount, int latency, String key, byte[] cells) {}
+
+    /**
+     * @param frame the box whose cells can hold walls, with its input ports; its own walls are ignored
+     * @param outputs the cells a ball passes, in the given direction, for each output to be on
+     * @param truthTable the outputs that must be on, as bits, indexed by the inputs that are on, as bits
+     * @param maxSteps how many steps a combination of inputs may take to leave the box
+     * @param keep how many of the best layouts to keep, fewest walls first and then lowest latency
+     */
+    public LayoutSearch(GateBox frame, List<GateBox.Port> outputs, int[] truthTable, int maxWalls, int maxSteps, int keep) {
+        if (truthTable.length != 1 << frame.ports().size()) {
+            throw new IllegalArgumentException("Truth table needs a row for each of the " + (1 << frame.ports().size()) + " combinations of inputs");
+        }
+        this.frame = frame;
+        this.outputs = List.copyOf(outputs);
+        this.truthTable = truthTable.clone();
+        this.maxWalls = maxWalls;
+        this.maxSteps = maxSteps;
+        this.keep = keep;
+        // Walls go in the cells whose corners are all inside the box.
+        this.width = frame.max().x() - frame.min().x();
+        this.height = frame.max().y() - frame.min().y();
+        findSymmetries();
+    }
+
+    // The symmetries of the square are a quarter-turn applied up to three times, after an optional mirror image.
+    private void findSymmetries() {
+        for (int mirrored = 0; mirrored < 2; mirrored++) {
+            for (int turns = 0; turns < 4; turns++) {
+                if (mirrored == 0 && turns == 0 || turns % 2 == 1 && width != height) {
+                    continue;
+                }
+                var inputMap = portMap(frame.ports(), mirrored == 1, turns);
+                var outputMap = portMap(outputs, mirrored == 1, turns);
+                if (inputMap == null || outputMap == null || !preservesTruthTable(inputMap, outputMap)) {
+                    continue;
+                }
+                var cellMap = new int[width * height];
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        // A wall's cell spans its anchor to one point south-east, so map its centre.
+                        var centre = transform(2 * x + 1, 2 * y + 1, 2 * width, 2 * height, mirrored == 1, turns);
+                        cellMap[y * width + x] = (centre[1] - 1) / 2 * width + (centre[0] - 1) / 2;
+                    }
+                }
+                symmetries.add(cellMap);
+                // A mirror image and a quarter-turn each swap the two orientations.
+                symmetriesSwapWalls.add((mirrored + turns) % 2 == 1);
+            }
+        }
+    }
+
+    /**
+     * @return the number of rotations and reflections, including doing nothing, that map the box, its ports and its truth table onto themselves
+     */
+    public int symmetryCount() {
+        return symmetries.size() + 1;
+    }
+
+    /**
+     * Moves a grid point, relative to the box's northwest corner, by the symmetry.
+     */
+    private static int[] transform(int x, int y, int w, int h, boolean mirrored, int turns) {
+        if (mirrored) {
+            x = w - x;
+        }
+        for (int i = 0; i < turns; i++) {
+            var turnedX = h - y;
+            y = x;
+            x = turnedX;
+            var t = w;
+            w = h;
+            h = t;
+        }
+        return new int[] {x, y};
+    }
+
+    private static CardinalDirection transform(CardinalDirection direction, boolean mirrored, int turns) {
+        if (mirrored && direction.isHorizontal()) {
+            direction = direction.opposite();
+        }
+        for (int i = 0; i < turns; i++) {
+            direction = direction.toStarboard();
+        }
+        return direction;
+    }
+
+    /**
+     * @return where each port goes under the symmetry, or null if some port goes somewhere that is not a port
+     */
+    private int[] portMap(List<GateBox.Port> ports, boolean mirrored, int turns) {
+        var map = new int[ports.size()];
+        for (int i = 0; i < ports.size(); i++) {
+            var port = ports.get(i);
+            var moved = transform(port.approach().x() - frame.min().x(), port.approach().y() - frame.min().y(), width, height, mirrored, turns);
+            var target = new GateBox.Port(
+                    new Machine.Position(moved[0] + frame.min().x(), moved[1] + frame.min().y()),
+                    transform(port.direction(), mirrored, turns));
+            map[i] = ports.indexOf(target);
+            if (map[i] < 0) {
+                return null;
+            }
+        }
+        return map;
+    }
+
+    private boolean preservesTruthTable(int[] inputMap, int[] outputMap) {
+        for (int inputs = 0; inputs < truthTable.length; inputs++) {
+            if (truthTable[permute(inputs, inputMap)] != permute(truthTable[inputs], outputMap)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int permute(int bits, int[] map) {
+        var permuted = 0;
+        for (int i = 0; i < map.length; i++) {
+            if ((bits & 1 << i) != 0) {
+                permuted |= 1 << map[i];
+            }
+        }
+        return permuted;
+    }
+
+    public List<Layout> run() {
+        return run(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Runs the whole search on the pool.
+     * @return the best layouts found, best first
+     */
+    public List<Layout> run(ForkJoinPool pool) {
+        evaluated.reset();
+        skippedBySymmetry.reset();
+        best.clear();
+        startNanos = System.nanoTime();
+        pool.invoke(new Node(new byte[width * height], 0, 0));
+        var layouts = new ArrayList<Layout>();
+        for (Candidate candidate : best) {
+            layouts.add(new Layout(wallsOf(candidate.cells()), candidate.latency()));
+        }
+        return layouts;
+    }
+
+    /**
+     * Can be called from any thread while the search runs.
+     */
+    public Progress progress() {
+        return new Progress(evaluated.sum(), skippedBySymmetry.sum(), best.size(), System.nanoTime() - startNanos);
+    }
+
+    /**
+     * A partial layout: walls decided for the cells before {@code next}, and none after.
+     */
+    private final class Node extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] cells;
+        private final int next;
+        private final int wallCount;
+
+        Node(byte[] cells, int next, int wallCount) {
+            this.cells = cells;
+            this.next = next;
+            this.wallCount = wallCount;
+        }
+
+        @Override
+        protected void compute() {
+            // Without a run to say which cells the balls look at, every later cell has to be tried.
+            var lastLookedAt = cells.length - 1;
+            if (isCanonical(cells)) {
+                lastLookedAt = evaluate(cells);
+            } else {
+                skippedBySymmetry.increment();
+            }
+            if (wallCount == maxWalls) {
+                return;
+            }
+            var children = new ArrayList<Node>();
+            for (int cell = next; cell <= lastLookedAt; cell++) {
+                for (byte wall = 1; wall <= 2; wall++) {
+                    var child = cells.clone();
+                    child[cell] = wall;
+                    children.add(new Node(child, cell + 1, wallCount + 1));
+                }
+            }
+            if (wallCount < SPLIT_WALLS) {
+                invokeAll(children);
+            } else {
+                for (Node child : children) {
+                    child.compute();
+                }
+            }
+        }
+    }
+
+    private boolean isCanonical(byte[] cells) {
+        for (int s = 0; s < symmetries.size(); s++) {
+            var cellMap = symmetries.get(s);
+            var swap = symmetriesSwapWalls.get(s);
+            var image = new byte[cells.length];
+            for (int i = 0; i < cells.length; i++) {
+                image[cellMap[i]] = swap && cells[i] != 0 ? (byte) (3 - cells[i]) : cells[i];
+            }
+            if (Arrays.compare(image, cells) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs a layout for every combination of inputs, starting with the one that most recently failed,
+     * and stops at the first that fails. A passing layout is kept if it is among the best.
+     * @return the last cell, in search order, that any ball looked at for a wall
+     */
+    private int evaluate(byte[] cells) {
+        evaluated.increment();
+        var walls = wallsOf(cells);
+        var lastLookedAt = new int[] {-1};
+        var first = lastFailingInputs.get();
+        var latency = 0;
+        for (int i = 0; i < truthTable.length; i++) {
+            var inputs = i == 0 ? first : i == first ? 0 : i;
+            var steps = run(walls, inputs, lastLookedAt);
+            if (steps < 0) {
+                lastFailingInputs.set(inputs);
+                return lastLookedAt[0];
+            }
+            latency = Math.max(latency, steps);
+        }
+        var count = 0;
+        for (byte cell : cells) {
+            count += cell == 0 ? 0 : 1;
+        }
+        best.add(new Candidate(count, latency, Arrays.toString(cells), cells));
+        while (best.size() > keep) {
+            best.pollLast();
+        }
+        return lastLookedAt[0];
+    }
+
+    /**
+     * @return the step at which the last output was passed, or -1 if the outputs were wrong
+     */
+    private int run(Map<Machine.Position, DiagonalWall> walls, int inputs, int[] lastLookedAt) {
+        var machine = Machine.emptyMachine();
+        walls.forEach((p, wall) -> machine.restoreCell(p, null, wall));
+        for (int i = 0; i < frame.ports().size(); i++) {
+            if ((inputs & 1 << i) != 0) {
+                var port = frame.ports().get(i);
+                machine.addBall(new Ball(port.direction()), port.approach());
+                if (!machine.ballIsAt(port.approach())) {
+                    return -1;
+                }
+            }
+        }
+        var expected = truthTable[inputs];
+        var passed = 0;
+        var lastOutput = 0;
+        for (int step = 0; step <= maxSteps; step++) {
+            for (int o = 0; o < outputs.size(); o++) {
+                var output = outputs.get(o);
+                var ball = machine.getBallAt(output.approach());
+                if (ball != null && ball.directionOfMovement() == output.direction() && (passed & 1 << o) == 0) {
+                    if ((expected & 1 << o) == 0) {
+                        return -1;
+                    }
+                    passed |= 1 << o;
+                    lastOutput = step;
+                }
+            }
+            var settled = new boolean[] {true};
+            machine.forEachBall((p, ball) -> {
+                var direction = ball.directionOfMovement();
+                settled[0] &= frame.distance(p) >= 2 && frame.isMovingAway(p, direction);
+                lookedAt(p.x() + StepRule.portBowWallDx(direction), p.y() + StepRule.portBowWallDy(direction), lastLookedAt);
+                lookedAt(p.x() + StepRule.starboardBowWallDx(direction), p.y() + StepRule.starboardBowWallDy(direction), lastLookedAt);
+            });
+            if (settled[0]) {
+                return passed == expected ? lastOutput : -1;
+            }
+            machine.update();
+        }
+        return -1;
+    }
+
+    private void lookedAt(int x, int y, int[] lastLookedAt) {
+        var cx = x - frame.min().x();
+        var cy = y - frame.min().y();
+        if (cx >= 0 && cx < width && cy >= 0 && cy < height) {
+            lastLookedAt[0] = Math.max(lastLookedAt[0], cy * width + cx);
+        }
+    }
+
+    private Map<Machine.Position, DiagonalWall> wallsOf(byte[] cells) {
+        var walls = new HashMap<Machine.Position, DiagonalWall>();
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] != 0) {
+                var position = new Machine.Position(frame.min().x() + i % width, frame.min().y() + i / width);
+                walls.put(position, DiagonalWall.values()[cells[i] - 1]);
+            }
+        }
+        return walls;
+    }
+
+    /**
+     * @return the layout's walls, with a ball at every input port, as a configuration
+     */
+    public List<String> toConfiguration(Layout layout) {
+        var configuration = new ArrayList<String>();
+        layout.walls().forEach((p, wall) -> configuration.add("wall " + wall.toConfigurationString() + " " + p.toConfigurationString()));
+        for (GateBox.Port port : frame.ports()) {
+            configuration.add("ball " + port.direction().toConfigurationString() + " " + port.approach().toConfigurationString());
+        }
+        return configuration;
+    }
+
+    /**
+     * Usage: {@code LayoutSearch <spec> <output directory>}
+     * <p>
+     * The spec has a line {@code box <minX> <minY> <maxX> <maxY>}, lines {@code input <direction> <x> <y>} and
+     * {@code output <direction> <x> <y>} in bit order, a line {@code row <inputs> <outputs>} for each combination of
+     * inputs whose outputs are not all off, with bits written first to last, and optionally {@code walls <n>},
+     * {@code steps <n>} and {@code keep <n>}. The best layouts are written as {@code layout-1.bbm} and so on.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int[] box = null;
+        var inputs = new ArrayList<GateBox.Port>();
+        var outputs = new ArrayList<GateBox.Port>();
+        var rows = new HashMap<String, String>();
+        int maxWalls = 4;
+        int maxSteps = 100;
+        int keep = 10;
+        for (String line : Files.readAllLines(Path.of(args[0]))) {
+            var parts = line.trim().split("\\s+");
+            switch (parts[0]) {
+                case "box" -> box = new int[] {Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), Integer.parseInt(parts[4])};
+                case "input", "output" -> (parts[0].equals("input") ? inputs : outputs).add(new GateBox.Port(
+                        new Machine.Position(Integer.parseInt(parts[2]), Integer.parseInt(parts[3])),
+                        CardinalDirection.fromConfigurationString(parts[1])));
+                case "row" -> rows.put(parts[1], parts[2]);
+                case "walls" -> maxWalls = Integer.parseInt(parts[1]);
+                case "steps" -> maxSteps = Integer.parseInt(parts[1]);
+                case "keep" -> keep = Integer.parseInt(parts[1]);
+                case "" -> { }
+                default -> throw new IllegalArgumentException("Unexpected line in spec: " + line);
+            }
+        }
+        if (box == null) {
+            throw new IllegalArgumentException("Spec has no box line");
+        }
+        var truthTable = new int[1 << inputs.size()];
+        rows.forEach((in, out) -> truthTable[bitsOf(in)] = bitsOf(out));
+        var frame = new GateBox(new Machine.Position(box[0], box[1]), new Machine.Position(box[2], box[3]), Map.of(), inputs);
+        var search = new LayoutSearch(frame, outputs, truthTable, maxWalls, maxSteps, keep);
+        System.out.println("Symmetries: " + search.symmetryCount());
+
+        var reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(1000);
+                    var progress = search.progress();
+                    System.out.printf("%d evaluated, %d skipped by symmetry, %d found, %.0f candidates/s%n",
+                            progress.evaluated(), progress.skippedBySymmetry(), progress.found(), progress.candidatesPerSecond());
+                }
+            } catch (InterruptedException e) {
+                // Search finished.
+            }
+        }, "layout-search-progress");
+        reporter.setDaemon(true);
+        reporter.start();
+        var layouts = search.run();
+        reporter.interrupt();
+        reporter.join();
+
+        var progress = search.progress();
+        System.out.printf("Done: %d evaluated, %d skipped by symmetry, %.0f candidates/s%n",
+                progress.evaluated(), progress.skippedBySymmetry(), progress.candidatesPerSecond());
+        var directory = Path.of(args[1]);
+        Files.createDirectories(directory);
+        for (int i = 0; i < layouts.size(); i++) {
+            var layout = layouts.get(i);
+            Files.write(directory.resolve("layout-" + (i + 1) + ".bbm"), search.toConfiguration(layout));
+            System.out.println("layout-" + (i + 1) + ".bbm: " + layout.walls().size() + " walls, latency " + layout.latency());
+        }
+    }
+
+    private static int bitsOf(String bits) {
+        var value = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            if (bits.charAt(i) == '1') {
+                value |= 1 << i;
+            }
+        }
+        return value;
+    }
+}
@@ -7,9 +7,11 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Set;
+import java.util.function.BiConsumer;
 
 /**
  * A billiard-ball machine.
@@ -17,58 +19,142 @@ import java.util.Scanner;
  * so they collide when at a diagonal with each other.
  * They are also assumed to have a constant velocity of 1 unit of distance per step.
  */
-public class Machine {
+public class Machine implements MachineEngine, MachineState {
+    // Plain hash maps, which are fastest to step, until the first fork copies them into persistent maps that can be shared.
+    // Stepping always builds the next balls in a plain map again, so only forked machines pay for the persistent ones.
     private Map<Position, Ball> ballPositions;
-    private final Map<Position, DiagonalWall> wallPositions;
+    private Map<Position, DiagonalWall> wallPositions;
 
-    Machine(Map<Position, Ball> ballPositions, Map<Position, DiagonalWall> wallPositions) {
+    private final MachineMetrics metrics = new MachineMetrics();
+    private final MachineMetrics.StepTally stepTally = new MachineMetrics.StepTally();
+
+    // Positions whose contents changed since they were last drained, or null when nobody is tracking changes.
+    private Set<Position> changedPositions;
+
+    // Counts of objects per block, or null when nobody is tracking occupancy.
+    private OccupancyPyramid occupancy;
+
+    // Where step events go, or null when nobody has asked for them.
+    private StepEventPublisher stepEvents;
+
+    private Machine(Map<Position, Ball> ballPositions, Map<Position, DiagonalWall> wallPositions) {
         this.ballPositions = ballPositions;
         this.wallPositions = wallPositions;
     }
 
-    static Machine emptyMachine() {
+    public static Machine emptyMachine() {
         return new Machine(new HashMap<>(), new HashMap<>());
     }
 
+    /**
+     * Returns an independent copy of this machine.
+     * The copy shares all unchanged state with this machine, so it costs memory only for what either of them changes afterwards.
+     * The first fork takes time proportional to the size of the machine, and the first after each step time proportional
+     * to the number of balls, since stepping builds them in a plain map again; other forks take constant time.
+     * Metrics and change tracking are not carried over.
+     */
+    public Machine fork() {
+        var balls = persistent(ballPositions);
+        var walls = persistent(wallPositions);
+        ballPositions = balls;
+        wallPositions = walls;
+        return new Machine(balls.fork(), walls.fork());
+    }
+
+    private static <T> PersistentHashMap<Position, T> persistent(Map<Position, T> objects) {
+        return objects instanceof PersistentHashMap<Position, T> persistentObjects
+                ? persistentObjects
+                : PersistentHashMap.copyOf(objects);
+    }
+
+    /**
+     * Returns a read-only copy of the current state, at the cost of a {@link #fork()}.
+     * The snapshot never changes, so once handed to another thread (through an executor, a concurrent queue, etc.)
+     * it can be read there while this machine keeps being stepped and edited.
+     */
+    public MachineState snapshot() {
+        return new Snapshot(fork());
+    }
+
+    // Hides the fork behind the interface, so the snapshot can't be cast back to a Machine and changed.
+    private record Snapshot(MachineState state) implements MachineState {
+        @Override
+        public DiagonalWall getWallAt(Position position) {
+            return state.getWallAt(position);
+        }
+
+        @Override
+        public Ball getBallAt(Position position) {
+            return state.getBallAt(position);
+        }
+
+        @Override
+        public boolean wallIsAt(Position position) {
+            return state.wallIsAt(position);
+        }
+
+        @Override
+        public boolean ballIsAt(Position position) {
+            return state.ballIsAt(position);
+        }
+
+        @Override
+        public List<String> getConfigurationAsStrings() {
+            return state.getConfigurationAsStrings();
+        }
+
+        @Override
+        public long stateHash() {
+            return state.stateHash();
+        }
+    }
+
     void clear() {
+        if (changedPositions != null) {
+            changedPositions.addAll(ballPositions.keySet());
+            changedPositions.addAll(wallPositions.keySet());
+        }
         ballPositions.clear();
         wallPositions.clear();
+        if (occupancy != null) {
+            occupancy.clear();
+        }
     }
 
+    @Override
     public void loadFromConfiguration(List<String> configuration) {
         clear();
+        addFromConfiguration(configuration);
+    }
+
+    /**
+     * Adds the objects of a configuration to those already in the machine, applying the placement rules,
+     * so that a large configuration can be loaded a chunk at a time.
+     * @return how many of the objects were placed; the rest broke the placement rules
+     */
+    public int addFromConfiguration(List<String> configuration) {
+        var objectsBefore = ballPositions.size() + wallPositions.size();
         for (String configString : configuration) {
             loadObjectFromConfigurationString(configString);
         }
+        return ballPositions.size() + wallPositions.size() - objectsBefore;
     }
 
+    // Splitting is much cheaper than a Scanner per line, which dominated the time to load large files.
     private void loadObjectFromConfigurationString(String configString) {
-        try (
-                var s = new Scanner(configString)
-        ) {
-            var objectType = s.next();
-            switch (objectType) {
-                case "ball" -> {
-                    var direction = CardinalDirection.fromConfigurationString(s.next());
-                    var position = readPosition(s);
-                    addBall(new Ball(direction), position);
-                }
-                case "wall" -> {
-                    var wall = DiagonalWall.fromConfigurationString(s.next());
-                    var position = readPosition(s);
-                    addWall(wall, position);
-                }
-                default -> throw new IllegalArgumentException("Unexpected type in configuration string: " + objectType);
-            }
+        var parts = configString.trim().split("\\s+");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Expected a type, an orientation and two coordinates in configuration string: " + configString);
+        }
+        var position = new Position(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+        switch (parts[0]) {
+            case "ball" -> addBall(new Ball(CardinalDirection.fromConfigurationString(parts[1])), position);
+            case "wall" -> addWall(DiagonalWall.fromConfigurationString(parts[1]), position);
+            default -> throw new IllegalArgumentException("Unexpected type in configuration string: " + parts[0]);
         }
     }
 
-    private static Position readPosition(Scanner s) {
-        var x = s.nextInt();
-        var y = s.nextInt();
-        return new Position(x, y);
-    }
-
+    @Override
     public List<String> getConfigurationAsStrings() {
         var configuration = new ArrayList<String>();
         for (Map.Entry<Position, Ball> e : ballPositions.entrySet()) {
@@ -80,6 +166,18 @@ public class Machine {
         return configuration;
     }
 
+    @Override
+    public long stateHash() {
+        long hash = 0;
+        for (Map.Entry<Position, Ball> e : ballPositions.entrySet()) {
+            hash += StateHash.ofBall(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<Position, DiagonalWall> e : wallPositions.entrySet()) {
+            hash += StateHash.ofWall(e.getKey(), e.getValue());
+        }
+        return hash;
+    }
+
     private static String toConfigurationString(DiagonalWall w, Position p) {
         return String.format("wall %s %s",
                 w.toConfigurationString(),
@@ -97,6 +195,10 @@ public class Machine {
             return;
         }
         ballPositions.put(position, ball);
+        if (occupancy != null) {
+            occupancy.addBall(position);
+        }
+        markChanged(position);
     }
 
     private boolean wallTouches(Position position) {
@@ -135,14 +237,264 @@ public class Machine {
             return;
         }
         wallPositions.put(position, wall);
+        if (occupancy != null) {
+            occupancy.addWall(position);
+        }
+        markChanged(position);
     }
 
     Ball removeBall(Position position) {
-        return ballPositions.remove(position);
+        markChanged(position);
+        var ball = ballPositions.remove(position);
+        if (ball != null && occupancy != null) {
+            occupancy.removeBall(position);
+        }
+        return ball;
     }
 
     DiagonalWall removeWall(Position position) {
-        return wallPositions.remove(position);
+        markChanged(position);
+        var wall = wallPositions.remove(position);
+        if (wall != null && occupancy != null) {
+            occupancy.removeWall(position);
+        }
+        return wall;
+    }
+
+    /**
+     * Puts exactly the given ball and wall at a position, bypassing the placement rules.
+     * Used to restore contents that were previously read from a valid machine.
+     */
+    void restoreCell(Position position, Ball ball, DiagonalWall wall) {
+        var ballBefore = ball == null ? ballPositions.remove(position) : ballPositions.put(position, ball);
+        var wallBefore = wall == null ? wallPositions.remove(position) : wallPositions.put(position, wall);
+        if (occupancy != null) {
+            if (ballBefore == null && ball != null) {
+                occupancy.addBall(position);
+            } else if (ballBefore != null && ball == null) {
+                occupancy.removeBall(position);
+            }
+            if (wallBefore == null && wall != null) {
+                occupancy.addWall(position);
+            } else if (wallBefore != null && wall == null) {
+                occupancy.removeWall(position);
+            }
+        }
+        markChanged(position);
+    }
+
+    /**
+     * Calls the action for every ball, in no particular order. The action must not change the machine.
+     */
+    void forEachBall(BiConsumer<Position, Ball> action) {
+        ballPositions.forEach(action);
+    }
+
+    /**
+     * Calls the action for every wall, in no particular order. The action must not change the machine.
+     */
+    void forEachWall(BiConsumer<Position, DiagonalWall> action) {
+        wallPositions.forEach(action);
+    }
+
+    /**
+     * Calls the action for every ball from {@code min} to {@code max} inclusive, in no particular order,
+     * looking at whichever are fewer: the cells or the balls. The action must not change the machine.
+     */
+    void forEachBallIn(Position min, Position max, BiConsumer<Position, Ball> action) {
+        forEachIn(ballPositions, min, max, action);
+    }
+
+    /**
+     * @return the smallest region holding every ball and wall, or null if the machine is empty
+     */
+    public Partition.Region bounds() {
+        var bounds = new Partition.Region[1];
+        BiConsumer<Position, Object> include = (p, object) -> bounds[0] = bounds[0] == null
+                ? new Partition.Region(p.x(), p.y(), p.x(), p.y())
+                : new Partition.Region(Math.min(bounds[0].minX(), p.x()), Math.min(bounds[0].minY(), p.y()),
+                        Math.max(bounds[0].maxX(), p.x()), Math.max(bounds[0].maxY(), p.y()));
+        forEachBall(include::accept);
+        forEachWall(include::accept);
+        return bounds[0];
+    }
+
+    /**
+     * Loads a configuration read from a valid machine, bypassing the placement rules like {@link #restoreCell}.
+     * Stepping can bring balls closer together than {@link #addBall} allows, so states saved mid-run must be loaded this way.
+     */
+    void restoreFromConfiguration(List<String> configuration) {
+        clear();
+        for (String configString : configuration) {
+            var parts = configString.trim().split("\\s+");
+            if (parts.length != 4) {
+                throw new IllegalArgumentException("Expected a type, an orientation and two coordinates in configuration string: " + configString);
+            }
+            var position = new Position(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+            switch (parts[0]) {
+                case "ball" -> restoreCell(position, new Ball(CardinalDirection.fromConfigurationString(parts[1])), getWallAt(position));
+                case "wall" -> restoreCell(position, getBallAt(position), DiagonalWall.fromConfigurationString(parts[1]));
+                default -> throw new IllegalArgumentException("Unexpected type in configuration string: " + parts[0]);
+            }
+        }
+    }
+
+    /**
+     * Copies the balls and walls of the cells from {@code min} to {@code max} inclusive.
+     * Balls on the far edges of the cells, at {@code max.x() + 1} or {@code max.y() + 1}, are included.
+     */
+    public MachineRegion copyRegion(Position min, Position max) {
+        var balls = new HashMap<Position, Ball>();
+        forEachIn(ballPositions, min, max.plus(new Position(1, 1)),
+                (p, ball) -> balls.put(new Position(p.x() - min.x(), p.y() - min.y()), ball));
+        var walls = new HashMap<Position, DiagonalWall>();
+        forEachIn(wallPositions, min, max,
+                (p, wall) -> walls.put(new Position(p.x() - min.x(), p.y() - min.y()), wall));
+        return new MachineRegion(balls, walls, max.x() - min.x() + 1, max.y() - min.y() + 1);
+    }
+
+    // Scans whichever is smaller: the rectangle, or the objects of the machine.
+    private static <T> void forEachIn(Map<Position, T> objects, Position min, Position max, BiConsumer<Position, T> action) {
+        var width = (long) max.x() - min.x() + 1;
+        var height = (long) max.y() - min.y() + 1;
+        // Rectangles spanning most of the plane have areas that overflow a long.
+        var area = width > objects.size() || height > objects.size() ? Long.MAX_VALUE : width * height;
+        if (area <= objects.size()) {
+            for (int x = min.x(); x <= max.x(); x++) {
+                for (int y = min.y(); y <= max.y(); y++) {
+                    var position = new Position(x, y);
+                    var object = objects.get(position);
+                    if (object != null) {
+                        action.accept(position, object);
+                    }
+                }
+            }
+        } else {
+            for (Map.Entry<Position, T> e : objects.entrySet()) {
+                var p = e.getKey();
+                if (p.x() >= min.x() && p.x() <= max.x() && p.y() >= min.y() && p.y() <= max.y()) {
+                    action.accept(p, e.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Works out which balls are in a region after some steps, without stepping this machine.
+     * A cell's contents after a step depend only on what was within two cells of it before, so only the balls within
+     * {@code 2 * steps} cells of the region, and the walls they can reach, are simulated; the simulated area then
+     * shrinks by two cells every step.
+     * @return the balls in the region after the given number of steps
+     */
+    public Map<Position, Ball> evaluateProbe(Partition.Region region, int steps) {
+        var cone = region.expandedBy((int) Math.min(Integer.MAX_VALUE, 2L * steps));
+        var wallCone = cone.expandedBy(1);
+        var slice = emptyMachine();
+        forEachIn(ballPositions, new Position(cone.minX(), cone.minY()), new Position(cone.maxX(), cone.maxY()),
+                (p, ball) -> slice.ballPositions.put(p, ball));
+        forEachIn(wallPositions, new Position(wallCone.minX(), wallCone.minY()), new Position(wallCone.maxX(), wallCone.maxY()),
+                (p, wall) -> slice.wallPositions.put(p, wall));
+        for (int step = 1; step <= steps; step++) {
+            slice.update();
+            var reach = region.expandedBy((int) Math.min(Integer.MAX_VALUE, 2L * (steps - step)));
+            var outside = new ArrayList<Position>();
+            slice.forEachBall((p, ball) -> {
+                if (!reach.contains(p)) {
+                    outside.add(p);
+                }
+            });
+            outside.forEach(slice.ballPositions::remove);
+        }
+        var balls = new HashMap<Position, Ball>();
+        slice.forEachBall(balls::put);
+        return balls;
+    }
+
+    List<CellChange> removeRegion(Position min, Position max) {
+        var affected = positionsOf(copyRegion(min, max), min);
+        return changesTo(affected, () -> {
+            for (Position p : affected) {
+                removeBall(p);
+                removeWall(p);
+            }
+        });
+    }
+
+    /**
+     * Adds the contents of a region with its northwest corner at {@code origin}, following the usual placement rules.
+     */
+    List<CellChange> placeRegion(MachineRegion region, Position origin) {
+        return changesTo(positionsOf(region, origin), () -> placeRegionUnrecorded(region, origin));
+    }
+
+    private void placeRegionUnrecorded(MachineRegion region, Position origin) {
+        for (Map.Entry<Position, DiagonalWall> e : region.walls().entrySet()) {
+            addWall(e.getValue(), e.getKey().plus(origin));
+        }
+        for (Map.Entry<Position, Ball> e : region.balls().entrySet()) {
+            addBall(e.getValue(), e.getKey().plus(origin));
+        }
+    }
+
+    /**
+     * Moves the cells from {@code min} to {@code max} so that {@code min} ends up at {@code newMin}.
+     */
+    List<CellChange> moveRegion(Position min, Position max, Position newMin) {
+        var region = copyRegion(min, max);
+        return replaceRegion(min, max, region, newMin);
+    }
+
+    /**
+     * Turns the cells from {@code min} to {@code max} a quarter-turn clockwise about their northwest corner.
+     */
+    List<CellChange> rotateRegion(Position min, Position max) {
+        var region = copyRegion(min, max).rotatedClockwise();
+        return replaceRegion(min, max, region, min);
+    }
+
+    private List<CellChange> replaceRegion(Position min, Position max, MachineRegion replacement, Position origin) {
+        var source = positionsOf(copyRegion(min, max), min);
+        var affected = new HashSet<>(source);
+        affected.addAll(positionsOf(replacement, origin));
+        return changesTo(affected, () -> {
+            for (Position p : source) {
+                removeBall(p);
+                removeWall(p);
+            }
+            placeRegionUnrecorded(replacement, origin);
+        });
+    }
+
+    private static Set<Position> positionsOf(MachineRegion region, Position origin) {
+        var positions = new HashSet<Position>();
+        for (Position p : region.balls().keySet()) {
+            positions.add(p.plus(origin));
+        }
+        for (Position p : region.walls().keySet()) {
+            positions.add(p.plus(origin));
+        }
+        return positions;
+    }
+
+    // Applies an edit that only touches the given positions, and returns what it changed.
+    private List<CellChange> changesTo(Set<Position> affected, Runnable edit) {
+        if (changedPositions != null) {
+            changedPositions.addAll(affected);
+        }
+        var before = new HashMap<Position, CellChange>();
+        for (Position p : affected) {
+            before.put(p, new CellChange(p, getBallAt(p), null, getWallAt(p), null));
+        }
+        edit.run();
+        var changes = new ArrayList<CellChange>();
+        for (CellChange b : before.values()) {
+            var p = b.position();
+            var change = new CellChange(p, b.ballBefore(), getBallAt(p), b.wallBefore(), getWallAt(p));
+            if (!change.isEmpty()) {
+                changes.add(change);
+            }
+        }
+        return changes;
     }
 
     void rotateBall(Position position) {
@@ -180,85 +532,172 @@ public class Machine {
         public String toConfigurationString() {
             return x + " " + y;
         }
+
+        // The default record hash, 31 * x + y, collides for positions like (0, 31) and (1, 0),
+        // which is common on a grid. Multiplying by a large odd constant keeps nearby positions apart.
+        @Override
+        public int hashCode() {
+            return x * 0x9E3779B9 + y;
+        }
+    }
+
+    /**
+     * Turns on or off recording of which positions change, by steps or by edits, for {@link #drainChangedPositions()}.
+     */
+    public void setChangeTracking(boolean enabled) {
+        if (!enabled) {
+            changedPositions = null;
+        } else if (changedPositions == null) {
+            changedPositions = new HashSet<>();
+        }
+    }
+
+    /**
+     * Returns the positions whose ball or wall may have changed since the last call, and starts a new change set.
+     * A wall's position is its anchor, so a changed wall affects the cell from that position to one space south-east of it.
+     * @return the changed positions, empty if change tracking is off
+     */
+    public Set<Position> drainChangedPositions() {
+        if (changedPositions == null || changedPositions.isEmpty()) {
+            return Set.of();
+        }
+        var changed = changedPositions;
+        changedPositions = new HashSet<>();
+        return changed;
     }
 
+    private void markChanged(Position position) {
+        if (changedPositions != null) {
+            changedPositions.add(position);
+        }
+    }
+
+    /**
+     * Starts keeping an {@link OccupancyPyramid} of this machine up to date, filling it from the current contents,
+     * or returns the one already kept. Forks and snapshots do not keep one.
+     */
+    public OccupancyPyramid trackOccupancy() {
+        if (occupancy == null) {
+            occupancy = new OccupancyPyramid();
+            ballPositions.keySet().forEach(occupancy::addBall);
+            wallPositions.keySet().forEach(occupancy::addWall);
+        }
+        return occupancy;
+    }
+
+    /**
+     * @return the pyramid kept by {@link #trackOccupancy}, or null if none is
+     */
+    public OccupancyPyramid getOccupancy() {
+        return occupancy;
+    }
+
+    /**
+     * Starts publishing events from each step, or returns the publisher already doing so.
+     * Only balls near a region some subscriber watches are looked at, so it costs little until subscribed to.
+     * Forks and snapshots do not publish.
+     */
+    public StepEventPublisher publishStepEvents() {
+        if (stepEvents == null) {
+            stepEvents = new StepEventPublisher();
+        }
+        return stepEvents;
+    }
+
+    public MachineMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
     public void update() {
-        Map<Position, Ball> nextBallPositions = new HashMap<>();
+        var event = new MachineStepEvent();
+        event.begin();
+        var allocatedBefore = MachineMetrics.currentThreadAllocatedBytes();
+        var start = System.nanoTime();
+        stepTally.reset();
+        var ballsStepped = ballPositions.size();
+
+        var nextBallPositions = new HashMap<Position, Ball>();
         for (Map.Entry<Position, Ball> entry : ballPositions.entrySet()) {
             var position = entry.getKey();
             var ball = entry.getValue();
-            var nextDirection = calculateNextDirection(ball, position); // TODO: handle null, or use Exception?
+            var transition = calculateTransition(ball, position);
+            var nextDirection = StepRule.directionOf(transition);
             var nextPosition = position.oneSpaceToward(nextDirection);
-            nextBallPositions.put(nextPosition, new Ball(nextDirection));
+            if (changedPositions != null) {
+                changedPositions.add(position);
+                changedPositions.add(nextPosition);
+            }
+            // Balls that end up in the same space merge into one. Which survives is decided by direction rather than
+            // iteration order, so that the outcome is the same however the machine happens to be stored.
+            // Putting first costs one lookup where merge would cost two, since merges are rare.
+            var nextBall = new Ball(nextDirection);
+            var merged = nextBallPositions.put(nextPosition, nextBall);
+            if (merged != null) {
+                nextBallPositions.put(nextPosition, survivingBall(merged, nextBall));
+            }
+            if (occupancy != null) {
+                occupancy.moveBall(position, nextPosition);
+                if (merged != null) {
+                    occupancy.removeBall(nextPosition);
+                }
+            }
+            if (stepEvents != null && stepEvents.isWatched(position)) {
+                stepEvents.ballStepped(position, nextPosition, transition, merged != null);
+            }
         }
         this.ballPositions = nextBallPositions;
+        if (stepEvents != null) {
+            stepEvents.stepEnded();
+        }
+
+        var duration = System.nanoTime() - start;
+        var allocated = allocatedBefore < 0 ? 0 : MachineMetrics.currentThreadAllocatedBytes() - allocatedBefore;
+        metrics.recordStep(ballsStepped, stepTally, duration, allocated, ballPositions.size(), wallPositions.size());
+        event.end();
+        if (event.shouldCommit()) {
+            event.ballsStepped = ballsStepped;
+            event.wallDeflections = stepTally.wallDeflections;
+            event.portCollisions = stepTally.portCollisions;
+            event.starboardCollisions = stepTally.starboardCollisions;
+            event.headOnReversals = stepTally.headOnReversals;
+            event.ballCount = ballPositions.size();
+            event.wallCount = wallPositions.size();
+            event.allocatedBytes = allocated;
+            event.commit();
+        }
+    }
+
+    private static Ball survivingBall(Ball a, Ball b) {
+        return a.directionOfMovement().ordinal() >= b.directionOfMovement().ordinal() ? a : b;
     }
 
     /**
-     * Returns the next direction the ball should move in based on surrounding objects,
-     * or null if the ball is surrounded and stuck.
+     * Works out the next direction the ball should move in based on surrounding objects.
      * @param ball a ball in the machine
      * @param ballPosition the position of the ball in the machine
-     * @return the next direction the given ball should move given the current state of the machine
+     * @return the ball's transition, from which {@link StepRule#directionOf} gives its next direction
      */
-    private CardinalDirection calculateNextDirection(Ball ball, Position ballPosition) {
+    private int calculateTransition(Ball ball, Position ballPosition) {
         var ballDirection = ball.directionOfMovement();
         // Using ship directions relative to ball's direction of movement.
         // Check if ball should be deflected to port or starboard.
         var straightAhead = ballPosition.oneSpaceToward(ballDirection);
-        var offThePortBow = straightAhead
-                .oneSpaceToward(ballDirection.toPort());
-        var offTheStarboardBow = straightAhead
-                .oneSpaceToward(ballDirection.toStarboard());
-        // Wall positions/anchors are at their northwest corner, so the "port-bow" or "starboard-bow" position for the wall
-        // depends on the ball's direction. A ball going east will collide on the starboard side with a SW-NE wall anchored at the ball's position,
-        // but a ball going west will collide on the starboard side with a SW-NE wall anchored *one space north and one space west* of the ball's position.
+        var ballOffThePortBow = getBallAt(straightAhead.oneSpaceToward(ballDirection.toPort()));
+        var ballOffTheStarboardBow = getBallAt(straightAhead.oneSpaceToward(ballDirection.toStarboard()));
         // TODO: consider doubling the scale of the grid, make balls move 2 spaces per step, walls anchored at center. Simplifies this logic, but then balls and walls can only be placed at even and odd gridCoords, respectively.
-        var portBowWallOffset = switch (ballDirection) {
-            case NORTH -> new Position(-1, -1);
-            case EAST  -> new Position( 0, -1);
-            case SOUTH -> new Position( 0,  0);
-            case WEST  -> new Position(-1,  0);
-        };
-        var portBowWallPosition = ballPosition.plus(portBowWallOffset);
-        var starboardBowWallOffset = switch (ballDirection) {
-            case NORTH -> new Position( 0, -1);
-            case EAST  -> new Position( 0,  0);
-            case SOUTH -> new Position(-1,  0);
-            case WEST  -> new Position(-1, -1);
-        };
-        var starboardBowWallPosition = ballPosition.plus(starboardBowWallOffset);
-        var willCollideWithWallOnPortBow =
-                (ball.isMovingHorizontally() && DiagonalWall.NORTHWEST_TO_SOUTHEAST.equals(getWallAt(portBowWallPosition))) ||
-                (ball.isMovingVertically()   && DiagonalWall.SOUTHWEST_TO_NORTHEAST.equals(getWallAt(portBowWallPosition)));
-        var willCollideWithWallOnStarboardBow =
-                (ball.isMovingHorizontally() && DiagonalWall.SOUTHWEST_TO_NORTHEAST.equals(getWallAt(starboardBowWallPosition))) ||
-                (ball.isMovingVertically()   && DiagonalWall.NORTHWEST_TO_SOUTHEAST.equals(getWallAt(starboardBowWallPosition)));
-        var ballOffThePortBow = getBallAt(offThePortBow);
-        var willCollideWithBallOnPortBow =
-                ballIsAt(offThePortBow)
-                        && (ballOffThePortBow.isMovingInDirection(ballDirection.opposite())
-                        || ballOffThePortBow.isMovingInDirection(ballDirection.toStarboard()));
-        var ballOffTheStarboardBow = getBallAt(offTheStarboardBow);
-        var willCollideWithBallOnStarboardBow =
-                ballIsAt(offTheStarboardBow)
-                        && (ballOffTheStarboardBow.isMovingInDirection(ballDirection.opposite())
-                        || ballOffTheStarboardBow.isMovingInDirection(ballDirection.toPort()));
-        var willCollideOnPortBow      = willCollideWithWallOnPortBow      || willCollideWithBallOnPortBow;
-        var willCollideOnStarboardBow = willCollideWithWallOnStarboardBow || willCollideWithBallOnStarboardBow;
-
-        if (willCollideOnPortBow && willCollideOnStarboardBow) {
-            // TODO: check behind. If would collide, stop ball or halt machine. Should try and make general function for checks from port-bow/starboard-bow calculations above.
-            return ballDirection.opposite();
-        }
-        if (willCollideOnPortBow) {
-            return ballDirection.toStarboard();
-        }
-        if (willCollideOnStarboardBow) {
-            return ballDirection.toPort();
-        }
-        // TODO: check if ball would collide with ball or corner of wall straight ahead.
-        return ballDirection;
+        var portBowWall = getWallAt(new Position(
+                ballPosition.x() + StepRule.portBowWallDx(ballDirection),
+                ballPosition.y() + StepRule.portBowWallDy(ballDirection)));
+        var starboardBowWall = getWallAt(new Position(
+                ballPosition.x() + StepRule.starboardBowWallDx(ballDirection),
+                ballPosition.y() + StepRule.starboardBowWallDy(ballDirection)));
+        return StepRule.transition(
+                ballDirection,
+                portBowWall, starboardBowWall,
+                ballOffThePortBow == null ? null : ballOffThePortBow.directionOfMovement(),
+                ballOffTheStarboardBow == null ? null : ballOffTheStarboardBow.directionOfMovement(),
+                stepTally);
     }
 
     public void updateReverse() {
@@ -268,21 +707,28 @@ public class Machine {
     }
 
     private void reverseBallDirections() {
+        if (changedPositions != null) {
+            changedPositions.addAll(ballPositions.keySet());
+        }
         ballPositions.replaceAll((_p, ball) -> ball.movingInOppositeDirection());
     }
 
+    @Override
     public DiagonalWall getWallAt(Position position) {
         return wallPositions.get(position);
     }
 
+    @Override
     public Ball getBallAt(Position position) {
         return ballPositions.get(position);
     }
 
+    @Override
     public boolean wallIsAt(Position position) {
         return wallPositions.containsKey(position);
     }
 
+    @Override
     public boolean ballIsAt(Position position) {
         return ballPositions.containsKey(position);
     }
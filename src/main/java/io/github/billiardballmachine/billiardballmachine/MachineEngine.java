@@ -0,0 +1,23 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.List;
+
+/**
+ * Something that can step a billiard-ball machine.
+ * {@link Machine} is the reference implementation; other engines must produce the same states step for step.
+ */
+public interface MachineEngine {
+    void loadFromConfiguration(List<String> configuration);
+
+    void update();
+
+    List<String> getConfigurationAsStrings();
+
+    /**
+     * A hash of the current balls and walls that does not depend on iteration order,
+     * so states of different engines can be compared cheaply.
+     */
+    default long stateHash() {
+        return StateHash.ofConfiguration(getConfigurationAsStrings());
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates random machines for benchmarking and differential testing.
+ * Objects are placed with {@link Machine#addBall} and {@link Machine#addWall},
+ * so the placement rules are respected and the result is always a valid machine.
+ * The same seed and parameters always produce the same machine.
+ */
+public class MachineGenerator {
+
+    private final int width;
+    private final int height;
+    private final double density;
+    private final double wallToBallRatio;
+
+    /**
+     * @param width the number of grid units along x that objects are placed in, starting at 0
+     * @param height the number of grid units along y that objects are placed in, starting at 0
+     * @param density the number of objects to place per grid cell, between 0 and 1
+     * @param wallToBallRatio the number of walls to place per ball
+     */
+    public MachineGenerator(int width, int height, double density, double wallToBallRatio) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Machine dimensions must be positive: " + width + "x" + height);
+        }
+        if (density < 0 || density > 1) {
+            throw new IllegalArgumentException("Density must be between 0 and 1: " + density);
+        }
+        if (wallToBallRatio < 0) {
+            throw new IllegalArgumentException("Wall to ball ratio must not be negative: " + wallToBallRatio);
+        }
+        this.width = width;
+        this.height = height;
+        this.density = density;
+        this.wallToBallRatio = wallToBallRatio;
+    }
+
+    public Machine generate(long seed) {
+        var random = new Random(seed);
+        var machine = Machine.emptyMachine();
+        var target = (long) (density * width * height);
+        var wallProbability = wallToBallRatio / (1 + wallToBallRatio);
+        // Dense layouts reject many placements, so give up after a bounded number of attempts.
+        var attemptsLeft = 4 * target;
+        long placed = 0;
+        while (placed < target && attemptsLeft-- > 0) {
+            var position = new Machine.Position(random.nextInt(width), random.nextInt(height));
+            if (random.nextDouble() < wallProbability) {
+                var wall = DiagonalWall.values()[random.nextInt(DiagonalWall.values().length)];
+                if (!machine.wallIsAt(position)) {
+                    machine.addWall(wall, position);
+                    placed += machine.wallIsAt(position) ? 1 : 0;
+                }
+            } else {
+                var direction = CardinalDirection.values()[random.nextInt(CardinalDirection.values().length)];
+                if (!machine.ballIsAt(position)) {
+                    machine.addBall(new Ball(direction), position);
+                    placed += machine.ballIsAt(position) ? 1 : 0;
+                }
+            }
+        }
+        return machine;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 6) {
+            System.err.println("Usage: MachineGenerator <seed> <width> <height> <density> <wallToBallRatio> <output.bbm>");
+            System.exit(1);
+        }
+        var generator = new MachineGenerator(
+                Integer.parseInt(args[1]),
+                Integer.parseInt(args[2]),
+                Double.parseDouble(args[3]),
+                Double.parseDouble(args[4]));
+        var machine = generator.generate(Long.parseLong(args[0]));
+        Files.write(Path.of(args[5]), machine.getConfigurationAsStrings());
+    }
+}
@@ -0,0 +1,248 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanRegistrationException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timers for the stepping engine.
+ * Counters are {@link LongAdder}s so that readers (JMX, dashboards) never contend with the stepping thread,
+ * and the engine only touches them once per step with totals it tallied locally.
+ */
+public class MachineMetrics implements MachineMetricsMBean {
+
+    // Bucket i counts steps that took [2^i, 2^(i+1)) nanoseconds; bucket 0 also holds 0ns steps.
+    static final int LATENCY_BUCKETS = 40;
+
+    private final LongAdder steps               = new LongAdder();
+    private final LongAdder ballsStepped        = new LongAdder();
+    private final LongAdder wallDeflections     = new LongAdder();
+    private final LongAdder portCollisions      = new LongAdder();
+    private final LongAdder starboardCollisions = new LongAdder();
+    private final LongAdder headOnReversals     = new LongAdder();
+    private final LongAdder stepNanos           = new LongAdder();
+    private final LongAdder allocatedBytes      = new LongAdder();
+    private final LongAdder tileCacheHits       = new LongAdder();
+    private final LongAdder tileCacheMisses     = new LongAdder();
+    private final LongAdder[] latencyHistogram  = new LongAdder[LATENCY_BUCKETS];
+
+    // The name these metrics are registered under, or null if they are not.
+    private ObjectName registeredName;
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = allocationMeasuringThreadMXBean();
+
+    private static com.sun.management.ThreadMXBean allocationMeasuringThreadMXBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported()
+                && bean.isThreadAllocatedMemoryEnabled()) {
+            return bean;
+        }
+        return null;
+    }
+
+    private volatile long ballCount;
+    private volatile long wallCount;
+
+    public MachineMetrics() {
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            latencyHistogram[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Tallies of what happened to the balls during a single step.
+     * The engine fills one of these with plain increments and hands it to {@link #recordStep}.
+     */
+    static final class StepTally implements StepRule.Collisions {
+        int wallDeflections;
+        int portCollisions;
+        int starboardCollisions;
+        int headOnReversals;
+
+        void reset() {
+            wallDeflections = 0;
+            portCollisions = 0;
+            starboardCollisions = 0;
+            headOnReversals = 0;
+        }
+
+        @Override
+        public void count(boolean wallOnPortBow, boolean wallOnStarboardBow, boolean ballOnPortBow, boolean ballOnStarboardBow) {
+            var collidesOnPortBow      = wallOnPortBow      || ballOnPortBow;
+            var collidesOnStarboardBow = wallOnStarboardBow || ballOnStarboardBow;
+            if (wallOnPortBow || wallOnStarboardBow) {
+                wallDeflections++;
+            }
+            if (collidesOnPortBow && collidesOnStarboardBow) {
+                if (ballOnPortBow || ballOnStarboardBow) {
+                    headOnReversals++;
+                }
+            } else if (ballOnPortBow) {
+                portCollisions++;
+            } else if (ballOnStarboardBow) {
+                starboardCollisions++;
+            }
+        }
+    }
+
+    void recordStep(int ballsStepped, StepTally tally, long durationNanos, long allocatedBytes, int ballCount, int wallCount) {
+        steps.increment();
+        this.ballsStepped.add(ballsStepped);
+        wallDeflections.add(tally.wallDeflections);
+        portCollisions.add(tally.portCollisions);
+        starboardCollisions.add(tally.starboardCollisions);
+        headOnReversals.add(tally.headOnReversals);
+        stepNanos.add(durationNanos);
+        if (allocatedBytes > 0) {
+            this.allocatedBytes.add(allocatedBytes);
+        }
+        latencyHistogram[latencyBucket(durationNanos)].increment();
+        this.ballCount = ballCount;
+        this.wallCount = wallCount;
+    }
+
+    /**
+     * Records tile lookups of an engine that pages its machine in from disk; a miss is a tile that had to be mapped in.
+     */
+    void recordTileCache(long hits, long misses) {
+        tileCacheHits.add(hits);
+        tileCacheMisses.add(misses);
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or -1 if the JVM cannot measure it.
+     */
+    static long currentThreadAllocatedBytes() {
+        if (THREAD_MX_BEAN == null) {
+            return -1;
+        }
+        return THREAD_MX_BEAN.getCurrentThreadAllocatedBytes();
+    }
+
+    static int latencyBucket(long durationNanos) {
+        if (durationNanos <= 1) {
+            return 0;
+        }
+        return Math.min(LATENCY_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(durationNanos));
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server under
+     * {@code io.github.billiardballmachine:type=Machine,name=<name>}.
+     * @param name a name distinguishing this machine from others in the same JVM
+     * @return the name the MBean was registered under
+     */
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        if (registeredName != null) {
+            throw new IllegalStateException("Metrics are already registered as " + registeredName);
+        }
+        var objectName = new ObjectName("io.github.billiardballmachine:type=Machine,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registeredName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Unregisters these metrics from the platform MBean server, if {@link #registerMBean} registered them.
+     */
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (InstanceNotFoundException e) {
+            // Already unregistered by someone else.
+        } catch (MBeanRegistrationException e) {
+            throw new IllegalStateException("Unregistering " + registeredName + " failed", e);
+        }
+        registeredName = null;
+    }
+
+    /**
+     * Registers the replacement under the name these metrics are registered under, in place of these, so that
+     * monitoring follows a machine that is replaced by another. Does nothing if these are not registered.
+     */
+    public synchronized void moveMBeanTo(MachineMetrics replacement) throws JMException {
+        if (registeredName == null) {
+            return;
+        }
+        var name = ObjectName.unquote(registeredName.getKeyProperty("name"));
+        unregisterMBean();
+        replacement.registerMBean(name);
+    }
+
+    @Override public long getSteps()               { return steps.sum(); }
+    @Override public long getBallsStepped()        { return ballsStepped.sum(); }
+    @Override public long getWallDeflections()     { return wallDeflections.sum(); }
+    @Override public long getPortCollisions()      { return portCollisions.sum(); }
+    @Override public long getStarboardCollisions() { return starboardCollisions.sum(); }
+    @Override public long getHeadOnReversals()     { return headOnReversals.sum(); }
+    @Override public long getBallCount()           { return ballCount; }
+    @Override public long getWallCount()           { return wallCount; }
+    @Override public long getTileCacheHits()       { return tileCacheHits.sum(); }
+    @Override public long getTileCacheMisses()     { return tileCacheMisses.sum(); }
+
+    /**
+     * The fraction of tile lookups served without mapping the tile in, or 0 if the engine does not page tiles.
+     */
+    @Override
+    public double getTileCacheHitRate() {
+        var hits = tileCacheHits.sum();
+        var total = hits + tileCacheMisses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Steps per second of time spent inside {@link Machine#update()}, i.e. excluding time the machine sat idle.
+     */
+    @Override
+    public double getStepsPerSecond() {
+        var nanos = stepNanos.sum();
+        return nanos == 0 ? 0 : steps.sum() * 1e9 / nanos;
+    }
+
+    @Override
+    public double getMeanStepLatencyNanos() {
+        var n = steps.sum();
+        return n == 0 ? 0 : (double) stepNanos.sum() / n;
+    }
+
+    @Override
+    public long[] getStepLatencyHistogram() {
+        var histogram = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            histogram[i] = latencyHistogram[i].sum();
+        }
+        return histogram;
+    }
+
+    /**
+     * Mean bytes allocated by the stepping thread per step, or 0 if the JVM cannot measure thread allocation.
+     */
+    @Override
+    public long getAllocatedBytesPerStep() {
+        var n = steps.sum();
+        return n == 0 ? 0 : allocatedBytes.sum() / n;
+    }
+
+    @Override
+    public void reset() {
+        steps.reset();
+        ballsStepped.reset();
+        wallDeflections.reset();
+        portCollisions.reset();
+        starboardCollisions.reset();
+        headOnReversals.reset();
+        stepNanos.reset();
+        allocatedBytes.reset();
+        tileCacheHits.reset();
+        tileCacheMisses.reset();
+        for (LongAdder bucket : latencyHistogram) {
+            bucket.reset();
+        }
+    }
+}
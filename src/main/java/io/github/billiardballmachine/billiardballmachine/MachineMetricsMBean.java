@@ -0,0 +1,23 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+/**
+ * JMX view of {@link MachineMetrics}.
+ */
+public interface MachineMetricsMBean {
+    long getSteps();
+    long getBallsStepped();
+    long getWallDeflections();
+    long getPortCollisions();
+    long getStarboardCollisions();
+    long getHeadOnReversals();
+    double getStepsPerSecond();
+    double getMeanStepLatencyNanos();
+    long[] getStepLatencyHistogram();
+    long getBallCount();
+    long getWallCount();
+    long getAllocatedBytesPerStep();
+    long getTileCacheHits();
+    long getTileCacheMisses();
+    double getTileCacheHitRate();
+    void reset();
+}
@@ -0,0 +1,36 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A copy of the balls and walls in a rectangle of grid cells, with positions relative to the rectangle's northwest corner.
+ * The region spans {@code width} by {@code height} cells: walls are anchored in cells {@code (0, 0)} to {@code (width - 1, height - 1)}
+ * and balls sit on grid points {@code (0, 0)} to {@code (width, height)}.
+ */
+public record MachineRegion(Map<Machine.Position, Ball> balls, Map<Machine.Position, DiagonalWall> walls, int width, int height) {
+
+    public boolean isEmpty() {
+        return balls.isEmpty() && walls.isEmpty();
+    }
+
+    /**
+     * Returns this region turned a quarter-turn clockwise, again anchored at {@code (0, 0)}.
+     */
+    public MachineRegion rotatedClockwise() {
+        // On screen, y points south, so a clockwise quarter-turn maps the point (x, y) to (height - y, x).
+        // A wall's cell spans (x, y) to (x + 1, y + 1), which maps to the cell anchored at (height - y - 1, x).
+        var rotatedBalls = new HashMap<Machine.Position, Ball>();
+        for (Map.Entry<Machine.Position, Ball> e : balls.entrySet()) {
+            var p = e.getKey();
+            var direction = e.getValue().directionOfMovement().toStarboard();
+            rotatedBalls.put(new Machine.Position(height - p.y(), p.x()), new Ball(direction));
+        }
+        var rotatedWalls = new HashMap<Machine.Position, DiagonalWall>();
+        for (Map.Entry<Machine.Position, DiagonalWall> e : walls.entrySet()) {
+            var p = e.getKey();
+            rotatedWalls.put(new Machine.Position(height - p.y() - 1, p.x()), e.getValue().rotateClockwise());
+        }
+        return new MachineRegion(rotatedBalls, rotatedWalls, height, width);
+    }
+}
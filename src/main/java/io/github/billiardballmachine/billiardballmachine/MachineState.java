@@ -0,0 +1,20 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.List;
+
+/**
+ * Read-only access to the balls and walls of a machine.
+ */
+public interface MachineState {
+    DiagonalWall getWallAt(Machine.Position position);
+
+    Ball getBallAt(Machine.Position position);
+
+    boolean wallIsAt(Machine.Position position);
+
+    boolean ballIsAt(Machine.Position position);
+
+    List<String> getConfigurationAsStrings();
+
+    long stateHash();
+}
@@ -0,0 +1,43 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event committed once per {@link Machine#update()}.
+ * The event duration is the step latency.
+ */
+@Name("io.github.billiardballmachine.MachineStep")
+@Label("Machine Step")
+@Category("Billiard Ball Machine")
+@Description("One update of a billiard-ball machine")
+class MachineStepEvent extends Event {
+    @Label("Balls Stepped")
+    long ballsStepped;
+
+    @Label("Wall Deflections")
+    long wallDeflections;
+
+    @Label("Port Collisions")
+    long portCollisions;
+
+    @Label("Starboard Collisions")
+    long starboardCollisions;
+
+    @Label("Head-On Reversals")
+    long headOnReversals;
+
+    @Label("Ball Count")
+    long ballCount;
+
+    @Label("Wall Count")
+    long wallCount;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+}
@@ -0,0 +1,311 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * An engine that steps characterised boxes by looking up what they emit instead of stepping the balls inside them.
+ * <p>
+ * The rest of the machine is stepped as usual, with the walls of each box taken out. A ball about to enter a box
+ * through one of its ports is taken out of the machine, and the box is run on its own while further balls can still
+ * arrive. When the window of its {@link TransferTable} closes, the balls the table says the box emits are put back
+ * into the machine at the steps it gives, and nothing inside the box is stepped meanwhile.
+ * <p>
+ * Whenever the box's run on its own might differ from what the whole machine would do, the box falls back to full
+ * simulation: its walls and the balls inside it, found by replaying its arrivals, are put back into the machine,
+ * which then steps them as usual until the box is empty again. That happens when a ball comes near the box other than
+ * through a port within the window, or when a combination of arrivals was not characterised.
+ */
+public final class MacroMachine implements MachineEngine {
+
+    private final List<Gate> gates = new ArrayList<>();
+    private Machine machine = Machine.emptyMachine();
+    private long steps;
+    private long tableHits;
+    private long fallbacks;
+
+    /**
+     * @param tables the boxes to step by table; they and the reach of their balls must not overlap
+     */
+    public MacroMachine(List<TransferTable> tables) {
+        for (TransferTable table : tables) {
+            for (Gate gate : gates) {
+                var reach = 2 * TransferTable.GUARD_DISTANCE + 2;
+                var a = table.box();
+                var b = gate.table.box();
+                if (a.min().x() - reach <= b.max().x() && b.min().x() - reach <= a.max().x()
+                        && a.min().y() - reach <= b.max().y() && b.min().y() - reach <= a.max().y()) {
+                    throw new IllegalArgumentException("Boxes are too close together: " + a.min() + " and " + b.min());
+                }
+            }
+            gates.add(new Gate(table));
+        }
+    }
+
+    private static final class Gate {
+        final TransferTable table;
+        final GateBox box;
+        /** Whether the machine's walls match the characterised ones, so the box can be stepped by table at all. */
+        boolean usable;
+        /** Whether the box's walls are out of the machine and its balls, if any, are stepped by table. */
+        boolean abstracted;
+        /** The step of the first arrival, or -1 while the box is empty. */
+        long windowStart = -1;
+        final List<TransferTable.Arrival> arrivals = new ArrayList<>();
+        /** The box on its own while the window is open. */
+        TransferTable.BoxRun run;
+        /** What the table says the box emits, once the window has closed. */
+        List<TransferTable.Emission> emissions;
+        int emitted;
+
+        Gate(TransferTable table) {
+            this.table = table;
+            this.box = table.box();
+        }
+
+        void clear() {
+            windowStart = -1;
+            arrivals.clear();
+            run = null;
+            emissions = null;
+            emitted = 0;
+        }
+    }
+
+    public long getTableHits() {
+        return tableHits;
+    }
+
+    /**
+     * @return how many times a box has fallen back to full simulation
+     */
+    public long getFallbacks() {
+        return fallbacks;
+    }
+
+    @Override
+    public void loadFromConfiguration(List<String> configuration) {
+        machine = Machine.emptyMachine();
+        machine.loadFromConfiguration(configuration);
+        steps = 0;
+        tableHits = 0;
+        fallbacks = 0;
+        for (Gate gate : gates) {
+            gate.clear();
+            gate.usable = wallsMatch(gate.box);
+            gate.abstracted = false;
+            if (gate.usable) {
+                tryToAbstract(gate);
+            }
+        }
+    }
+
+    // The box's own run has only its walls, so there must be no others within reach of the balls it emits.
+    private boolean wallsMatch(GateBox box) {
+        var matches = new boolean[] {true};
+        machine.forEachWall((p, wall) -> {
+            var distance = box.distance(p);
+            if (distance == 0 ? !wall.equals(box.walls().get(p)) : distance <= TransferTable.GUARD_DISTANCE + 1) {
+                matches[0] = false;
+            }
+        });
+        return matches[0] && box.walls().entrySet().stream().allMatch(e -> e.getValue().equals(machine.getWallAt(e.getKey())));
+    }
+
+    @Override
+    public void update() {
+        for (Gate gate : gates) {
+            if (gate.abstracted) {
+                admitArrivals(gate);
+            }
+        }
+        machine.update();
+        steps++;
+        for (Gate gate : gates) {
+            if (gate.abstracted) {
+                stepGate(gate);
+            } else if (gate.usable) {
+                tryToAbstract(gate);
+            }
+        }
+    }
+
+    /**
+     * Takes out the balls about to enter the box through a port, or falls back if anything else is near enough to
+     * tell that the box's walls and balls are missing from the machine.
+     */
+    private void admitArrivals(Gate gate) {
+        var box = gate.box;
+        var windowOpen = gate.emissions == null;
+        var offset = gate.windowStart < 0 ? 0 : steps - gate.windowStart;
+        var near = new ArrayList<Machine.Position>();
+        forEachBallNear(box, TransferTable.GUARD_DISTANCE, (p, ball) -> near.add(p));
+        var arriving = new ArrayList<Machine.Position>();
+        for (Machine.Position p : near) {
+            var direction = machine.getBallAt(p).directionOfMovement();
+            boolean allowed;
+            if (box.distance(p) <= 1) {
+                allowed = windowOpen && offset <= gate.table.window() && box.portOf(p, direction) >= 0 && isApartFrom(p, near, box);
+                arriving.add(p);
+            } else if (windowOpen) {
+                allowed = isApartFromRun(gate, p);
+            } else {
+                allowed = isEmitted(gate, p, direction);
+            }
+            if (!allowed) {
+                fallBack(gate);
+                return;
+            }
+        }
+        if (arriving.isEmpty()) {
+            return;
+        }
+        if (gate.windowStart < 0) {
+            gate.windowStart = steps;
+            gate.run = new TransferTable.BoxRun(box);
+        }
+        for (Machine.Position p : arriving) {
+            gate.arrivals.add(new TransferTable.Arrival(box.portOf(p, machine.getBallAt(p).directionOfMovement()), (int) offset));
+            machine.removeBall(p);
+        }
+        gate.arrivals.sort(Comparator.comparingInt(TransferTable.Arrival::port));
+        gate.run.arrive(gate.arrivals);
+    }
+
+    // Balls within two cells of each other can meet, so a ball can only leave the machine if no other is that close,
+    // apart from balls arriving at the box alongside it.
+    private static boolean isApartFrom(Machine.Position p, List<Machine.Position> near, GateBox box) {
+        for (Machine.Position other : near) {
+            if (!other.equals(p) && box.distance(other) > 1 && chebyshev(p, other) <= 2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isApartFromRun(Gate gate, Machine.Position p) {
+        if (gate.run == null) {
+            return true;
+        }
+        var apart = new boolean[] {true};
+        gate.run.forEachBallExcept(List.of(), (q, ball) -> apart[0] &= chebyshev(p, q) > 2);
+        return apart[0];
+    }
+
+    private boolean isEmitted(Gate gate, Machine.Position p, CardinalDirection direction) {
+        var step = steps - gate.windowStart;
+        for (int i = 0; i < gate.emitted; i++) {
+            var emission = gate.emissions.get(i);
+            if (emission.direction() == direction && emission.positionAt(step).equals(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int chebyshev(Machine.Position a, Machine.Position b) {
+        return Math.max(Math.abs(a.x() - b.x()), Math.abs(a.y() - b.y()));
+    }
+
+    private void stepGate(Gate gate) {
+        if (gate.windowStart < 0) {
+            return;
+        }
+        var offset = steps - gate.windowStart;
+        if (gate.emissions == null) {
+            gate.run.step();
+            if (offset <= gate.table.window()) {
+                return;
+            }
+            var emissions = gate.table.lookup(gate.arrivals);
+            if (emissions.isEmpty()) {
+                fallBack(gate);
+                return;
+            }
+            tableHits++;
+            gate.emissions = emissions.get().stream().sorted(Comparator.comparingInt(TransferTable.Emission::offset)).toList();
+            gate.run = null;
+        }
+        while (gate.emitted < gate.emissions.size() && gate.emissions.get(gate.emitted).offset() == offset) {
+            var emission = gate.emissions.get(gate.emitted++);
+            machine.restoreCell(emission.position(), new Ball(emission.direction()), machine.getWallAt(emission.position()));
+        }
+        if (gate.emitted == gate.emissions.size()) {
+            gate.clear();
+        }
+    }
+
+    /**
+     * Puts the box's walls, and the balls inside it that have not been emitted yet, back into the machine.
+     */
+    private void fallBack(Gate gate) {
+        fallbacks++;
+        var box = gate.box;
+        box.walls().forEach((p, wall) -> machine.restoreCell(p, machine.getBallAt(p), wall));
+        forEachBallInside(gate, (p, ball) -> machine.restoreCell(p, ball, machine.getWallAt(p)));
+        gate.clear();
+        gate.abstracted = false;
+    }
+
+    private void forEachBallInside(Gate gate, BiConsumer<Machine.Position, Ball> action) {
+        if (gate.windowStart < 0) {
+            return;
+        }
+        if (gate.run != null) {
+            gate.run.forEachBallExcept(List.of(), action);
+            return;
+        }
+        var run = new TransferTable.BoxRun(gate.box);
+        var offset = steps - gate.windowStart;
+        while (run.time() < offset) {
+            run.arrive(gate.arrivals);
+            run.step();
+        }
+        run.forEachBallExcept(gate.emissions.subList(0, gate.emitted), action);
+    }
+
+    // A box is stepped by table again once no ball is inside it or about to enter it.
+    private void tryToAbstract(Gate gate) {
+        var box = gate.box;
+        var clear = new boolean[] {true};
+        forEachBallNear(box, 1, (p, ball) -> clear[0] = false);
+        if (clear[0]) {
+            box.walls().keySet().forEach(p -> machine.restoreCell(p, machine.getBallAt(p), null));
+            gate.abstracted = true;
+        }
+    }
+
+    // Visits only the balls within the given distance of the box, so the cost of a gate does not grow with the machine.
+    private void forEachBallNear(GateBox box, int distance, BiConsumer<Machine.Position, Ball> action) {
+        machine.forEachBallIn(
+                box.min().plus(new Machine.Position(-distance, -distance)),
+                box.max().plus(new Machine.Position(distance, distance)),
+                action);
+    }
+
+    /**
+     * The whole machine, with the boxes' walls and balls put back in.
+     */
+    private Machine wholeMachine() {
+        var whole = machine.fork();
+        for (Gate gate : gates) {
+            if (gate.abstracted) {
+                gate.box.walls().forEach((p, wall) -> whole.restoreCell(p, whole.getBallAt(p), wall));
+                forEachBallInside(gate, (p, ball) -> whole.restoreCell(p, ball, whole.getWallAt(p)));
+            }
+        }
+        return whole;
+    }
+
+    @Override
+    public List<String> getConfigurationAsStrings() {
+        return wholeMachine().getConfigurationAsStrings();
+    }
+
+    @Override
+    public long stateHash() {
+        return wholeMachine().stateHash();
+    }
+}
@@ -1,8 +1,11 @@
 package io.github.billiardballmachine.billiardballmachine;
 
 import io.github.billiardballmachine.billiardballmachine.ui.MachineGridPanel;
+import io.github.billiardballmachine.billiardballmachine.ui.MachineLoader;
+import io.github.billiardballmachine.billiardballmachine.ui.MinimapPanel;
 
 import javax.imageio.ImageIO;
+import javax.management.JMException;
 import javax.swing.AbstractButton;
 import javax.swing.ButtonGroup;
 import javax.swing.ImageIcon;
@@ -14,6 +17,7 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JSlider;
 import javax.swing.JToggleButton;
 import javax.swing.JToolBar;
@@ -31,10 +35,12 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.file.Files;
 
 public class Main {
 
+    private static final int TILE_SIZE = 64;
+    private static final int TILE_CACHE_SIZE = 256;
+
     private static void createAndShowUI(Machine machine, BufferedImage ballImage) throws IOException {
         var frame = new JFrame("Billiard Ball Machine");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -43,6 +49,7 @@ public class Main {
         var machinePanel = new MachineGridPanel(machine, 0, 0, 25, ballImage);
         rootPanel.add(machinePanel, BorderLayout.CENTER);
         rootPanel.add(createMachineControlToolBar(machinePanel), BorderLayout.NORTH);
+        rootPanel.add(new MinimapPanel(machinePanel), BorderLayout.EAST);
 
         var machineEditorToolBar = new JToolBar();
         machineEditorToolBar.add(new JLabel("Add: "));
@@ -101,7 +108,14 @@ public class Main {
             machinePanel.repaint();
         });
         machineEditorToolBar.add(clearButton);
-        createButtonGroup(ballButton, nwseWallButton, swneWallButton, turnButton, deleteButton, clearButton);
+        var selectButton = new JToggleButton("Select");
+        selectButton.addActionListener(e -> {
+            machinePanel.setCursor(null);
+            machinePanel.setHoverIcon(null, null);
+            machinePanel.setSelectionMode(true);
+        });
+        machineEditorToolBar.add(selectButton);
+        createButtonGroup(ballButton, nwseWallButton, swneWallButton, turnButton, deleteButton, clearButton, selectButton);
         machineEditorToolBar.setOrientation(SwingConstants.VERTICAL);
         rootPanel.add(machineEditorToolBar, BorderLayout.WEST);
 
@@ -127,17 +141,44 @@ public class Main {
         var menuBar = new JMenuBar();
         var fileMenu = new JMenu("File");
         fileMenu.setMnemonic(KeyEvent.VK_F);
+        var loadingLabel = new JLabel();
+        var loadingBar = new JProgressBar(0, 100);
+        var cancelLoadingButton = new JButton("Cancel");
+        var loadingPanel = new JPanel(new BorderLayout());
+        loadingPanel.add(loadingLabel, BorderLayout.WEST);
+        loadingPanel.add(loadingBar, BorderLayout.CENTER);
+        loadingPanel.add(cancelLoadingButton, BorderLayout.EAST);
+        loadingPanel.setVisible(false);
+        rootPanel.add(loadingPanel, BorderLayout.SOUTH);
+        var currentLoader = new MachineLoader[1];
+        cancelLoadingButton.addActionListener(e -> {
+            if (currentLoader[0] != null) {
+                currentLoader[0].cancel(false);
+            }
+        });
         var openMenuItem = new JMenuItem("Open...");
         openMenuItem.addActionListener(e -> {
             var result = fileChooser.showOpenDialog(frame);
             if (result == JFileChooser.APPROVE_OPTION) {
                 var file = fileChooser.getSelectedFile();
-                try {
-                    var configuration = Files.readAllLines(file.toPath());
-                    machinePanel.loadMachineFromConfiguration(configuration);
-                } catch (IOException ioException) {
-                    ioException.printStackTrace();
+                if (currentLoader[0] != null) {
+                    currentLoader[0].cancel(false);
                 }
+                // Large files are read and built in the background, showing what has loaded so far.
+                var loader = new MachineLoader(file.toPath(), machinePanel);
+                currentLoader[0] = loader;
+                loadingLabel.setText("Loading " + file.getName() + " ");
+                loadingBar.setValue(0);
+                loadingPanel.setVisible(true);
+                loader.addPropertyChangeListener(pce -> {
+                    if ("progress".equals(pce.getPropertyName())) {
+                        loadingBar.setValue((Integer) pce.getNewValue());
+                    } else if (loader.isDone() && currentLoader[0] == loader) {
+                        currentLoader[0] = null;
+                        loadingPanel.setVisible(false);
+                    }
+                });
+                loader.execute();
             }
         });
         fileMenu.add(openMenuItem);
@@ -159,8 +200,77 @@ public class Main {
             }
         });
         fileMenu.add(exportMenuItem);
+        fileMenu.addSeparator();
+
+        var tiledFileChooser = new JFileChooser();
+        tiledFileChooser.setCurrentDirectory(new File("./examples/"));
+        tiledFileChooser.setAcceptAllFileFilterUsed(false);
+        var tiledFileFilter = new FileFilter() {
+            @Override
+            public boolean accept(File pathname) {
+                return !pathname.isFile() || pathname.getName().endsWith(".bbmt");
+            }
+
+            @Override
+            public String getDescription() {
+                return "Tiled Billiard-Ball Machine files (*.bbmt)";
+            }
+        };
+        tiledFileChooser.addChoosableFileFilter(tiledFileFilter);
+        tiledFileChooser.setFileFilter(tiledFileFilter);
+        // Numbers the MBeans of opened tiled machines, since several files may share a name or be opened again.
+        var tiledMachinesOpened = new int[1];
+        var openTiledMenuItem = new JMenuItem("Open Tiled...");
+        openTiledMenuItem.addActionListener(e -> {
+            var result = tiledFileChooser.showOpenDialog(frame);
+            if (result == JFileChooser.APPROVE_OPTION) {
+                var file = tiledFileChooser.getSelectedFile();
+                TiledMachine tiledMachine = null;
+                try {
+                    tiledMachine = TiledMachine.open(file.toPath(), TILE_CACHE_SIZE);
+                    tiledMachine.getMetrics().registerMBean(file.getName() + " #" + ++tiledMachinesOpened[0]);
+                    machinePanel.showTiledMachine(tiledMachine);
+                } catch (IOException | JMException exception) {
+                    if (tiledMachine != null) {
+                        try {
+                            tiledMachine.close();
+                        } catch (IOException closeException) {
+                            exception.addSuppressed(closeException);
+                        }
+                    }
+                    exception.printStackTrace();
+                }
+            }
+        });
+        fileMenu.add(openTiledMenuItem);
+        var exportTiledMenuItem = new JMenuItem("Export Tiled...");
+        exportTiledMenuItem.addActionListener(e -> {
+            var result = tiledFileChooser.showSaveDialog(frame);
+            if (result == JFileChooser.APPROVE_OPTION) {
+                var file = tiledFileChooser.getSelectedFile();
+                try {
+                    TiledMachine.fromConfiguration(
+                            file.toPath(), machinePanel.getMachineConfiguration(), TILE_SIZE, 4, TILE_CACHE_SIZE).close();
+                } catch (IOException ioException) {
+                    ioException.printStackTrace();
+                }
+            }
+        });
+        fileMenu.add(exportTiledMenuItem);
         menuBar.add(fileMenu);
 
+        var editMenu = new JMenu("Edit");
+        editMenu.setMnemonic(KeyEvent.VK_E);
+        addMenuItem(editMenu, "Undo",   KeyStroke.getKeyStroke(KeyEvent.VK_Z, ActionEvent.CTRL_MASK), machinePanel::undo);
+        addMenuItem(editMenu, "Redo",   KeyStroke.getKeyStroke(KeyEvent.VK_Y, ActionEvent.CTRL_MASK), machinePanel::redo);
+        editMenu.addSeparator();
+        addMenuItem(editMenu, "Cut",    KeyStroke.getKeyStroke(KeyEvent.VK_X, ActionEvent.CTRL_MASK), machinePanel::cutSelection);
+        addMenuItem(editMenu, "Copy",   KeyStroke.getKeyStroke(KeyEvent.VK_C, ActionEvent.CTRL_MASK), machinePanel::copySelection);
+        addMenuItem(editMenu, "Paste",  KeyStroke.getKeyStroke(KeyEvent.VK_V, ActionEvent.CTRL_MASK), machinePanel::pasteClipboard);
+        addMenuItem(editMenu, "Delete", KeyStroke.getKeyStroke(KeyEvent.VK_DELETE, 0), machinePanel::deleteSelection);
+        addMenuItem(editMenu, "Rotate Selection", KeyStroke.getKeyStroke(KeyEvent.VK_R, ActionEvent.CTRL_MASK), machinePanel::rotateSelection);
+        menuBar.add(editMenu);
+
         frame.setJMenuBar(menuBar);
 
         frame.pack();
@@ -179,6 +289,13 @@ public class Main {
         return button;
     }
 
+    private static void addMenuItem(JMenu menu, String label, KeyStroke accelerator, Runnable action) {
+        var menuItem = new JMenuItem(label);
+        menuItem.setAccelerator(accelerator);
+        menuItem.addActionListener(e -> action.run());
+        menu.add(menuItem);
+    }
+
     private static ButtonGroup createButtonGroup(AbstractButton... buttons) {
         var buttonGroup = new ButtonGroup();
         for (AbstractButton button : buttons) {
@@ -222,6 +339,11 @@ public class Main {
 
     public static void main(String[] args) throws IOException {
         var machine = Machine.emptyMachine();
+        try {
+            machine.getMetrics().registerMBean("editor");
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
         var ballImage = ImageIO.read(Main.class.getResource("billiard_ball.png"));
         SwingUtilities.invokeLater(() -> {
             try {
@@ -0,0 +1,236 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.Arrays;
+
+/**
+ * Counts of balls and walls per square block of cells, at every power-of-two block size from {@value #BASE_SIZE}
+ * cells up, so that an overview of a machine of any size can be drawn by reading one block per pixel.
+ * <p>
+ * A machine keeps its pyramid up to date as objects are added, removed and moved; see {@link Machine#trackOccupancy}.
+ * A ball moving one cell only changes the counts when it crosses into another block, and then only at the levels
+ * where it does, so keeping the pyramid costs little beyond stepping. Blocks are numbered by floor division, so block
+ * {@code (bx, by)} at level {@code l} holds the cells from {@code bx * blockSize(l)} to {@code (bx + 1) * blockSize(l) - 1}.
+ */
+public final class OccupancyPyramid {
+
+    private static final int BASE_SHIFT = 3;
+    static final int BASE_SIZE = 1 << BASE_SHIFT;
+    // Enough levels for a single block to cover the whole integer plane.
+    private static final int LEVELS = 32 - BASE_SHIFT + 1;
+
+    private final Level[] levels = new Level[LEVELS];
+
+    OccupancyPyramid() {
+        for (int level = 0; level < LEVELS; level++) {
+            levels[level] = new Level();
+        }
+    }
+
+    /**
+     * The counts of one level, in an open-addressing table with linear probing, so that a ball crossing into another
+     * block updates two slots of primitive arrays rather than boxing keys. Blocks with no balls and no walls are removed.
+     */
+    private static final class Level {
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        long[] keys;
+        int[] balls;
+        int[] walls;
+        int size;
+
+        Level() {
+            allocate(16);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            balls = new int[capacity];
+            walls = new int[capacity];
+            size = 0;
+        }
+
+        private int slotOf(long key) {
+            var h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 40) & keys.length - 1;
+        }
+
+        /**
+         * @return the slot holding the key, or the empty slot where it would go
+         */
+        int find(long key) {
+            var mask = keys.length - 1;
+            var slot = slotOf(key);
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = slot + 1 & mask;
+            }
+            return slot;
+        }
+
+        void add(long key, int ballDelta, int wallDelta) {
+            var slot = find(key);
+            if (keys[slot] == EMPTY) {
+                if (2 * (size + 1) > keys.length) {
+                    grow();
+                    slot = find(key);
+                }
+                keys[slot] = key;
+                size++;
+            }
+            balls[slot] += ballDelta;
+            walls[slot] += wallDelta;
+            if (balls[slot] == 0 && walls[slot] == 0) {
+                remove(slot);
+            }
+        }
+
+        // Shifts later entries of the probe run back so that every key stays reachable from its home slot.
+        private void remove(int slot) {
+            var mask = keys.length - 1;
+            size--;
+            var gap = slot;
+            var next = gap + 1 & mask;
+            while (keys[next] != EMPTY) {
+                var home = slotOf(keys[next]);
+                if ((next - home & mask) >= (next - gap & mask)) {
+                    keys[gap] = keys[next];
+                    balls[gap] = balls[next];
+                    walls[gap] = walls[next];
+                    gap = next;
+                }
+                next = next + 1 & mask;
+            }
+            keys[gap] = EMPTY;
+            balls[gap] = 0;
+            walls[gap] = 0;
+        }
+
+        private void grow() {
+            var oldKeys = keys;
+            var oldBalls = balls;
+            var oldWalls = walls;
+            allocate(2 * oldKeys.length);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    var slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    balls[slot] = oldBalls[i];
+                    walls[slot] = oldWalls[i];
+                    size++;
+                }
+            }
+        }
+    }
+
+    public int levelCount() {
+        return LEVELS;
+    }
+
+    /**
+     * @return the number of cells along each side of a block at the level
+     */
+    public static long blockSize(int level) {
+        return 1L << BASE_SHIFT + level;
+    }
+
+    /**
+     * @return the lowest level whose blocks are at least the given number of cells across
+     */
+    public int levelFor(double cellsPerBlock) {
+        var level = 0;
+        while (level < LEVELS - 1 && blockSize(level) < cellsPerBlock) {
+            level++;
+        }
+        return level;
+    }
+
+    public int ballCount(int level, long bx, long by) {
+        var counts = levels[level];
+        return counts.balls[counts.find(key(bx, by))];
+    }
+
+    public int wallCount(int level, long bx, long by) {
+        var counts = levels[level];
+        return counts.walls[counts.find(key(bx, by))];
+    }
+
+    /**
+     * The occupied blocks at the level, as block coordinates, or null if there are none.
+     * This costs time in proportion to the number of occupied blocks, so read it from a coarse level.
+     */
+    public Partition.Region occupiedBlocks(int level) {
+        var blocks = levels[level];
+        if (blocks.size == 0) {
+            return null;
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (long key : blocks.keys) {
+            if (key == Level.EMPTY) {
+                continue;
+            }
+            var bx = (int) (key >> 32);
+            var by = (int) key;
+            minX = Math.min(minX, bx);
+            minY = Math.min(minY, by);
+            maxX = Math.max(maxX, bx);
+            maxY = Math.max(maxY, by);
+        }
+        return new Partition.Region(minX, minY, maxX, maxY);
+    }
+
+    /**
+     * @return the number of occupied blocks at the level
+     */
+    public int blockCount(int level) {
+        return levels[level].size;
+    }
+
+    private static long key(long bx, long by) {
+        return bx << 32 | by & 0xFFFFFFFFL;
+    }
+
+    void addBall(Machine.Position position) {
+        add(position.x(), position.y(), 1, 0);
+    }
+
+    void removeBall(Machine.Position position) {
+        add(position.x(), position.y(), -1, 0);
+    }
+
+    void addWall(Machine.Position position) {
+        add(position.x(), position.y(), 0, 1);
+    }
+
+    void removeWall(Machine.Position position) {
+        add(position.x(), position.y(), 0, -1);
+    }
+
+    void moveBall(Machine.Position from, Machine.Position to) {
+        // Levels above the first at which both cells share a block are unchanged.
+        for (int level = 0; level < LEVELS; level++) {
+            var shift = BASE_SHIFT + level;
+            var fromX = (long) from.x() >> shift;
+            var fromY = (long) from.y() >> shift;
+            var toX = (long) to.x() >> shift;
+            var toY = (long) to.y() >> shift;
+            if (fromX == toX && fromY == toY) {
+                return;
+            }
+            levels[level].add(key(fromX, fromY), -1, 0);
+            levels[level].add(key(toX, toY), 1, 0);
+        }
+    }
+
+    void clear() {
+        for (Level level : levels) {
+            level.allocate(16);
+        }
+    }
+
+    private void add(int x, int y, int balls, int walls) {
+        for (int level = 0; level < LEVELS; level++) {
+            var shift = BASE_SHIFT + level;
+            levels[level].add(key((long) x >> shift, (long) y >> shift), balls, walls);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An open-addressing hash table from cells to one-byte codes, stored outside the heap.
+ * <p>
+ * The layout of the buffer is {@code capacity} packed cell keys of 8 bytes each (x in the high half, y in the low half),
+ * followed by {@code capacity} codes of 1 byte each, where 0 marks an empty slot.
+ * Collisions are resolved by linear probing, and removals shift later entries back so that no tombstones are needed.
+ */
+final class OffHeapCellTable {
+
+    static final int BYTES_PER_SLOT = Long.BYTES + 1;
+    // The largest power of two whose buffer still fits in a ByteBuffer.
+    private static final int MAX_CAPACITY = 1 << 27;
+    private static final int MIN_CAPACITY = 16;
+    private static final byte[] ZEROS = new byte[8192];
+
+    private ByteBuffer buffer;
+    private int capacity;
+    private int mask;
+    private int shift;
+    private int size;
+
+    OffHeapCellTable(int expectedEntries) {
+        allocate(capacityFor(expectedEntries));
+    }
+
+    static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    static int x(long key) {
+        return (int) (key >> 32);
+    }
+
+    static int y(long key) {
+        return (int) key;
+    }
+
+    private static int capacityFor(int entries) {
+        // Keep the table at most half full.
+        var capacity = MIN_CAPACITY;
+        while (capacity < MAX_CAPACITY && capacity / 2 < entries) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        this.buffer = ByteBuffer.allocateDirect(capacity * BYTES_PER_SLOT).order(ByteOrder.nativeOrder());
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.shift = Long.SIZE - Integer.numberOfTrailingZeros(capacity);
+        this.size = 0;
+    }
+
+    private int home(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long byteSize() {
+        return buffer == null ? 0 : (long) capacity * BYTES_PER_SLOT;
+    }
+
+    long keyAt(int slot) {
+        return buffer.getLong(slot * Long.BYTES);
+    }
+
+    byte codeAt(int slot) {
+        return buffer.get(capacity * Long.BYTES + slot);
+    }
+
+    private void setSlot(int slot, long key, byte code) {
+        buffer.putLong(slot * Long.BYTES, key);
+        buffer.put(capacity * Long.BYTES + slot, code);
+    }
+
+    /**
+     * @return the code stored for the cell, or 0 if there is none
+     */
+    byte get(long key) {
+        for (int slot = home(key); ; slot = (slot + 1) & mask) {
+            var code = codeAt(slot);
+            if (code == 0 || keyAt(slot) == key) {
+                return code;
+            }
+        }
+    }
+
+    /**
+     * @return the code previously stored for the cell, or 0 if there was none
+     */
+    byte put(long key, byte code) {
+        return insert(key, code, false);
+    }
+
+    /**
+     * Stores the larger of the given code and the one already stored for the cell.
+     */
+    void putMax(long key, byte code) {
+        insert(key, code, true);
+    }
+
+    private byte insert(long key, byte code, boolean keepLarger) {
+        if (code == 0) {
+            throw new IllegalArgumentException("Code 0 marks empty slots");
+        }
+        for (int slot = home(key); ; slot = (slot + 1) & mask) {
+            var existing = codeAt(slot);
+            if (existing == 0) {
+                setSlot(slot, key, code);
+                if (++size > capacity / 2) {
+                    grow();
+                }
+                return 0;
+            }
+            if (keyAt(slot) == key) {
+                if (!keepLarger || code > existing) {
+                    buffer.put(capacity * Long.BYTES + slot, code);
+                }
+                return existing;
+            }
+        }
+    }
+
+    /**
+     * @return the code that was stored for the cell, or 0 if there was none
+     */
+    byte remove(long key) {
+        int slot = home(key);
+        for (; ; slot = (slot + 1) & mask) {
+            var code = codeAt(slot);
+            if (code == 0) {
+                return 0;
+            }
+            if (keyAt(slot) == key) {
+                break;
+            }
+        }
+        var removed = codeAt(slot);
+        // Shift back any later entry of the probe run that would otherwise become unreachable.
+        int gap = slot;
+        for (int next = (gap + 1) & mask; codeAt(next) != 0; next = (next + 1) & mask) {
+            var nextKey = keyAt(next);
+            var nextHome = home(nextKey);
+            if (((next - nextHome) & mask) >= ((next - gap) & mask)) {
+                setSlot(gap, nextKey, codeAt(next));
+                gap = next;
+            }
+        }
+        buffer.put(capacity * Long.BYTES + gap, (byte) 0);
+        size--;
+        return removed;
+    }
+
+    void clear() {
+        if (size == 0) {
+            return;
+        }
+        for (int i = 0; i < capacity; i += ZEROS.length) {
+            buffer.put(capacity * Long.BYTES + i, ZEROS, 0, Math.min(ZEROS.length, capacity - i));
+        }
+        size = 0;
+    }
+
+    private void grow() {
+        if (capacity == MAX_CAPACITY) {
+            throw new IllegalStateException("Off-heap table is full at " + size + " entries");
+        }
+        var old = buffer;
+        var oldCapacity = capacity;
+        allocate(capacity * 2);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            var code = old.get(oldCapacity * Long.BYTES + slot);
+            if (code != 0) {
+                insert(old.getLong(slot * Long.BYTES), code, false);
+            }
+        }
+        DirectBuffers.free(old);
+    }
+
+    /**
+     * Frees the table's memory. The table must not be used afterwards.
+     */
+    void release() {
+        if (buffer != null) {
+            DirectBuffers.free(buffer);
+            buffer = null;
+            size = 0;
+        }
+    }
+}
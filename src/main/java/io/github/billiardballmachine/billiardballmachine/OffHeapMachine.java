@@ -0,0 +1,258 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * A billiard-ball machine whose balls and walls are stored outside the Java heap,
+ * for layouts too large to keep as one map entry per object.
+ * <p>
+ * Balls and walls each live in an {@link OffHeapCellTable}, where a ball is stored as its direction's ordinal plus one
+ * and a wall as its own ordinal plus one. Stepping reads and writes those tables directly,
+ * so the heap used by a step does not grow with the size of the machine.
+ * The memory is freed by {@link #close()}; the machine cannot be used after that.
+ */
+public final class OffHeapMachine implements MachineEngine, MachineState, AutoCloseable {
+
+    private static final CardinalDirection[] DIRECTIONS = CardinalDirection.values();
+    private static final DiagonalWall[] WALLS = DiagonalWall.values();
+
+    private OffHeapCellTable balls;
+    private OffHeapCellTable nextBalls;
+    private OffHeapCellTable walls;
+
+    private final PlacementRule.Cells cells = new PlacementRule.Cells() {
+        @Override
+        public int ballCode(int x, int y) {
+            return balls.get(OffHeapCellTable.key(x, y));
+        }
+
+        @Override
+        public int wallCode(int x, int y) {
+            return walls.get(OffHeapCellTable.key(x, y));
+        }
+    };
+
+    private final MachineMetrics metrics = new MachineMetrics();
+    private final MachineMetrics.StepTally stepTally = new MachineMetrics.StepTally();
+
+    public OffHeapMachine() {
+        this(0, 0);
+    }
+
+    /**
+     * Sizes the tables up front so that loading a machine of the given size does not have to grow them.
+     */
+    public OffHeapMachine(int expectedBalls, int expectedWalls) {
+        balls = new OffHeapCellTable(expectedBalls);
+        nextBalls = new OffHeapCellTable(expectedBalls);
+        walls = new OffHeapCellTable(expectedWalls);
+    }
+
+    /**
+     * How much memory a machine takes.
+     * @param offHeapBytes the bytes reserved outside the heap for the machine's tables
+     * @param objects the number of balls and walls
+     */
+    public record Footprint(long offHeapBytes, long objects) {
+        public double bytesPerObject() {
+            return objects == 0 ? 0 : (double) offHeapBytes / objects;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d objects in %d off-heap bytes (%.1f bytes per object)", objects, offHeapBytes, bytesPerObject());
+        }
+    }
+
+    public Footprint footprint() {
+        ensureOpen();
+        return new Footprint(balls.byteSize() + nextBalls.byteSize() + walls.byteSize(), (long) balls.size() + walls.size());
+    }
+
+    public MachineMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        if (balls == null) {
+            return;
+        }
+        balls.release();
+        nextBalls.release();
+        walls.release();
+        balls = null;
+        nextBalls = null;
+        walls = null;
+    }
+
+    private void ensureOpen() {
+        if (balls == null) {
+            throw new IllegalStateException("Machine has been closed");
+        }
+    }
+
+    @Override
+    public void loadFromConfiguration(List<String> configuration) {
+        ensureOpen();
+        balls.clear();
+        walls.clear();
+        for (String configString : configuration) {
+            try (
+                    var s = new Scanner(configString)
+            ) {
+                var objectType = s.next();
+                switch (objectType) {
+                    case "ball" -> {
+                        var direction = CardinalDirection.fromConfigurationString(s.next());
+                        addBall(direction, s.nextInt(), s.nextInt());
+                    }
+                    case "wall" -> {
+                        var wall = DiagonalWall.fromConfigurationString(s.next());
+                        addWall(wall, s.nextInt(), s.nextInt());
+                    }
+                    default -> throw new IllegalArgumentException("Unexpected type in configuration string: " + objectType);
+                }
+            }
+        }
+    }
+
+    void addBall(CardinalDirection direction, int x, int y) {
+        if (PlacementRule.ballFits(cells, x, y)) {
+            balls.put(OffHeapCellTable.key(x, y), (byte) (direction.ordinal() + 1));
+        }
+    }
+
+    void addWall(DiagonalWall wall, int x, int y) {
+        if (PlacementRule.wallFits(cells, wall, x, y)) {
+            walls.put(OffHeapCellTable.key(x, y), (byte) (wall.ordinal() + 1));
+        }
+    }
+
+    private boolean hasBall(int x, int y) {
+        return balls.get(OffHeapCellTable.key(x, y)) != 0;
+    }
+
+    private CardinalDirection ballAt(int x, int y) {
+        var code = balls.get(OffHeapCellTable.key(x, y));
+        return code == 0 ? null : DIRECTIONS[code - 1];
+    }
+
+    private DiagonalWall wallAt(int x, int y) {
+        var code = walls.get(OffHeapCellTable.key(x, y));
+        return code == 0 ? null : WALLS[code - 1];
+    }
+
+    @Override
+    public void update() {
+        ensureOpen();
+        var allocatedBefore = MachineMetrics.currentThreadAllocatedBytes();
+        var start = System.nanoTime();
+        stepTally.reset();
+        var ballsStepped = balls.size();
+
+        nextBalls.clear();
+        for (int slot = 0, capacity = balls.capacity(); slot < capacity; slot++) {
+            var code = balls.codeAt(slot);
+            if (code == 0) {
+                continue;
+            }
+            var key = balls.keyAt(slot);
+            var x = OffHeapCellTable.x(key);
+            var y = OffHeapCellTable.y(key);
+            var direction = DIRECTIONS[code - 1];
+            var port = direction.toPort();
+            var starboard = direction.toStarboard();
+            var aheadX = x + direction.horizontalCoefficient();
+            var aheadY = y + direction.verticalCoefficient();
+            var nextDirection = StepRule.nextDirection(
+                    direction,
+                    wallAt(x + StepRule.portBowWallDx(direction), y + StepRule.portBowWallDy(direction)),
+                    wallAt(x + StepRule.starboardBowWallDx(direction), y + StepRule.starboardBowWallDy(direction)),
+                    ballAt(aheadX + port.horizontalCoefficient(), aheadY + port.verticalCoefficient()),
+                    ballAt(aheadX + starboard.horizontalCoefficient(), aheadY + starboard.verticalCoefficient()),
+                    stepTally);
+            // Like Machine.update, balls that end up in the same space merge, keeping the higher direction ordinal.
+            nextBalls.putMax(
+                    OffHeapCellTable.key(x + nextDirection.horizontalCoefficient(), y + nextDirection.verticalCoefficient()),
+                    (byte) (nextDirection.ordinal() + 1));
+        }
+        var stepped = balls;
+        balls = nextBalls;
+        nextBalls = stepped;
+
+        var duration = System.nanoTime() - start;
+        var allocated = allocatedBefore < 0 ? 0 : MachineMetrics.currentThreadAllocatedBytes() - allocatedBefore;
+        metrics.recordStep(ballsStepped, stepTally, duration, allocated, balls.size(), walls.size());
+    }
+
+    @Override
+    public List<String> getConfigurationAsStrings() {
+        ensureOpen();
+        var configuration = new ArrayList<String>(balls.size() + walls.size());
+        for (int slot = 0; slot < balls.capacity(); slot++) {
+            var code = balls.codeAt(slot);
+            if (code != 0) {
+                var key = balls.keyAt(slot);
+                configuration.add(String.format("ball %s %d %d",
+                        DIRECTIONS[code - 1].toConfigurationString(), OffHeapCellTable.x(key), OffHeapCellTable.y(key)));
+            }
+        }
+        for (int slot = 0; slot < walls.capacity(); slot++) {
+            var code = walls.codeAt(slot);
+            if (code != 0) {
+                var key = walls.keyAt(slot);
+                configuration.add(String.format("wall %s %d %d",
+                        WALLS[code - 1].toConfigurationString(), OffHeapCellTable.x(key), OffHeapCellTable.y(key)));
+            }
+        }
+        return configuration;
+    }
+
+    @Override
+    public long stateHash() {
+        ensureOpen();
+        long hash = 0;
+        for (int slot = 0; slot < balls.capacity(); slot++) {
+            var code = balls.codeAt(slot);
+            if (code != 0) {
+                var key = balls.keyAt(slot);
+                hash += StateHash.ofBall(OffHeapCellTable.x(key), OffHeapCellTable.y(key), DIRECTIONS[code - 1]);
+            }
+        }
+        for (int slot = 0; slot < walls.capacity(); slot++) {
+            var code = walls.codeAt(slot);
+            if (code != 0) {
+                var key = walls.keyAt(slot);
+                hash += StateHash.ofWall(OffHeapCellTable.x(key), OffHeapCellTable.y(key), WALLS[code - 1]);
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public DiagonalWall getWallAt(Machine.Position position) {
+        ensureOpen();
+        return wallAt(position.x(), position.y());
+    }
+
+    @Override
+    public Ball getBallAt(Machine.Position position) {
+        ensureOpen();
+        var direction = ballAt(position.x(), position.y());
+        return direction == null ? null : new Ball(direction);
+    }
+
+    @Override
+    public boolean wallIsAt(Machine.Position position) {
+        return getWallAt(position) != null;
+    }
+
+    @Override
+    public boolean ballIsAt(Machine.Position position) {
+        ensureOpen();
+        return hasBall(position.x(), position.y());
+    }
+}
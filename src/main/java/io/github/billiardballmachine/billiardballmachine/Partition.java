@@ -0,0 +1,153 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A split of the whole plane into a grid of rectangular regions, one per worker of a distributed run.
+ * Columns are separated at the x coordinates of {@code xCuts} and rows at the y coordinates of {@code yCuts};
+ * the outermost regions extend indefinitely, so every position belongs to exactly one region.
+ * Regions are numbered row by row, starting from the northwest.
+ */
+public final class Partition {
+
+    private final int[] xCuts;
+    private final int[] yCuts;
+
+    /**
+     * @param xCuts strictly increasing x coordinates at which new columns start
+     * @param yCuts strictly increasing y coordinates at which new rows start
+     */
+    public Partition(int[] xCuts, int[] yCuts) {
+        this.xCuts = xCuts.clone();
+        this.yCuts = yCuts.clone();
+        for (int[] cuts : List.of(this.xCuts, this.yCuts)) {
+            for (int i = 1; i < cuts.length; i++) {
+                if (cuts[i] <= cuts[i - 1]) {
+                    throw new IllegalArgumentException("Cuts must be strictly increasing: " + Arrays.toString(cuts));
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the plane so that each column, and each row, holds about the same number of the configuration's objects.
+     * Fewer regions than asked for are made if the objects do not spread over enough distinct coordinates.
+     */
+    public static Partition balanced(List<String> configuration, int columns, int rows) {
+        var xs = new ArrayList<Integer>();
+        var ys = new ArrayList<Integer>();
+        for (String configString : configuration) {
+            var parts = configString.trim().split("\\s+");
+            xs.add(Integer.parseInt(parts[2]));
+            ys.add(Integer.parseInt(parts[3]));
+        }
+        return new Partition(quantileCuts(xs, columns), quantileCuts(ys, rows));
+    }
+
+    private static int[] quantileCuts(List<Integer> coordinates, int parts) {
+        coordinates.sort(null);
+        var cuts = new ArrayList<Integer>();
+        for (int i = 1; i < parts && !coordinates.isEmpty(); i++) {
+            var cut = coordinates.get(i * coordinates.size() / parts);
+            if (cuts.isEmpty() || cut > cuts.get(cuts.size() - 1)) {
+                cuts.add(cut);
+            }
+        }
+        return cuts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Reads a partition written by {@link #toString()}.
+     */
+    public static Partition parse(String s) {
+        var halves = s.split("/", -1);
+        if (halves.length != 2) {
+            throw new IllegalArgumentException("Expected x cuts and y cuts separated by '/': " + s);
+        }
+        return new Partition(parseCuts(halves[0]), parseCuts(halves[1]));
+    }
+
+    private static int[] parseCuts(String s) {
+        return s.isBlank() ? new int[0] : Arrays.stream(s.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * @return the cuts as comma-separated x cuts and y cuts separated by a slash, e.g. {@code 10,20/5}
+     */
+    @Override
+    public String toString() {
+        return joinCuts(xCuts) + "/" + joinCuts(yCuts);
+    }
+
+    private static String joinCuts(int[] cuts) {
+        var joined = new StringBuilder();
+        for (int cut : cuts) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(cut);
+        }
+        return joined.toString();
+    }
+
+    public int columns() {
+        return xCuts.length + 1;
+    }
+
+    public int rows() {
+        return yCuts.length + 1;
+    }
+
+    public int regionCount() {
+        return columns() * rows();
+    }
+
+    public Region region(int index) {
+        var column = index % columns();
+        var row = index / columns();
+        return new Region(
+                column == 0 ? Integer.MIN_VALUE : xCuts[column - 1],
+                row == 0 ? Integer.MIN_VALUE : yCuts[row - 1],
+                column == columns() - 1 ? Integer.MAX_VALUE : xCuts[column] - 1,
+                row == rows() - 1 ? Integer.MAX_VALUE : yCuts[row] - 1);
+    }
+
+    public int regionOf(int x, int y) {
+        return bandOf(yCuts, y) * columns() + bandOf(xCuts, x);
+    }
+
+    private static int bandOf(int[] cuts, int v) {
+        var i = Arrays.binarySearch(cuts, v);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    /**
+     * The positions from {@code (minX, minY)} to {@code (maxX, maxY)} inclusive.
+     */
+    public record Region(int minX, int minY, int maxX, int maxY) {
+        public boolean contains(int x, int y) {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY;
+        }
+
+        public boolean contains(Machine.Position position) {
+            return contains(position.x(), position.y());
+        }
+
+        public boolean intersects(Region other) {
+            return minX <= other.maxX && other.minX <= maxX && minY <= other.maxY && other.minY <= maxY;
+        }
+
+        /**
+         * Grows the region by {@code n} cells on every side, stopping at the edges of the integer plane.
+         */
+        public Region expandedBy(int n) {
+            return new Region(
+                    (int) Math.max(Integer.MIN_VALUE, (long) minX - n),
+                    (int) Math.max(Integer.MIN_VALUE, (long) minY - n),
+                    (int) Math.min(Integer.MAX_VALUE, (long) maxX + n),
+                    (int) Math.min(Integer.MAX_VALUE, (long) maxY + n));
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+/**
+ * A hash array mapped trie that can be forked in O(1).
+ * <p>
+ * Every node records the map that owns it. A map mutates the nodes it owns in place, like an ordinary hash map,
+ * and copies the path to any node it doesn't own before changing it. {@link #fork()} gives both the original and the fork
+ * new owner tokens, so from then on neither changes the nodes they share, and a fork costs memory only for what changes after it.
+ * <p>
+ * A map is not safe for concurrent mutation, but a fork can be read on another thread while the original keeps changing,
+ * as long as the fork itself is handed over safely (through a final field, an executor, a concurrent collection, etc.).
+ * Null keys and values are not supported.
+ */
+final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private Node root;
+    private int size;
+    private Object owner = new Object();
+
+    PersistentHashMap() {}
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns a map with the given entries. No other map shares its nodes yet, so they are all built in place.
+     */
+    static <K, V> PersistentHashMap<K, V> copyOf(Map<K, V> entries) {
+        var map = new PersistentHashMap<K, V>();
+        entries.forEach(map::put);
+        return map;
+    }
+
+    /**
+     * Returns a map with the same entries as this one, sharing all of this map's structure.
+     */
+    PersistentHashMap<K, V> fork() {
+        // This map may have been mutating its nodes in place; it must not touch them again now that they are shared.
+        owner = new Object();
+        return new PersistentHashMap<>(root, size);
+    }
+
+    private static int hash(Object key) {
+        // The finalizer of MurmurHash3, so that the low bits used by the first levels of the trie are well mixed.
+        var h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (root == null || key == null) {
+            return null;
+        }
+        // Walk the bitmap nodes iteratively; this is the hot path when stepping a machine.
+        var hash = hash(key);
+        var node = root;
+        for (int shift = 0; node instanceof BitmapNode bitmapNode; shift += BITS) {
+            var bit = BitmapNode.bit(shift, hash);
+            if ((bitmapNode.bitmap & bit) == 0) {
+                return null;
+            }
+            var i = bitmapNode.index(bit);
+            var slots = bitmapNode.slots;
+            var k = slots[i];
+            if (k != null) {
+                return key.equals(k) ? (V) slots[i + 1] : null;
+            }
+            node = (Node) slots[i + 1];
+        }
+        return (V) node.find(0, hash, key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("PersistentHashMap does not support null keys or values");
+        }
+        var hash = hash(key);
+        var result = new Result();
+        root = root == null
+                ? new BitmapNode(owner, 0, new Object[0]).put(owner, 0, hash, key, value, result)
+                : root.put(owner, 0, hash, key, value, result);
+        if (result.previous == null) {
+            size++;
+        }
+        return (V) result.previous;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (root == null || key == null) {
+            return null;
+        }
+        var result = new Result();
+        root = root.remove(owner, 0, hash(key), key, result);
+        if (result.previous != null) {
+            size--;
+        }
+        return (V) result.previous;
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        // Replacing the value of an existing key never changes the shape of the trie, so iterating while putting is safe.
+        for (Map.Entry<K, V> e : entrySet()) {
+            put(e.getKey(), function.apply(e.getKey(), e.getValue()));
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static final class Result {
+        Object previous;
+    }
+
+    private abstract static class Node {
+        final Object owner;
+
+        Node(Object owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * @return the value for the key, or null
+         */
+        abstract Object find(int shift, int hash, Object key);
+
+        /**
+         * @return this node, or the node that replaces it
+         */
+        abstract Node put(Object owner, int shift, int hash, Object key, Object value, Result result);
+
+        /**
+         * @return this node, the node that replaces it, or null if it is now empty
+         */
+        abstract Node remove(Object owner, int shift, int hash, Object key, Result result);
+
+        // Entries are stored as pairs of slots: (key, value), or (null, child node).
+        abstract Object[] slots();
+
+        // The number of slots in use; bitmap nodes may have spare capacity at the end.
+        abstract int usedSlots();
+    }
+
+    private static final class BitmapNode extends Node {
+        int bitmap;
+        Object[] slots;
+
+        BitmapNode(Object owner, int bitmap, Object[] slots) {
+            super(owner);
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private BitmapNode editableBy(Object owner) {
+            return this.owner == owner ? this : new BitmapNode(owner, bitmap, Arrays.copyOf(slots, 2 * Integer.bitCount(bitmap)));
+        }
+
+        private static int bit(int shift, int hash) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private int index(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            var bit = bit(shift, hash);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            var i = index(bit);
+            var k = slots[i];
+            if (k == null) {
+                return ((Node) slots[i + 1]).find(shift + BITS, hash, key);
+            }
+            return key.equals(k) ? slots[i + 1] : null;
+        }
+
+        @Override
+        Node put(Object owner, int shift, int hash, Object key, Object value, Result result) {
+            var bit = bit(shift, hash);
+            var i = index(bit);
+            if ((bitmap & bit) == 0) {
+                var used = 2 * Integer.bitCount(bitmap);
+                if (this.owner == owner && used < slots.length) {
+                    // Owned and with spare capacity: shift the later pairs up in place.
+                    System.arraycopy(slots, i, slots, i + 2, used - i);
+                    slots[i] = key;
+                    slots[i + 1] = value;
+                    bitmap |= bit;
+                    return this;
+                }
+                // Nodes being built by their owner grow geometrically; copies for other owners are sized exactly.
+                var capacity = this.owner == owner ? Math.min(2 * 32, Math.max(4, 2 * used)) : used + 2;
+                var newSlots = new Object[capacity];
+                System.arraycopy(slots, 0, newSlots, 0, i);
+                newSlots[i] = key;
+                newSlots[i + 1] = value;
+                System.arraycopy(slots, i, newSlots, i + 2, used - i);
+                var editable = this.owner == owner ? this : new BitmapNode(owner, bitmap, null);
+                editable.bitmap = bitmap | bit;
+                editable.slots = newSlots;
+                return editable;
+            }
+            var k = slots[i];
+            var v = slots[i + 1];
+            if (k == null) {
+                var child = (Node) v;
+                var newChild = child.put(owner, shift + BITS, hash, key, value, result);
+                if (newChild == child) {
+                    return this;
+                }
+                var editable = editableBy(owner);
+                editable.slots[i + 1] = newChild;
+                return editable;
+            }
+            if (key.equals(k)) {
+                result.previous = v;
+                if (v == value) {
+                    return this;
+                }
+                var editable = editableBy(owner);
+                editable.slots[i + 1] = value;
+                return editable;
+            }
+            var child = createNode(owner, shift + BITS, k, v, hash, key, value);
+            var editable = editableBy(owner);
+            editable.slots[i] = null;
+            editable.slots[i + 1] = child;
+            return editable;
+        }
+
+        @Override
+        Node remove(Object owner, int shift, int hash, Object key, Result result) {
+            var bit = bit(shift, hash);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            var i = index(bit);
+            var k = slots[i];
+            if (k == null) {
+                var child = (Node) slots[i + 1];
+                var newChild = child.remove(owner, shift + BITS, hash, key, result);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    var editable = editableBy(owner);
+                    editable.slots[i + 1] = newChild;
+                    return editable;
+                }
+            } else if (key.equals(k)) {
+                result.previous = slots[i + 1];
+            } else {
+                return this;
+            }
+            // The slot pair at i goes away.
+            if (bitmap == bit) {
+                return null;
+            }
+            var used = 2 * Integer.bitCount(bitmap);
+            var newSlots = new Object[used - 2];
+            System.arraycopy(slots, 0, newSlots, 0, i);
+            System.arraycopy(slots, i + 2, newSlots, i, used - i - 2);
+            var editable = this.owner == owner ? this : new BitmapNode(owner, bitmap, null);
+            editable.bitmap = bitmap & ~bit;
+            editable.slots = newSlots;
+            return editable;
+        }
+
+        @Override
+        Object[] slots() {
+            return slots;
+        }
+
+        @Override
+        int usedSlots() {
+            return 2 * Integer.bitCount(bitmap);
+        }
+
+        private static Node createNode(Object owner, int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+            var hash1 = hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(owner, hash1, new Object[] { key1, value1, key2, value2 });
+            }
+            var ignored = new Result();
+            return new BitmapNode(owner, 0, new Object[0])
+                    .put(owner, shift, hash1, key1, value1, ignored)
+                    .put(owner, shift, hash2, key2, value2, ignored);
+        }
+    }
+
+    // Keys whose full hashes are equal.
+    private static final class CollisionNode extends Node {
+        final int hash;
+        Object[] slots;
+
+        CollisionNode(Object owner, int hash, Object[] slots) {
+            super(owner);
+            this.hash = hash;
+            this.slots = slots;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < slots.length; i += 2) {
+                if (key.equals(slots[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            var i = indexOf(key);
+            return i < 0 ? null : slots[i + 1];
+        }
+
+        @Override
+        Node put(Object owner, int shift, int hash, Object key, Object value, Result result) {
+            if (hash != this.hash) {
+                // Split: this node moves down a level next to the new key.
+                return new BitmapNode(owner, BitmapNode.bit(shift, this.hash), new Object[] { null, this })
+                        .put(owner, shift, hash, key, value, result);
+            }
+            var i = indexOf(key);
+            var editable = this.owner == owner ? this : new CollisionNode(owner, hash, slots.clone());
+            if (i >= 0) {
+                result.previous = slots[i + 1];
+                editable.slots[i + 1] = value;
+                return editable;
+            }
+            var newSlots = new Object[slots.length + 2];
+            System.arraycopy(slots, 0, newSlots, 0, slots.length);
+            newSlots[slots.length] = key;
+            newSlots[slots.length + 1] = value;
+            editable.slots = newSlots;
+            return editable;
+        }
+
+        @Override
+        Node remove(Object owner, int shift, int hash, Object key, Result result) {
+            var i = indexOf(key);
+            if (i < 0) {
+                return this;
+            }
+            result.previous = slots[i + 1];
+            if (slots.length == 2) {
+                return null;
+            }
+            var newSlots = new Object[slots.length - 2];
+            System.arraycopy(slots, 0, newSlots, 0, i);
+            System.arraycopy(slots, i + 2, newSlots, i, slots.length - i - 2);
+            return new CollisionNode(owner, hash, newSlots);
+        }
+
+        @Override
+        Object[] slots() {
+            return slots;
+        }
+
+        @Override
+        int usedSlots() {
+            return slots.length;
+        }
+    }
+
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        // Each frame is a node and the index of the next pair to visit in it.
+        private final Deque<Node> nodeStack = new ArrayDeque<>();
+        private final Deque<Integer> indexStack = new ArrayDeque<>();
+        private Map.Entry<K, V> next;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                nodeStack.push(root);
+                indexStack.push(0);
+            }
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (!nodeStack.isEmpty()) {
+                var node = nodeStack.peek();
+                var slots = node.slots();
+                int i = indexStack.pop();
+                if (i >= node.usedSlots()) {
+                    nodeStack.pop();
+                    continue;
+                }
+                indexStack.push(i + 2);
+                if (slots[i] == null) {
+                    nodeStack.push((Node) slots[i + 1]);
+                    indexStack.push(0);
+                } else {
+                    next = new SimpleImmutableEntry<>((K) slots[i], (V) slots[i + 1]);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            var entry = next;
+            advance();
+            return entry;
+        }
+    }
+}
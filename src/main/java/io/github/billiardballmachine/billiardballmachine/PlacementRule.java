@@ -0,0 +1,40 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+/**
+ * The placement rules of {@link Machine#addBall} and {@link Machine#addWall}, for engines that store cells as codes:
+ * a ball as its direction's ordinal plus one, a wall as its ordinal plus one, and 0 for nothing.
+ */
+final class PlacementRule {
+
+    interface Cells {
+        int ballCode(int x, int y);
+
+        int wallCode(int x, int y);
+    }
+
+    private static final int NWSE = DiagonalWall.NORTHWEST_TO_SOUTHEAST.ordinal() + 1;
+    private static final int SWNE = DiagonalWall.SOUTHWEST_TO_NORTHEAST.ordinal() + 1;
+
+    private PlacementRule() {}
+
+    static boolean ballFits(Cells cells, int x, int y) {
+        var ballIntersects = cells.ballCode(x, y) != 0
+                || cells.ballCode(x, y - 1) != 0
+                || cells.ballCode(x + 1, y) != 0
+                || cells.ballCode(x, y + 1) != 0
+                || cells.ballCode(x - 1, y) != 0;
+        var wallTouches = cells.wallCode(x, y) == NWSE
+                || cells.wallCode(x, y - 1) == SWNE
+                || cells.wallCode(x - 1, y) == SWNE
+                || cells.wallCode(x - 1, y - 1) == NWSE;
+        return !ballIntersects && !wallTouches;
+    }
+
+    static boolean wallFits(Cells cells, DiagonalWall wall, int x, int y) {
+        var intersectsBall = switch (wall) {
+            case NORTHWEST_TO_SOUTHEAST -> cells.ballCode(x, y) != 0 || cells.ballCode(x + 1, y + 1) != 0;
+            case SOUTHWEST_TO_NORTHEAST -> cells.ballCode(x, y + 1) != 0 || cells.ballCode(x + 1, y) != 0;
+        };
+        return cells.wallCode(x, y) == 0 && !intersectsBall;
+    }
+}
@@ -0,0 +1,187 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Steps one region of a machine split across workers.
+ * <p>
+ * A ball's next position depends on what is within one cell of it, so a cell's contents after a step depend on
+ * what was within two cells of it before. A worker therefore keeps a halo of {@code 2k} cells around its region,
+ * steps {@code k} times on its own, and then only trusts its own region: it drops every other ball, sends its
+ * neighbours the balls that lie in their halos, and rebuilds its own halo from what they send. Balls that crossed
+ * into a neighbour's region were stepped correctly by that neighbour too, so they never have to be handed over.
+ * Walls do not move, so every worker is given the walls its halo can reach once, up front.
+ */
+public final class RegionWorker implements Callable<List<String>> {
+
+    private final int id;
+    private final Partition partition;
+    private final int stepsPerExchange;
+    private final long steps;
+    private final List<String> configuration;
+    private final HaloTransport transport;
+
+    /**
+     * @param configuration the balls and walls within this worker's region and halo, as split by {@link DistributedCoordinator}
+     * @param stepsPerExchange how many steps to take between halo exchanges; the halo is twice as wide
+     */
+    public RegionWorker(int id, Partition partition, int stepsPerExchange, long steps, List<String> configuration, HaloTransport transport) {
+        if (stepsPerExchange < 1) {
+            throw new IllegalArgumentException("Must take at least one step between exchanges");
+        }
+        this.id = id;
+        this.partition = partition;
+        this.stepsPerExchange = stepsPerExchange;
+        this.steps = steps;
+        this.configuration = configuration;
+        this.transport = transport;
+    }
+
+    static int haloWidth(int stepsPerExchange) {
+        return 2 * stepsPerExchange;
+    }
+
+    /**
+     * Runs every step and returns the balls and walls of this worker's own region.
+     */
+    @Override
+    public List<String> call() throws IOException, InterruptedException {
+        var machine = Machine.emptyMachine();
+        machine.restoreFromConfiguration(configuration);
+        var region = partition.region(id);
+        var halo = haloWidth(stepsPerExchange);
+        // The workers whose halo overlaps this region are exactly those whose region overlaps this worker's halo,
+        // so the same workers are sent to and received from.
+        var peers = new ArrayList<Integer>();
+        for (int peer = 0; peer < partition.regionCount(); peer++) {
+            if (peer != id && partition.region(peer).expandedBy(halo).intersects(region)) {
+                peers.add(peer);
+            }
+        }
+
+        long stepped = 0;
+        for (long round = 0; stepped < steps; round++) {
+            var roundSteps = Math.min(stepsPerExchange, steps - stepped);
+            for (long i = 0; i < roundSteps; i++) {
+                machine.update();
+            }
+            stepped += roundSteps;
+            removeBallsOutside(machine, region);
+            if (stepped < steps) {
+                exchangeHalo(machine, round, peers, halo);
+            }
+        }
+        return ownConfiguration(machine, region);
+    }
+
+    private void exchangeHalo(Machine machine, long round, List<Integer> peers, int halo) throws IOException, InterruptedException {
+        for (int peer : peers) {
+            var peerHalo = partition.region(peer).expandedBy(halo);
+            var balls = new ArrayList<Integer>();
+            machine.forEachBall((p, ball) -> {
+                if (peerHalo.contains(p)) {
+                    balls.add(p.x());
+                    balls.add(p.y());
+                    balls.add(ball.directionOfMovement().ordinal());
+                }
+            });
+            transport.send(peer, new HaloMessage(id, round, balls.stream().mapToInt(Integer::intValue).toArray()));
+        }
+        var directions = CardinalDirection.values();
+        for (int peer : peers) {
+            var message = transport.receive(peer);
+            if (message.round() != round) {
+                throw new IllegalStateException("Worker " + id + " expected round " + round + " from worker " + peer + " but got " + message.round());
+            }
+            var balls = message.balls();
+            for (int i = 0; i < balls.length; i += 3) {
+                var position = new Machine.Position(balls[i], balls[i + 1]);
+                machine.restoreCell(position, new Ball(directions[balls[i + 2]]), machine.getWallAt(position));
+            }
+        }
+    }
+
+    private static void removeBallsOutside(Machine machine, Partition.Region region) {
+        var outside = new ArrayList<Machine.Position>();
+        machine.forEachBall((p, ball) -> {
+            if (!region.contains(p)) {
+                outside.add(p);
+            }
+        });
+        for (Machine.Position p : outside) {
+            machine.removeBall(p);
+        }
+    }
+
+    private static List<String> ownConfiguration(Machine machine, Partition.Region region) {
+        var own = new ArrayList<String>();
+        for (String configString : machine.getConfigurationAsStrings()) {
+            var parts = configString.split(" ");
+            if (region.contains(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]))) {
+                own.add(configString);
+            }
+        }
+        return own;
+    }
+
+    /**
+     * Runs a worker in its own process, as started by {@link DistributedCoordinator#runInProcesses}.
+     * <p>
+     * Usage: {@code RegionWorker <id> <partition> <steps per exchange> <steps> <configuration.bbm> <result.bbm> [<host:port>...]}
+     * with one address per worker, and the partition written as by {@link Partition#toString()}.
+     * Without addresses, the worker listens on a free local port, prints the port number on a line of its own,
+     * and then reads the addresses of all workers, separated by spaces, from a line of standard input.
+     */
+    public static void main(String[] args) throws Exception {
+        var id = Integer.parseInt(args[0]);
+        var partition = Partition.parse(args[1]);
+        var stepsPerExchange = Integer.parseInt(args[2]);
+        var steps = Long.parseLong(args[3]);
+        var configuration = Files.readAllLines(Path.of(args[4]));
+        var result = Path.of(args[5]);
+        var transport = args.length > 6
+                ? new SocketHaloTransport(id, parseAddresses(Arrays.copyOfRange(args, 6, args.length)))
+                : reportPortAndReadAddresses(id);
+        try (transport) {
+            var own = new RegionWorker(id, partition, stepsPerExchange, steps, configuration, transport).call();
+            Files.write(result, own);
+        }
+    }
+
+    // Binding a free port here, rather than being handed one found free earlier, leaves no window for another process to take it.
+    private static SocketHaloTransport reportPortAndReadAddresses(int id) throws IOException {
+        var transport = new SocketHaloTransport(id, new InetSocketAddress("localhost", 0));
+        try {
+            System.out.println(transport.localPort());
+            System.out.flush();
+            var line = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII)).readLine();
+            if (line == null) {
+                throw new IOException("Expected the addresses of the workers on standard input");
+            }
+            transport.setAddresses(parseAddresses(line.trim().split(" ")));
+            return transport;
+        } catch (IOException e) {
+            transport.close();
+            throw e;
+        }
+    }
+
+    private static List<InetSocketAddress> parseAddresses(String[] hostsAndPorts) {
+        var addresses = new ArrayList<InetSocketAddress>();
+        for (String address : hostsAndPorts) {
+            var hostAndPort = address.split(":");
+            addresses.add(new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,199 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport between workers in separate processes, possibly on separate hosts, over TCP.
+ * <p>
+ * Every worker listens at its own address. A worker opens one connection to each worker it sends to,
+ * the first time it sends, and announces its index on it. Incoming connections are read by background threads
+ * into a queue per sender, so a worker never blocks sending while its peers are sending too.
+ * A sender closing its connection is only an error if a message from it is waited for afterwards, since workers
+ * close their transports as soon as they finish.
+ */
+public final class SocketHaloTransport implements HaloTransport {
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 30_000;
+
+    private final int self;
+    private List<InetSocketAddress> addresses;
+    private final ServerSocket serverSocket;
+    private final Map<Integer, DataOutputStream> outputs = new HashMap<>();
+    private final Map<Integer, BlockingQueue<HaloMessage>> inboxes = new ConcurrentHashMap<>();
+    private final List<Socket> sockets = new ArrayList<>();
+    // Senders whose connections have ended; everything they sent is already in their inboxes.
+    private final Set<Integer> closedSenders = ConcurrentHashMap.newKeySet();
+    private volatile IOException readFailure;
+
+    /**
+     * Starts listening at {@code addresses.get(self)}.
+     * @param addresses the address of every worker, indexed by worker
+     */
+    public SocketHaloTransport(int self, List<InetSocketAddress> addresses) throws IOException {
+        this(self, addresses.get(self));
+        setAddresses(addresses);
+    }
+
+    /**
+     * Starts listening at the given address, whose port may be 0 to listen on a free port, as given by {@link #localPort()}.
+     * {@link #setAddresses} must be called before the first message is sent.
+     */
+    public SocketHaloTransport(int self, InetSocketAddress listenAddress) throws IOException {
+        this.self = self;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(listenAddress);
+        var acceptor = new Thread(this::acceptConnections, "halo-accept-" + self);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int localPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param addresses the address of every worker, indexed by worker
+     */
+    public void setAddresses(List<InetSocketAddress> addresses) {
+        this.addresses = List.copyOf(addresses);
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                var socket = serverSocket.accept();
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                var reader = new Thread(() -> readMessages(socket), "halo-read-" + self);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    readFailure = e;
+                }
+                return;
+            }
+        }
+    }
+
+    private void readMessages(Socket socket) {
+        try (
+                var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))
+        ) {
+            var sender = in.readInt();
+            var inbox = inbox(sender);
+            while (true) {
+                long round;
+                try {
+                    round = in.readLong();
+                } catch (EOFException e) {
+                    closedSenders.add(sender);
+                    return;
+                }
+                var balls = new int[in.readInt()];
+                for (int i = 0; i < balls.length; i++) {
+                    balls[i] = in.readInt();
+                }
+                inbox.put(new HaloMessage(sender, round, balls));
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                readFailure = e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private BlockingQueue<HaloMessage> inbox(int sender) {
+        return inboxes.computeIfAbsent(sender, s -> new LinkedBlockingQueue<>());
+    }
+
+    @Override
+    public void send(int worker, HaloMessage message) throws IOException, InterruptedException {
+        var out = outputs.get(worker);
+        if (out == null) {
+            out = connect(worker);
+            outputs.put(worker, out);
+        }
+        out.writeLong(message.round());
+        out.writeInt(message.balls().length);
+        for (int v : message.balls()) {
+            out.writeInt(v);
+        }
+        out.flush();
+    }
+
+    // Peers may still be starting up, so keep trying for a while.
+    private DataOutputStream connect(int worker) throws IOException, InterruptedException {
+        var deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while (true) {
+            var socket = new Socket();
+            try {
+                socket.connect(addresses.get(worker));
+                socket.setTcpNoDelay(true);
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+                var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeInt(self);
+                return out;
+            } catch (ConnectException e) {
+                socket.close();
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @Override
+    public HaloMessage receive(int worker) throws IOException, InterruptedException {
+        var inbox = inbox(worker);
+        while (true) {
+            // Looked at before polling, so that an empty inbox afterwards means nothing more will come.
+            var closed = closedSenders.contains(worker);
+            var message = inbox.poll(100, TimeUnit.MILLISECONDS);
+            if (message != null) {
+                return message;
+            }
+            if (readFailure != null) {
+                throw readFailure;
+            }
+            if (closed) {
+                throw new EOFException("Worker " + worker + " closed its connection");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.List;
+
+/**
+ * Order-independent hashing of machine states.
+ * Each ball and wall is hashed on its own and the element hashes are summed,
+ * so a state can be hashed in whatever order an engine happens to store it.
+ */
+final class StateHash {
+
+    private StateHash() {}
+
+    static long ofBall(Machine.Position position, Ball ball) {
+        return ofBall(position.x(), position.y(), ball.directionOfMovement());
+    }
+
+    static long ofBall(int x, int y, CardinalDirection direction) {
+        return ofElement(x, y, direction.ordinal());
+    }
+
+    static long ofWall(Machine.Position position, DiagonalWall wall) {
+        return ofWall(position.x(), position.y(), wall);
+    }
+
+    static long ofWall(int x, int y, DiagonalWall wall) {
+        return ofElement(x, y, CardinalDirection.values().length + wall.ordinal());
+    }
+
+    private static long ofElement(int x, int y, int tag) {
+        var packed = ((long) x << 32) | (y & 0xFFFFFFFFL);
+        return mix(packed ^ ((tag + 1L) * 0x9E3779B97F4A7C15L));
+    }
+
+    // Finalizer from SplitMix64.
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    static long ofConfiguration(List<String> configuration) {
+        long hash = 0;
+        for (String configString : configuration) {
+            var parts = configString.trim().split("\\s+");
+            var position = new Machine.Position(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+            hash += switch (parts[0]) {
+                case "ball" -> ofBall(position, new Ball(CardinalDirection.fromConfigurationString(parts[1])));
+                case "wall" -> ofWall(position, DiagonalWall.fromConfigurationString(parts[1]));
+                default -> throw new IllegalArgumentException("Unexpected type in configuration string: " + parts[0]);
+            };
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,417 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes what happens to the balls of a {@link Machine} at each step, as one batch of events per step, to
+ * subscribers that each watch a region or the whole machine. See {@link Machine#publishStepEvents}.
+ * <p>
+ * The machine only works out events for balls near a watched region, found through an index of coarse buckets, so
+ * areas nobody watches cost one lookup per ball, and a machine nobody watches costs nothing. Each subscriber has a
+ * bounded buffer of batches, delivered on an executor as it requests them; when the buffer is full, its
+ * {@link OverflowPolicy} decides what the stepping thread does with the next batch.
+ */
+public final class StepEventPublisher implements Flow.Publisher<StepEventPublisher.Batch> {
+
+    public enum Kind {
+        /** A ball turned or reversed off a wall. */
+        WALL_DEFLECTION,
+        /** A ball turned or reversed off another ball. */
+        BALL_COLLISION,
+        /** A ball moved into the region from outside it. */
+        ENTERED_REGION,
+        /** A ball moved out of the region. */
+        LEFT_REGION,
+        /** Two balls moved into the same position and became one. */
+        MERGED
+    }
+
+    /**
+     * @param position where the ball was before the step, except for {@link Kind#ENTERED_REGION} and
+     *                 {@link Kind#MERGED}, where it is where the ball ended up
+     * @param direction the ball's direction after the step
+     */
+    public record Event(long step, Kind kind, Machine.Position position, CardinalDirection direction) {}
+
+    /**
+     * The events of the steps from {@code firstStep} to {@code lastStep}; more than one step only if batches were coalesced.
+     */
+    public record Batch(long firstStep, long lastStep, List<Event> events) {}
+
+    public enum OverflowPolicy {
+        /** Make the stepping thread wait until the subscriber has taken a batch. */
+        BLOCK,
+        /** Drop the new batch. */
+        DROP,
+        /** Add the new batch's events to the newest buffered batch. */
+        COALESCE
+    }
+
+    // Watched regions are indexed by buckets of 2^BUCKET_SHIFT cells on each side.
+    private static final int BUCKET_SHIFT = 6;
+
+    private final Executor executor;
+    // Changed only while synchronized on it, so that the index is always rebuilt from the latest subscriptions.
+    private final CopyOnWriteArrayList<RegionSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile Index index = Index.EMPTY;
+    private volatile Throwable lastSubscriberFailure;
+
+    private long step;
+    private final List<Event> events = new ArrayList<>();
+    // Entering and leaving depend on each subscriber's region, so moves are kept and compared with it per subscriber.
+    private final List<Move> moves = new ArrayList<>();
+
+    private record Move(Machine.Position from, Machine.Position to, CardinalDirection direction) {}
+
+    StepEventPublisher() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    StepEventPublisher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Which buckets hold some watched cell or a cell next to one, since a ball entering a region starts next to it.
+     */
+    private record Index(boolean all, boolean regional, Partition.Region bounds, Set<Long> buckets) {
+        static final Index EMPTY = new Index(false, false, null, Set.of());
+
+        boolean watches(Machine.Position p) {
+            if (all) {
+                return true;
+            }
+            return bounds != null && bounds.contains(p) && buckets.contains(bucket(p.x() >> BUCKET_SHIFT, p.y() >> BUCKET_SHIFT));
+        }
+
+        static Index of(List<RegionSubscription> subscriptions) {
+            var buckets = new HashSet<Long>();
+            Partition.Region bounds = null;
+            var all = false;
+            for (RegionSubscription subscription : subscriptions) {
+                if (subscription.region == null) {
+                    all = true;
+                    continue;
+                }
+                var r = subscription.region.expandedBy(1);
+                for (long bx = r.minX() >> BUCKET_SHIFT; bx <= r.maxX() >> BUCKET_SHIFT; bx++) {
+                    for (long by = r.minY() >> BUCKET_SHIFT; by <= r.maxY() >> BUCKET_SHIFT; by++) {
+                        buckets.add(bucket(bx, by));
+                    }
+                }
+                bounds = bounds == null ? r : new Partition.Region(
+                        Math.min(bounds.minX(), r.minX()), Math.min(bounds.minY(), r.minY()),
+                        Math.max(bounds.maxX(), r.maxX()), Math.max(bounds.maxY(), r.maxY()));
+            }
+            return new Index(all, bounds != null, bounds, buckets);
+        }
+
+        private static long bucket(long bx, long by) {
+            return bx << 32 | by & 0xFFFFFFFFL;
+        }
+    }
+
+    /**
+     * Subscribes to the whole machine, with a buffer of 256 batches that blocks the stepping thread when full.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Batch> subscriber) {
+        subscribe(subscriber, null, 256, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param region the cells whose events to deliver, or null for the whole machine; a region that covers a very
+     *               large area should be given as null instead, since its buckets are indexed one by one
+     * @param bufferSize the number of batches to hold for the subscriber before applying the policy
+     */
+    public void subscribe(Flow.Subscriber<? super Batch> subscriber, Partition.Region region, int bufferSize, OverflowPolicy policy) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        var subscription = new RegionSubscription(subscriber, region, bufferSize, policy);
+        synchronized (subscriptions) {
+            subscriptions.add(subscription);
+            index = Index.of(subscriptions);
+        }
+        try {
+            subscriber.onSubscribe(subscription);
+        } catch (RuntimeException | Error e) {
+            subscription.cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether events should be worked out for a ball at the position
+     */
+    boolean isWatched(Machine.Position position) {
+        return index.watches(position);
+    }
+
+    boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Records what happened to a watched ball in the step being taken.
+     */
+    void ballStepped(Machine.Position from, Machine.Position to, int transition, boolean merged) {
+        var direction = StepRule.directionOf(transition);
+        if (StepRule.hitWall(transition)) {
+            events.add(new Event(step, Kind.WALL_DEFLECTION, from, direction));
+        }
+        if (StepRule.hitBall(transition)) {
+            events.add(new Event(step, Kind.BALL_COLLISION, from, direction));
+        }
+        if (merged) {
+            events.add(new Event(step, Kind.MERGED, to, direction));
+        }
+        if (index.regional()) {
+            moves.add(new Move(from, to, direction));
+        }
+    }
+
+    /**
+     * Hands each subscriber the events of the step just taken that fall in its region.
+     */
+    void stepEnded() {
+        for (RegionSubscription subscription : subscriptions) {
+            var region = subscription.region;
+            var batch = new ArrayList<Event>();
+            for (Event event : events) {
+                if (region == null || region.contains(event.position())) {
+                    batch.add(event);
+                }
+            }
+            if (region != null) {
+                for (Move move : moves) {
+                    var wasIn = region.contains(move.from());
+                    var isIn = region.contains(move.to());
+                    if (!wasIn && isIn) {
+                        batch.add(new Event(step, Kind.ENTERED_REGION, move.to(), move.direction()));
+                    } else if (wasIn && !isIn) {
+                        batch.add(new Event(step, Kind.LEFT_REGION, move.from(), move.direction()));
+                    }
+                }
+            }
+            subscription.offer(new Batch(step, step, batch));
+        }
+        events.clear();
+        moves.clear();
+        step++;
+    }
+
+    /**
+     * Completes every subscription once the batches already buffered have been delivered.
+     */
+    public void close() {
+        synchronized (subscriptions) {
+            for (RegionSubscription subscription : subscriptions) {
+                subscription.complete();
+            }
+            subscriptions.clear();
+            index = Index.EMPTY;
+        }
+    }
+
+    private final class RegionSubscription implements Flow.Subscription {
+        final Flow.Subscriber<? super Batch> subscriber;
+        final Partition.Region region;
+        final int bufferSize;
+        final OverflowPolicy policy;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notFull = lock.newCondition();
+        private final ArrayDeque<Batch> buffer = new ArrayDeque<>();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final LongAdder dropped = new LongAdder();
+        private volatile boolean cancelled;
+        private volatile boolean completed;
+        // Set once onError or onComplete has been called, after which the subscriber must get no more signals.
+        private volatile boolean terminated;
+        private volatile Throwable error;
+
+        RegionSubscription(Flow.Subscriber<? super Batch> subscriber, Partition.Region region, int bufferSize, OverflowPolicy policy) {
+            this.subscriber = subscriber;
+            this.region = region;
+            this.bufferSize = bufferSize;
+            this.policy = policy;
+        }
+
+        void offer(Batch batch) {
+            lock.lock();
+            try {
+                while (buffer.size() >= bufferSize && !cancelled) {
+                    switch (policy) {
+                        case BLOCK -> notFull.awaitUninterruptibly();
+                        case DROP -> {
+                            dropped.increment();
+                            return;
+                        }
+                        case COALESCE -> {
+                            var last = buffer.pollLast();
+                            var events = new ArrayList<>(last.events());
+                            events.addAll(batch.events());
+                            batch = new Batch(last.firstStep(), batch.lastStep(), events);
+                        }
+                    }
+                }
+                if (cancelled) {
+                    return;
+                }
+                buffer.add(batch);
+            } finally {
+                lock.unlock();
+            }
+            drainLater();
+        }
+
+        void complete() {
+            completed = true;
+            drainLater();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Requested a non-positive number of batches: " + n);
+            } else {
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            }
+            drainLater();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            synchronized (subscriptions) {
+                if (subscriptions.remove(this)) {
+                    index = Index.of(subscriptions);
+                }
+            }
+            lock.lock();
+            try {
+                buffer.clear();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void drainLater() {
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        // Runs on the executor, one drain at a time per subscription, so the subscriber is called serially.
+        private void drain() {
+            try {
+                deliver();
+            } catch (RuntimeException | Error e) {
+                // A subscriber that throws is considered cancelled (Flow rule 2.13), which also wakes a stepping thread
+                // blocked on its buffer. It is told why, unless it already had its last signal.
+                cancel();
+                draining.set(false);
+                if (terminated) {
+                    lastSubscriberFailure = e;
+                    return;
+                }
+                terminated = true;
+                try {
+                    subscriber.onError(e);
+                } catch (RuntimeException | Error onErrorFailure) {
+                    e.addSuppressed(onErrorFailure);
+                    lastSubscriberFailure = e;
+                }
+            }
+        }
+
+        private void deliver() {
+            while (true) {
+                while (!cancelled) {
+                    if (error != null) {
+                        var e = error;
+                        cancel();
+                        terminated = true;
+                        subscriber.onError(e);
+                        return;
+                    }
+                    if (demand.get() == 0) {
+                        break;
+                    }
+                    Batch batch;
+                    lock.lock();
+                    try {
+                        batch = buffer.poll();
+                        notFull.signal();
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (batch == null) {
+                        break;
+                    }
+                    demand.decrementAndGet();
+                    subscriber.onNext(batch);
+                }
+                if (completed && !cancelled && isBufferEmpty()) {
+                    cancelled = true;
+                    terminated = true;
+                    subscriber.onComplete();
+                    return;
+                }
+                draining.set(false);
+                // Something may have arrived after the loop looked but before the flag was cleared.
+                if (!hasWork() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        private boolean isBufferEmpty() {
+            lock.lock();
+            try {
+                return buffer.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean hasWork() {
+            return !cancelled && (error != null || completed || demand.get() > 0 && !isBufferEmpty());
+        }
+    }
+
+    /**
+     * @return the batches dropped across all current subscriptions because their buffers were full
+     */
+    public long getDroppedBatches() {
+        var total = 0L;
+        for (RegionSubscription subscription : subscriptions) {
+            total += subscription.dropped.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @return the last exception a subscriber threw that could not be passed to its {@code onError},
+     *         because it came from {@code onError} or {@code onComplete} itself, or null if there has been none
+     */
+    public Throwable getLastSubscriberFailure() {
+        return lastSubscriberFailure;
+    }
+}
@@ -0,0 +1,188 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+/**
+ * The rule that decides where a ball goes next, shared by every engine so that they agree step for step.
+ * Engines look up the four objects around the ball's bow however they store them and pass them in here.
+ */
+final class StepRule {
+
+    private StepRule() {}
+
+    /**
+     * Wall positions/anchors are at their northwest corner, so the "port-bow" or "starboard-bow" position for the wall
+     * depends on the ball's direction. A ball going east will collide on the starboard side with a SW-NE wall anchored at the ball's position,
+     * but a ball going west will collide on the starboard side with a SW-NE wall anchored *one space north and one space west* of the ball's position.
+     */
+    static int portBowWallDx(CardinalDirection ballDirection) {
+        return switch (ballDirection) {
+            case NORTH, WEST -> -1;
+            case EAST, SOUTH -> 0;
+        };
+    }
+
+    static int portBowWallDy(CardinalDirection ballDirection) {
+        return switch (ballDirection) {
+            case NORTH, EAST -> -1;
+            case SOUTH, WEST -> 0;
+        };
+    }
+
+    static int starboardBowWallDx(CardinalDirection ballDirection) {
+        return switch (ballDirection) {
+            case SOUTH, WEST -> -1;
+            case NORTH, EAST -> 0;
+        };
+    }
+
+    static int starboardBowWallDy(CardinalDirection ballDirection) {
+        return switch (ballDirection) {
+            case NORTH, WEST -> -1;
+            case EAST, SOUTH -> 0;
+        };
+    }
+
+    /**
+     * Told which of the four collisions a ball has as the rule decides its next direction.
+     */
+    interface Collisions {
+        void count(boolean wallOnPortBow, boolean wallOnStarboardBow, boolean ballOnPortBow, boolean ballOnStarboardBow);
+    }
+
+    private static final CardinalDirection[] DIRECTIONS = CardinalDirection.values();
+    private static final DiagonalWall[] WALLS = DiagonalWall.values();
+
+    // A neighbourhood code packs the ball's direction into bits 0-1, the port-bow and starboard-bow walls into bits
+    // 2-3 and 4-5, and the balls off the port and starboard bow into bits 6-8 and 9-11. Walls and balls are stored as
+    // their ordinal plus one, with 0 meaning none.
+    private static final int NEIGHBOURHOODS = 1 << 12;
+
+    // Each entry holds the next direction in bits 0-1 and which of the four collisions happened in bits 2-5.
+    private static final byte[] TRANSITIONS = new byte[NEIGHBOURHOODS];
+    private static final int WALL_ON_PORT_BOW      = 1 << 2;
+    private static final int WALL_ON_STARBOARD_BOW = 1 << 3;
+    private static final int BALL_ON_PORT_BOW      = 1 << 4;
+    private static final int BALL_ON_STARBOARD_BOW = 1 << 5;
+
+    static {
+        var flags = new int[1];
+        Collisions packFlags = (wallOnPortBow, wallOnStarboardBow, ballOnPortBow, ballOnStarboardBow) -> flags[0] =
+                (wallOnPortBow ? WALL_ON_PORT_BOW : 0) | (wallOnStarboardBow ? WALL_ON_STARBOARD_BOW : 0)
+                        | (ballOnPortBow ? BALL_ON_PORT_BOW : 0) | (ballOnStarboardBow ? BALL_ON_STARBOARD_BOW : 0);
+        for (int code = 0; code < NEIGHBOURHOODS; code++) {
+            var portWall = code >> 2 & 3;
+            var starboardWall = code >> 4 & 3;
+            var portBall = code >> 6 & 7;
+            var starboardBall = code >> 9 & 7;
+            if (portWall > WALLS.length || starboardWall > WALLS.length || portBall > DIRECTIONS.length || starboardBall > DIRECTIONS.length) {
+                continue;
+            }
+            var direction = DIRECTIONS[code & 3];
+            var port = portWall == 0 ? null : WALLS[portWall - 1];
+            var starboard = starboardWall == 0 ? null : WALLS[starboardWall - 1];
+            var portDirection = portBall == 0 ? null : DIRECTIONS[portBall - 1];
+            var starboardDirection = starboardBall == 0 ? null : DIRECTIONS[starboardBall - 1];
+            var next = referenceNextDirection(direction, port, starboard, portDirection, starboardDirection, packFlags);
+            TRANSITIONS[code] = (byte) (next.ordinal() | flags[0]);
+        }
+    }
+
+    static int neighbourhood(
+            CardinalDirection ballDirection,
+            DiagonalWall portBowWall, DiagonalWall starboardBowWall,
+            CardinalDirection ballOffThePortBow, CardinalDirection ballOffTheStarboardBow) {
+        return ballDirection.ordinal()
+                | (portBowWall == null ? 0 : portBowWall.ordinal() + 1) << 2
+                | (starboardBowWall == null ? 0 : starboardBowWall.ordinal() + 1) << 4
+                | (ballOffThePortBow == null ? 0 : ballOffThePortBow.ordinal() + 1) << 6
+                | (ballOffTheStarboardBow == null ? 0 : ballOffTheStarboardBow.ordinal() + 1) << 9;
+    }
+
+    /**
+     * Looks the ball's next direction up in a table built from {@link #referenceNextDirection}, rather than working it
+     * out, so that mixed traffic does not cost a mispredicted branch per decision. Changing what happens in a
+     * neighbourhood, such as a ball boxed in on both bows, or what counts as a collision, is a change to the reference
+     * rule alone.
+     * @param tally counts the collisions, or null
+     */
+    static CardinalDirection nextDirection(
+            CardinalDirection ballDirection,
+            DiagonalWall portBowWall, DiagonalWall starboardBowWall,
+            CardinalDirection ballOffThePortBow, CardinalDirection ballOffTheStarboardBow,
+            MachineMetrics.StepTally tally) {
+        return directionOf(transition(ballDirection, portBowWall, starboardBowWall, ballOffThePortBow, ballOffTheStarboardBow, tally));
+    }
+
+    /**
+     * Like {@link #nextDirection}, but also says what the ball collided with; read it with {@link #directionOf},
+     * {@link #hitWall} and {@link #hitBall}.
+     */
+    static int transition(
+            CardinalDirection ballDirection,
+            DiagonalWall portBowWall, DiagonalWall starboardBowWall,
+            CardinalDirection ballOffThePortBow, CardinalDirection ballOffTheStarboardBow,
+            MachineMetrics.StepTally tally) {
+        var transition = TRANSITIONS[neighbourhood(ballDirection, portBowWall, starboardBowWall, ballOffThePortBow, ballOffTheStarboardBow)];
+        if (tally != null) {
+            tally.count(
+                    (transition & WALL_ON_PORT_BOW) != 0, (transition & WALL_ON_STARBOARD_BOW) != 0,
+                    (transition & BALL_ON_PORT_BOW) != 0, (transition & BALL_ON_STARBOARD_BOW) != 0);
+        }
+        return transition;
+    }
+
+    static CardinalDirection directionOf(int transition) {
+        return DIRECTIONS[transition & 3];
+    }
+
+    static boolean hitWall(int transition) {
+        return (transition & (WALL_ON_PORT_BOW | WALL_ON_STARBOARD_BOW)) != 0;
+    }
+
+    static boolean hitBall(int transition) {
+        return (transition & (BALL_ON_PORT_BOW | BALL_ON_STARBOARD_BOW)) != 0;
+    }
+
+    /**
+     * @param portBowWall the wall anchored at the port-bow wall position, or null
+     * @param starboardBowWall the wall anchored at the starboard-bow wall position, or null
+     * @param ballOffThePortBow the direction of the ball one space ahead and to port, or null if there is none
+     * @param ballOffTheStarboardBow the direction of the ball one space ahead and to starboard, or null if there is none
+     * @param collisions told the collisions, or null; the table takes its collision flags from here
+     * @return the ball's next direction, as the rule is written; the engines use the table built from this instead
+     */
+    static CardinalDirection referenceNextDirection(
+            CardinalDirection ballDirection,
+            DiagonalWall portBowWall, DiagonalWall starboardBowWall,
+            CardinalDirection ballOffThePortBow, CardinalDirection ballOffTheStarboardBow,
+            Collisions collisions) {
+        var horizontal = ballDirection.isHorizontal();
+        var willCollideWithWallOnPortBow = portBowWall != null
+                && portBowWall == (horizontal ? DiagonalWall.NORTHWEST_TO_SOUTHEAST : DiagonalWall.SOUTHWEST_TO_NORTHEAST);
+        var willCollideWithWallOnStarboardBow = starboardBowWall != null
+                && starboardBowWall == (horizontal ? DiagonalWall.SOUTHWEST_TO_NORTHEAST : DiagonalWall.NORTHWEST_TO_SOUTHEAST);
+        var willCollideWithBallOnPortBow = ballOffThePortBow != null
+                && (ballOffThePortBow == ballDirection.opposite() || ballOffThePortBow == ballDirection.toStarboard());
+        var willCollideWithBallOnStarboardBow = ballOffTheStarboardBow != null
+                && (ballOffTheStarboardBow == ballDirection.opposite() || ballOffTheStarboardBow == ballDirection.toPort());
+        var willCollideOnPortBow      = willCollideWithWallOnPortBow      || willCollideWithBallOnPortBow;
+        var willCollideOnStarboardBow = willCollideWithWallOnStarboardBow || willCollideWithBallOnStarboardBow;
+
+        if (collisions != null) {
+            collisions.count(
+                    willCollideWithWallOnPortBow, willCollideWithWallOnStarboardBow,
+                    willCollideWithBallOnPortBow, willCollideWithBallOnStarboardBow);
+        }
+        if (willCollideOnPortBow && willCollideOnStarboardBow) {
+            // TODO: check behind. If would collide, stop ball or halt machine.
+            return ballDirection.opposite();
+        }
+        if (willCollideOnPortBow) {
+            return ballDirection.toStarboard();
+        }
+        if (willCollideOnStarboardBow) {
+            return ballDirection.toPort();
+        }
+        // TODO: check if ball would collide with ball or corner of wall straight ahead.
+        return ballDirection;
+    }
+}
@@ -0,0 +1,653 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * A billiard-ball machine kept in a file of square tiles and paged into memory while it is stepped,
+ * for machines too large to hold in memory even off-heap.
+ * <p>
+ * The file is a {@value #HEADER_BYTES}-byte header followed by the tiles in row-major order.
+ * A tile is {@code tileSize} rows of {@code tileSize} cells, one byte per cell:
+ * bits 0-2 and 3-5 hold the ball of one of two generations (the current one, and the one a step is computing),
+ * and bits 6-7 hold the wall anchored at the cell. Balls and walls are coded as in {@link PlacementRule}.
+ * <p>
+ * Tiles are memory-mapped when first touched and unmapped again when they fall out of a bounded LRU cache.
+ * A step visits the tiles in file order and skips tiles without balls, so each tile row is paged in about once per step
+ * as long as the cache holds a little more than two rows of tiles.
+ * <p>
+ * Unlike the other engines, a tiled machine is bounded: balls that would step off its edge are dropped.
+ */
+public final class TiledMachine implements MachineEngine, MachineState, Closeable {
+
+    static final int HEADER_BYTES = 64;
+    private static final int MAGIC = 0x42424D54; // "BBMT"
+    private static final int VERSION = 1;
+    private static final int BALL_BITS = 3;
+    private static final int BALL_MASK = (1 << BALL_BITS) - 1;
+    private static final int WALL_SHIFT = 2 * BALL_BITS;
+
+    private static final CardinalDirection[] DIRECTIONS = CardinalDirection.values();
+    private static final DiagonalWall[] WALLS = DiagonalWall.values();
+
+    private final FileChannel channel;
+    private final int tileSize;
+    private final int tilesWide;
+    private final int tilesHigh;
+    private final int originX;
+    private final int originY;
+    private final LinkedHashMap<Integer, MappedByteBuffer> cache;
+    // Mapped like the tiles, so that updating it every step costs no system call.
+    private MappedByteBuffer header;
+
+    private int generation;
+    private long steps;
+    private long ballsLost;
+    // Balls and walls per tile, so that empty tiles never have to be paged in to be scanned.
+    private int[] ballCounts;
+    private int[] nextBallCounts;
+    private final int[] wallCounts;
+
+    // The tile of the previous lookup. Most lookups are for the same tile as the one before, so they skip the cache.
+    private int lastTileIndex = -1;
+    private MappedByteBuffer lastTile;
+    private long cacheHits;
+    private long cacheMisses;
+
+    private final MachineMetrics metrics = new MachineMetrics();
+    private final MachineMetrics.StepTally stepTally = new MachineMetrics.StepTally();
+
+    private final PlacementRule.Cells cells = new PlacementRule.Cells() {
+        @Override
+        public int ballCode(int x, int y) {
+            return ballCodeAt(x, y);
+        }
+
+        @Override
+        public int wallCode(int x, int y) {
+            return cellAt(x, y) >> WALL_SHIFT;
+        }
+    };
+
+    private TiledMachine(FileChannel channel, int tileSize, int tilesWide, int tilesHigh, int originX, int originY, int cacheTiles) {
+        this.channel = channel;
+        this.tileSize = tileSize;
+        this.tilesWide = tilesWide;
+        this.tilesHigh = tilesHigh;
+        this.originX = originX;
+        this.originY = originY;
+        this.ballCounts = new int[tilesWide * tilesHigh];
+        this.nextBallCounts = new int[tilesWide * tilesHigh];
+        this.wallCounts = new int[tilesWide * tilesHigh];
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
+                if (size() <= cacheTiles) {
+                    return false;
+                }
+                if (eldest.getKey() == lastTileIndex) {
+                    lastTileIndex = -1;
+                    lastTile = null;
+                }
+                DirectBuffers.free(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Creates an empty tiled machine, replacing any file at the given path.
+     * The file is sparse, so empty tiles take no disk space on file systems that support it.
+     * @param origin the position of the northwest corner of the machine
+     * @param cacheTiles how many tiles to keep mapped at once
+     */
+    public static TiledMachine create(Path file, Machine.Position origin, int tilesWide, int tilesHigh, int tileSize, int cacheTiles) throws IOException {
+        checkCacheTiles(cacheTiles);
+        checkDimensions(tileSize, tilesWide, tilesHigh);
+        var channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var machine = new TiledMachine(channel, tileSize, tilesWide, tilesHigh, origin.x(), origin.y(), cacheTiles);
+        channel.write(ByteBuffer.allocate(1), fileSize(tileSize, tilesWide, tilesHigh) - 1);
+        machine.mapHeader();
+        machine.writeHeader();
+        return machine;
+    }
+
+    private static void checkCacheTiles(int cacheTiles) {
+        if (cacheTiles < 1) {
+            throw new IllegalArgumentException("There must be at least one cached tile");
+        }
+    }
+
+    private static void checkDimensions(int tileSize, int tilesWide, int tilesHigh) {
+        if (tileSize < 4 || tilesWide < 1 || tilesHigh < 1) {
+            throw new IllegalArgumentException("Tiles must be at least 4 cells wide, and there must be at least one tile");
+        }
+        if ((long) tilesWide * tileSize > Integer.MAX_VALUE
+                || (long) tilesHigh * tileSize > Integer.MAX_VALUE
+                || (long) tilesWide * tilesHigh > Integer.MAX_VALUE
+                || (long) tileSize * tileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Tiled machine is too large");
+        }
+    }
+
+    private static long fileSize(int tileSize, int tilesWide, int tilesHigh) {
+        return HEADER_BYTES + (long) tilesWide * tilesHigh * tileSize * tileSize;
+    }
+
+    /**
+     * Creates a tiled machine just large enough for the given configuration plus a margin of empty tiles on every side.
+     */
+    public static TiledMachine fromConfiguration(Path file, List<String> configuration, int tileSize, int marginTiles, int cacheTiles) throws IOException {
+        int minX = 0, minY = 0, maxX = 0, maxY = 0;
+        for (String configString : configuration) {
+            var parts = configString.trim().split("\\s+");
+            var x = Integer.parseInt(parts[2]);
+            var y = Integer.parseInt(parts[3]);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x + 1);
+            maxY = Math.max(maxY, y + 1);
+        }
+        var origin = new Machine.Position(minX - marginTiles * tileSize, minY - marginTiles * tileSize);
+        var tilesWide = (maxX - minX) / tileSize + 1 + 2 * marginTiles;
+        var tilesHigh = (maxY - minY) / tileSize + 1 + 2 * marginTiles;
+        var machine = create(file, origin, tilesWide, tilesHigh, tileSize, cacheTiles);
+        machine.loadFromConfiguration(configuration);
+        return machine;
+    }
+
+    /**
+     * Opens a tiled machine previously written by {@link #create}.
+     * @throws IOException if the file can't be read, or its header is invalid or doesn't match its size
+     */
+    public static TiledMachine open(Path file, int cacheTiles) throws IOException {
+        checkCacheTiles(cacheTiles);
+        var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            var header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a tiled machine file: " + file);
+            }
+            var tileSize = header.getInt();
+            var tilesWide = header.getInt();
+            var tilesHigh = header.getInt();
+            var originX = header.getInt();
+            var originY = header.getInt();
+            var generation = header.getInt();
+            try {
+                checkDimensions(tileSize, tilesWide, tilesHigh);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid header in tiled machine file: " + file, e);
+            }
+            if (generation != 0 && generation != 1) {
+                throw new IOException("Invalid header in tiled machine file: " + file);
+            }
+            // Mapping a tile past the end would silently grow a truncated file.
+            var expectedSize = fileSize(tileSize, tilesWide, tilesHigh);
+            if (channel.size() != expectedSize) {
+                throw new IOException("Tiled machine file " + file + " should be " + expectedSize + " bytes but is " + channel.size());
+            }
+            var machine = new TiledMachine(channel, tileSize, tilesWide, tilesHigh, originX, originY, cacheTiles);
+            machine.generation = generation;
+            machine.steps = header.getLong();
+            machine.ballsLost = header.getLong();
+            machine.mapHeader();
+            machine.countObjects();
+            return machine;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void mapHeader() throws IOException {
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void writeHeader() {
+        header.clear();
+        header.putInt(MAGIC).putInt(VERSION)
+                .putInt(tileSize).putInt(tilesWide).putInt(tilesHigh).putInt(originX).putInt(originY)
+                .putInt(generation).putLong(steps).putLong(ballsLost);
+    }
+
+    private void countObjects() {
+        var ballShift = BALL_BITS * generation;
+        for (int t = 0; t < ballCounts.length; t++) {
+            for (int i = 0, n = tileSize * tileSize; i < n; i++) {
+                var cell = tile(t).get(i);
+                if (((cell >> ballShift) & BALL_MASK) != 0) {
+                    ballCounts[t]++;
+                }
+                if (((cell >> WALL_SHIFT) & 0b11) != 0) {
+                    wallCounts[t]++;
+                }
+            }
+        }
+    }
+
+    public MachineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of steps this machine has been updated since it was created, including in earlier sessions
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the number of balls dropped so far for stepping off the edge of the machine
+     */
+    public long getBallsLost() {
+        return ballsLost;
+    }
+
+    /**
+     * Writes the header and every tile to disk, unmaps them and unregisters the metrics' MBean. The machine cannot be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        metrics.unregisterMBean();
+        writeHeader();
+        header.force();
+        DirectBuffers.free(header);
+        header = null;
+        lastTileIndex = -1;
+        lastTile = null;
+        for (MappedByteBuffer tile : cache.values()) {
+            tile.force();
+            DirectBuffers.free(tile);
+        }
+        cache.clear();
+        channel.close();
+    }
+
+    private void ensureOpen() {
+        if (!channel.isOpen()) {
+            throw new IllegalStateException("Machine has been closed");
+        }
+    }
+
+    /**
+     * Never hold on to the returned buffer across another lookup: the lookup may unmap it.
+     */
+    private MappedByteBuffer tile(int index) {
+        if (index == lastTileIndex) {
+            return lastTile;
+        }
+        var tile = cache.get(index);
+        if (tile == null) {
+            cacheMisses++;
+            try {
+                var tileBytes = (long) tileSize * tileSize;
+                tile = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + index * tileBytes, tileBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            cache.put(index, tile);
+        } else {
+            cacheHits++;
+        }
+        lastTileIndex = index;
+        lastTile = tile;
+        return tile;
+    }
+
+    private boolean contains(int x, int y) {
+        var lx = (long) x - originX;
+        var ly = (long) y - originY;
+        return lx >= 0 && ly >= 0 && lx < (long) tilesWide * tileSize && ly < (long) tilesHigh * tileSize;
+    }
+
+    private int tileIndexOf(int x, int y) {
+        return ((y - originY) / tileSize) * tilesWide + (x - originX) / tileSize;
+    }
+
+    private int offsetOf(int x, int y) {
+        return ((y - originY) % tileSize) * tileSize + (x - originX) % tileSize;
+    }
+
+    private int cellAt(int x, int y) {
+        if (!contains(x, y)) {
+            return 0;
+        }
+        return tile(tileIndexOf(x, y)).get(offsetOf(x, y)) & 0xFF;
+    }
+
+    private void setCell(int x, int y, int cell) {
+        tile(tileIndexOf(x, y)).put(offsetOf(x, y), (byte) cell);
+    }
+
+    private int ballCodeAt(int x, int y) {
+        return (cellAt(x, y) >> (BALL_BITS * generation)) & BALL_MASK;
+    }
+
+    private CardinalDirection ballAt(int x, int y) {
+        var code = ballCodeAt(x, y);
+        return code == 0 ? null : DIRECTIONS[code - 1];
+    }
+
+    private DiagonalWall wallAt(int x, int y) {
+        var code = cellAt(x, y) >> WALL_SHIFT;
+        return code == 0 ? null : WALLS[code - 1];
+    }
+
+    private void checkContains(int x, int y) {
+        if (!contains(x, y)) {
+            throw new IllegalArgumentException("Position " + x + " " + y + " is outside the tiled machine");
+        }
+    }
+
+    void addBall(CardinalDirection direction, int x, int y) {
+        checkContains(x, y);
+        if (PlacementRule.ballFits(cells, x, y)) {
+            setCell(x, y, cellAt(x, y) | (direction.ordinal() + 1) << (BALL_BITS * generation));
+            ballCounts[tileIndexOf(x, y)]++;
+        }
+    }
+
+    void addWall(DiagonalWall wall, int x, int y) {
+        checkContains(x, y);
+        if (PlacementRule.wallFits(cells, wall, x, y)) {
+            setCell(x, y, cellAt(x, y) | (wall.ordinal() + 1) << WALL_SHIFT);
+            wallCounts[tileIndexOf(x, y)]++;
+        }
+    }
+
+    @Override
+    public void loadFromConfiguration(List<String> configuration) {
+        ensureOpen();
+        var zeros = new byte[tileSize * tileSize];
+        for (int t = 0; t < ballCounts.length; t++) {
+            if (ballCounts[t] != 0 || wallCounts[t] != 0) {
+                tile(t).put(0, zeros);
+                ballCounts[t] = 0;
+                wallCounts[t] = 0;
+            }
+        }
+        for (String configString : configuration) {
+            try (
+                    var s = new Scanner(configString)
+            ) {
+                var objectType = s.next();
+                switch (objectType) {
+                    case "ball" -> {
+                        var direction = CardinalDirection.fromConfigurationString(s.next());
+                        addBall(direction, s.nextInt(), s.nextInt());
+                    }
+                    case "wall" -> {
+                        var wall = DiagonalWall.fromConfigurationString(s.next());
+                        addWall(wall, s.nextInt(), s.nextInt());
+                    }
+                    default -> throw new IllegalArgumentException("Unexpected type in configuration string: " + objectType);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void update() {
+        ensureOpen();
+        var allocatedBefore = MachineMetrics.currentThreadAllocatedBytes();
+        var start = System.nanoTime();
+        stepTally.reset();
+        var hitsBefore = cacheHits;
+        var missesBefore = cacheMisses;
+        long ballsStepped = 0;
+
+        var ballShift = BALL_BITS * generation;
+        var nextBallShift = BALL_BITS * (1 - generation);
+        var cellsPerTile = tileSize * tileSize;
+        for (int ty = 0; ty < tilesHigh; ty++) {
+            for (int tx = 0; tx < tilesWide; tx++) {
+                var t = ty * tilesWide + tx;
+                if (ballCounts[t] == 0) {
+                    continue;
+                }
+                for (int i = 0; i < cellsPerTile; i++) {
+                    var code = (tile(t).get(i) >> ballShift) & BALL_MASK;
+                    if (code == 0) {
+                        continue;
+                    }
+                    ballsStepped++;
+                    var x = originX + tx * tileSize + i % tileSize;
+                    var y = originY + ty * tileSize + i / tileSize;
+                    var direction = DIRECTIONS[code - 1];
+                    var port = direction.toPort();
+                    var starboard = direction.toStarboard();
+                    var aheadX = x + direction.horizontalCoefficient();
+                    var aheadY = y + direction.verticalCoefficient();
+                    var nextDirection = StepRule.nextDirection(
+                            direction,
+                            wallAt(x + StepRule.portBowWallDx(direction), y + StepRule.portBowWallDy(direction)),
+                            wallAt(x + StepRule.starboardBowWallDx(direction), y + StepRule.starboardBowWallDy(direction)),
+                            ballAt(aheadX + port.horizontalCoefficient(), aheadY + port.verticalCoefficient()),
+                            ballAt(aheadX + starboard.horizontalCoefficient(), aheadY + starboard.verticalCoefficient()),
+                            stepTally);
+                    moveBall(x + nextDirection.horizontalCoefficient(), y + nextDirection.verticalCoefficient(), nextDirection, nextBallShift);
+                }
+            }
+            // Balls only look one cell around them, so nothing will read this generation of the row above again.
+            if (ty > 0) {
+                clearBallsInTileRow(ty - 1, ballShift);
+            }
+        }
+        clearBallsInTileRow(tilesHigh - 1, ballShift);
+
+        var stepped = ballCounts;
+        ballCounts = nextBallCounts;
+        nextBallCounts = stepped;
+        Arrays.fill(nextBallCounts, 0);
+        generation = 1 - generation;
+        steps++;
+        writeHeader();
+
+        var duration = System.nanoTime() - start;
+        var allocated = allocatedBefore < 0 ? 0 : MachineMetrics.currentThreadAllocatedBytes() - allocatedBefore;
+        metrics.recordStep((int) ballsStepped, stepTally, duration, allocated, Arrays.stream(ballCounts).sum(), Arrays.stream(wallCounts).sum());
+        metrics.recordTileCache(cacheHits - hitsBefore, cacheMisses - missesBefore);
+    }
+
+    private void moveBall(int x, int y, CardinalDirection direction, int nextBallShift) {
+        if (!contains(x, y)) {
+            ballsLost++;
+            return;
+        }
+        var cell = cellAt(x, y);
+        var existing = (cell >> nextBallShift) & BALL_MASK;
+        var code = direction.ordinal() + 1;
+        if (existing == 0) {
+            nextBallCounts[tileIndexOf(x, y)]++;
+        }
+        // Like Machine.update, balls that end up in the same space merge, keeping the higher direction ordinal.
+        if (code > existing) {
+            setCell(x, y, (cell & ~(BALL_MASK << nextBallShift)) | code << nextBallShift);
+        }
+    }
+
+    private void clearBallsInTileRow(int ty, int ballShift) {
+        for (int tx = 0; tx < tilesWide; tx++) {
+            var t = ty * tilesWide + tx;
+            if (ballCounts[t] == 0) {
+                continue;
+            }
+            for (int i = 0, n = tileSize * tileSize; i < n; i++) {
+                var tile = tile(t);
+                var cell = tile.get(i);
+                if (((cell >> ballShift) & BALL_MASK) != 0) {
+                    tile.put(i, (byte) (cell & ~(BALL_MASK << ballShift)));
+                }
+            }
+        }
+    }
+
+    public void updateReverse() {
+        reverseBallDirections();
+        update();
+        reverseBallDirections();
+    }
+
+    private void reverseBallDirections() {
+        ensureOpen();
+        var ballShift = BALL_BITS * generation;
+        for (int t = 0; t < ballCounts.length; t++) {
+            if (ballCounts[t] == 0) {
+                continue;
+            }
+            for (int i = 0, n = tileSize * tileSize; i < n; i++) {
+                var tile = tile(t);
+                var cell = tile.get(i);
+                var code = (cell >> ballShift) & BALL_MASK;
+                if (code != 0) {
+                    var reversed = DIRECTIONS[code - 1].opposite().ordinal() + 1;
+                    tile.put(i, (byte) ((cell & ~(BALL_MASK << ballShift)) | reversed << ballShift));
+                }
+            }
+        }
+    }
+
+    /**
+     * The part of a tiled machine loaded into memory, for display.
+     * @param min the northwest corner of the loaded cells
+     * @param max the southeast corner of the loaded cells
+     */
+    public record Viewport(Machine machine, Machine.Position min, Machine.Position max) {
+        public boolean covers(Machine.Position from, Machine.Position to) {
+            return from.x() >= min.x() && from.y() >= min.y() && to.x() <= max.x() && to.y() <= max.y();
+        }
+    }
+
+    /**
+     * Loads every tile overlapping the cells from {@code from} to {@code to} into an ordinary machine,
+     * leaving the rest of the tiled machine on disk.
+     */
+    public Viewport viewport(Machine.Position from, Machine.Position to) {
+        ensureOpen();
+        var firstTx = Math.max(0, Math.floorDiv(from.x() - originX, tileSize));
+        var firstTy = Math.max(0, Math.floorDiv(from.y() - originY, tileSize));
+        var lastTx = Math.min(tilesWide - 1, Math.floorDiv(to.x() - originX, tileSize));
+        var lastTy = Math.min(tilesHigh - 1, Math.floorDiv(to.y() - originY, tileSize));
+        var machine = Machine.emptyMachine();
+        var ballShift = BALL_BITS * generation;
+        for (int ty = firstTy; ty <= lastTy; ty++) {
+            for (int tx = firstTx; tx <= lastTx; tx++) {
+                var t = ty * tilesWide + tx;
+                if (ballCounts[t] == 0 && wallCounts[t] == 0) {
+                    continue;
+                }
+                for (int i = 0, n = tileSize * tileSize; i < n; i++) {
+                    var cell = tile(t).get(i);
+                    var ballCode = (cell >> ballShift) & BALL_MASK;
+                    var wallCode = (cell >> WALL_SHIFT) & 0b11;
+                    if (ballCode != 0 || wallCode != 0) {
+                        var position = new Machine.Position(originX + tx * tileSize + i % tileSize, originY + ty * tileSize + i / tileSize);
+                        machine.restoreCell(position,
+                                ballCode == 0 ? null : new Ball(DIRECTIONS[ballCode - 1]),
+                                wallCode == 0 ? null : WALLS[wallCode - 1]);
+                    }
+                }
+            }
+        }
+        return new Viewport(machine,
+                new Machine.Position(originX + firstTx * tileSize, originY + firstTy * tileSize),
+                new Machine.Position(originX + (lastTx + 1) * tileSize - 1, originY + (lastTy + 1) * tileSize - 1));
+    }
+
+    @Override
+    public List<String> getConfigurationAsStrings() {
+        var configuration = new ArrayList<String>();
+        forEachObject((x, y, ballCode, wallCode) -> {
+            if (ballCode != 0) {
+                configuration.add(String.format("ball %s %d %d", DIRECTIONS[ballCode - 1].toConfigurationString(), x, y));
+            }
+            if (wallCode != 0) {
+                configuration.add(String.format("wall %s %d %d", WALLS[wallCode - 1].toConfigurationString(), x, y));
+            }
+        });
+        return configuration;
+    }
+
+    @Override
+    public long stateHash() {
+        var hash = new long[1];
+        forEachObject((x, y, ballCode, wallCode) -> {
+            if (ballCode != 0) {
+                hash[0] += StateHash.ofBall(x, y, DIRECTIONS[ballCode - 1]);
+            }
+            if (wallCode != 0) {
+                hash[0] += StateHash.ofWall(x, y, WALLS[wallCode - 1]);
+            }
+        });
+        return hash[0];
+    }
+
+    private interface CellAction {
+        void accept(int x, int y, int ballCode, int wallCode);
+    }
+
+    private void forEachObject(CellAction action) {
+        ensureOpen();
+        var ballShift = BALL_BITS * generation;
+        for (int t = 0; t < ballCounts.length; t++) {
+            if (ballCounts[t] == 0 && wallCounts[t] == 0) {
+                continue;
+            }
+            var tileX = originX + (t % tilesWide) * tileSize;
+            var tileY = originY + (t / tilesWide) * tileSize;
+            for (int i = 0, n = tileSize * tileSize; i < n; i++) {
+                var cell = tile(t).get(i);
+                var ballCode = (cell >> ballShift) & BALL_MASK;
+                var wallCode = (cell >> WALL_SHIFT) & 0b11;
+                if (ballCode != 0 || wallCode != 0) {
+                    action.accept(tileX + i % tileSize, tileY + i / tileSize, ballCode, wallCode);
+                }
+            }
+        }
+    }
+
+    @Override
+    public DiagonalWall getWallAt(Machine.Position position) {
+        ensureOpen();
+        return wallAt(position.x(), position.y());
+    }
+
+    @Override
+    public Ball getBallAt(Machine.Position position) {
+        ensureOpen();
+        var direction = ballAt(position.x(), position.y());
+        return direction == null ? null : new Ball(direction);
+    }
+
+    @Override
+    public boolean wallIsAt(Machine.Position position) {
+        return getWallAt(position) != null;
+    }
+
+    @Override
+    public boolean ballIsAt(Machine.Position position) {
+        return getBallAt(position) != null;
+    }
+}
@@ -0,0 +1,252 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * What a {@link GateBox} emits for every combination of balls arriving at its ports within a window of steps.
+ * <p>
+ * The table is built once by running the box on its own for every combination. A combination is only kept if
+ * every ball it puts in comes out again and each ball, once it has come out, carries straight on until it is out of
+ * reach of the box. The balls then leave the box exactly as they would in the whole machine, as long as nothing else
+ * comes near the box in the meantime; {@link MacroMachine} checks that before it relies on the table.
+ */
+public final class TransferTable {
+
+    /** A ball that is this far out of the box and heading away from it has been emitted. */
+    static final int EMIT_DISTANCE = 2;
+    /**
+     * How far out of the box something has to stay for it to be unaffected by balls inside it.
+     * A ball decides where to go by what is within a cell of it, so two balls can only meet if they are within two cells,
+     * and a ball that has been emitted can be deflected by a ball up to two cells beyond it.
+     */
+    static final int GUARD_DISTANCE = 6;
+
+    /**
+     * A ball arriving at a port.
+     * @param port the index of the port in {@link GateBox#ports()}
+     * @param offset the step at which the ball is at the port's approach cell, counted from the first arrival
+     */
+    public record Arrival(int port, int offset) {}
+
+    /**
+     * A ball leaving the box.
+     * @param offset the step at which the ball is at {@code position}, counted from the first arrival
+     */
+    public record Emission(Machine.Position position, CardinalDirection direction, int offset) {
+        Machine.Position positionAt(long step) {
+            return position.inDirection(direction, (int) (step - offset));
+        }
+    }
+
+    private final GateBox box;
+    private final int window;
+    private final Map<List<Arrival>, List<Emission>> emissions;
+
+    private TransferTable(GateBox box, int window, Map<List<Arrival>, List<Emission>> emissions) {
+        this.box = box;
+        this.window = window;
+        this.emissions = emissions;
+    }
+
+    /**
+     * Runs the box for every non-empty set of ports, with every ball arriving at any step from 0 to {@code window}.
+     * Combinations that emit a ball within the window are left out, since the set of arrivals is not known until the window closes;
+     * so are ones that have not emitted every ball within {@code maxTransit} steps after the last arrival.
+     * @param window the last step, counted from the first arrival, at which further arrivals still belong to the same combination
+     */
+    public static TransferTable characterise(GateBox box, int window, int maxTransit) {
+        var portCount = box.ports().size();
+        if (portCount > 16) {
+            throw new IllegalArgumentException("Too many ports to characterise exhaustively: " + portCount);
+        }
+        var emissions = new HashMap<List<Arrival>, List<Emission>>();
+        for (int portSet = 1; portSet < 1 << portCount; portSet++) {
+            var ports = new ArrayList<Integer>();
+            for (int port = 0; port < portCount; port++) {
+                if ((portSet & 1 << port) != 0) {
+                    ports.add(port);
+                }
+            }
+            var offsets = new int[ports.size()];
+            do {
+                var arrivals = new ArrayList<Arrival>();
+                var first = Integer.MAX_VALUE;
+                for (int i = 0; i < offsets.length; i++) {
+                    arrivals.add(new Arrival(ports.get(i), offsets[i]));
+                    first = Math.min(first, offsets[i]);
+                }
+                // Offsets count from the first arrival, so one of them is always 0.
+                if (first == 0) {
+                    characterise(box, window, maxTransit, arrivals).ifPresent(e -> emissions.put(List.copyOf(arrivals), e));
+                }
+            } while (nextOffsets(offsets, window));
+        }
+        return new TransferTable(box, window, emissions);
+    }
+
+    private static boolean nextOffsets(int[] offsets, int window) {
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] < window) {
+                offsets[i]++;
+                return true;
+            }
+            offsets[i] = 0;
+        }
+        return false;
+    }
+
+    private static Optional<List<Emission>> characterise(GateBox box, int window, int maxTransit, List<Arrival> arrivals) {
+        var lastArrival = arrivals.stream().mapToInt(Arrival::offset).max().orElse(0);
+        var run = new BoxRun(box);
+        while (run.time <= lastArrival + maxTransit) {
+            if (!run.arrive(arrivals)) {
+                return Optional.empty();
+            }
+            run.step();
+            if (!run.isClean()) {
+                return Optional.empty();
+            }
+            if (run.time > lastArrival && run.isSettled()) {
+                var emitted = run.emissions();
+                if (emitted.stream().anyMatch(e -> e.offset() <= window)) {
+                    return Optional.empty();
+                }
+                return Optional.of(List.copyOf(emitted));
+            }
+        }
+        return Optional.empty();
+    }
+
+    public GateBox box() {
+        return box;
+    }
+
+    public int window() {
+        return window;
+    }
+
+    /**
+     * @return the number of characterised combinations
+     */
+    public int size() {
+        return emissions.size();
+    }
+
+    /**
+     * @param arrivals arrivals ordered by port, with offsets counted from the first
+     * @return the balls the box emits, or empty if the combination was not characterised
+     */
+    public Optional<List<Emission>> lookup(List<Arrival> arrivals) {
+        return Optional.ofNullable(emissions.get(arrivals));
+    }
+
+    /**
+     * The box run on its own, with balls put in at its ports.
+     * Balls that have been emitted stay in the machine, so that the run is exactly what the box does in a machine
+     * that is otherwise empty near it.
+     */
+    static final class BoxRun {
+        private final GateBox box;
+        private final Machine machine = Machine.emptyMachine();
+        private final List<Emission> emissions = new ArrayList<>();
+        private int time;
+        private boolean clean = true;
+
+        BoxRun(GateBox box) {
+            this.box = box;
+            box.walls().forEach((p, wall) -> machine.restoreCell(p, null, wall));
+        }
+
+        int time() {
+            return time;
+        }
+
+        /**
+         * Puts in the balls that arrive at the current step.
+         * @return false if a ball arrives where there already is one
+         */
+        boolean arrive(List<Arrival> arrivals) {
+            for (Arrival arrival : arrivals) {
+                if (arrival.offset() == time) {
+                    var port = box.ports().get(arrival.port());
+                    if (machine.ballIsAt(port.approach())) {
+                        return false;
+                    }
+                    machine.restoreCell(port.approach(), new Ball(port.direction()), machine.getWallAt(port.approach()));
+                }
+            }
+            return true;
+        }
+
+        void step() {
+            machine.update();
+            time++;
+            for (Emission emission : emissions) {
+                var expected = emission.positionAt(time);
+                if (box.distance(expected) <= GUARD_DISTANCE) {
+                    var ball = machine.getBallAt(expected);
+                    if (ball == null || ball.directionOfMovement() != emission.direction()) {
+                        clean = false;
+                    }
+                }
+            }
+            var emitted = new ArrayList<Emission>();
+            machine.forEachBall((p, ball) -> {
+                var direction = ball.directionOfMovement();
+                if (box.distance(p) >= EMIT_DISTANCE && box.isMovingAway(p, direction) && !isEmitted(p, direction, emissions)) {
+                    emitted.add(new Emission(p, direction, time));
+                }
+            });
+            emissions.addAll(emitted);
+        }
+
+        /**
+         * @return whether every emitted ball has carried straight on while within reach of the box
+         */
+        boolean isClean() {
+            return clean;
+        }
+
+        /**
+         * @return whether every ball has been emitted and is out of reach of the box
+         */
+        boolean isSettled() {
+            var settled = new boolean[] {true};
+            machine.forEachBall((p, ball) -> {
+                if (box.distance(p) <= GUARD_DISTANCE || !isEmitted(p, ball.directionOfMovement(), emissions)) {
+                    settled[0] = false;
+                }
+            });
+            return settled[0];
+        }
+
+        List<Emission> emissions() {
+            return emissions;
+        }
+
+        /**
+         * Calls the action for every ball that is not one of the given emissions.
+         */
+        void forEachBallExcept(List<Emission> emitted, BiConsumer<Machine.Position, Ball> action) {
+            machine.forEachBall((p, ball) -> {
+                if (!isEmitted(p, ball.directionOfMovement(), emitted)) {
+                    action.accept(p, ball);
+                }
+            });
+        }
+
+        private boolean isEmitted(Machine.Position p, CardinalDirection direction, List<Emission> emitted) {
+            for (Emission emission : emitted) {
+                if (emission.direction() == direction && emission.positionAt(time).equals(p)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.billiardballmachine.billiardballmachine.ui;
+
+import io.github.billiardballmachine.billiardballmachine.CardinalDirection;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Objects;
+
+/**
+ * Ball images pre-scaled to the current zoom and pre-rotated for each direction of movement,
+ * so drawing a ball is a plain image copy. The sprites are rebuilt only when the grid unit length
+ * or the graphics configuration they were created for changes.
+ */
+final class BallSprites {
+
+    private final BufferedImage ballImage;
+
+    private record Sprites(double gridUnitLength, GraphicsConfiguration graphicsConfiguration, int diameter, BufferedImage[] byDirection) {}
+
+    // Replaced wholesale when the zoom or screen changes, so concurrent readers always see a consistent set.
+    private volatile Sprites sprites;
+
+    BallSprites(BufferedImage ballImage) {
+        this.ballImage = ballImage;
+    }
+
+    /**
+     * @param graphicsConfiguration used to create images in the screen's native format, or null when rendering offscreen
+     */
+    BufferedImage spriteFor(CardinalDirection direction, double gridUnitLength, GraphicsConfiguration graphicsConfiguration) {
+        return spritesFor(gridUnitLength, graphicsConfiguration).byDirection()[direction.ordinal()];
+    }
+
+    int diameterFor(double gridUnitLength) {
+        return Math.max(1, (int) Math.round(gridUnitLength * 1.4)); // roughly sqrt(2), minus a little to account for stroke width
+    }
+
+    private Sprites spritesFor(double gridUnitLength, GraphicsConfiguration graphicsConfiguration) {
+        var current = sprites;
+        if (current != null
+                && current.gridUnitLength() == gridUnitLength
+                && Objects.equals(current.graphicsConfiguration(), graphicsConfiguration)) {
+            return current;
+        }
+        var diameter = diameterFor(gridUnitLength);
+        var byDirection = new BufferedImage[CardinalDirection.values().length];
+        for (CardinalDirection direction : CardinalDirection.values()) {
+            byDirection[direction.ordinal()] = render(direction, diameter, graphicsConfiguration);
+        }
+        current = new Sprites(gridUnitLength, graphicsConfiguration, diameter, byDirection);
+        sprites = current;
+        return current;
+    }
+
+    private BufferedImage render(CardinalDirection direction, int diameter, GraphicsConfiguration graphicsConfiguration) {
+        var sprite = graphicsConfiguration != null
+                ? graphicsConfiguration.createCompatibleImage(diameter, diameter, Transparency.TRANSLUCENT)
+                : new BufferedImage(diameter, diameter, BufferedImage.TYPE_INT_ARGB);
+        var rotations = switch (direction) {
+            case EAST -> 0;
+            case SOUTH -> 1;
+            case WEST -> 2;
+            case NORTH -> 3;
+        };
+        var imgW = ballImage.getWidth();
+        var imgH = ballImage.getHeight();
+        var g = sprite.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            var transform = AffineTransform.getScaleInstance((double) diameter / imgW, (double) diameter / imgH);
+            transform.quadrantRotate(rotations, imgW / 2.0, imgH / 2.0);
+            g.drawImage(ballImage, transform, null);
+        } finally {
+            g.dispose();
+        }
+        return sprite;
+    }
+}
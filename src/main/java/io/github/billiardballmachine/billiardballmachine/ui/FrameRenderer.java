@@ -0,0 +1,331 @@
+package io.github.billiardballmachine.billiardballmachine.ui;
+
+import io.github.billiardballmachine.billiardballmachine.Machine;
+import io.github.billiardballmachine.billiardballmachine.MachineState;
+import io.github.billiardballmachine.billiardballmachine.Main;
+import io.github.billiardballmachine.billiardballmachine.Partition;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders a machine's steps to images without a window, as a PNG sequence or an animated GIF.
+ * <p>
+ * Frames are drawn with the same painter as {@link MachineGridPanel}, from a {@link Machine#snapshot()} per frame, so
+ * the calling thread steps ahead to the next frames while other threads draw and encode the earlier ones. A few
+ * frames per thread are in flight at most, which bounds memory. Works with {@code java.awt.headless=true}.
+ */
+public final class FrameRenderer {
+
+    private static final int FRAMES_IN_FLIGHT_PER_THREAD = 2;
+    // Below this, gridlines would cover most of the picture.
+    private static final int MIN_GRIDLINE_CELL_SIZE = 6;
+
+    private final MachinePainter painter;
+    private final Partition.Region region;
+    private final int cellSize;
+    private final int threads;
+    private final int width;
+    private final int height;
+
+    /**
+     * @param region the positions to show; a ball on the region's edge is drawn centred half a cell in from the image's edge
+     * @param cellSize the number of pixels between neighbouring positions
+     * @param threads the number of threads drawing and encoding frames
+     */
+    public FrameRenderer(BufferedImage ballImage, Partition.Region region, int cellSize, int threads) {
+        if (cellSize <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("Cell size and threads must be positive: " + cellSize + ", " + threads);
+        }
+        var width = ((long) region.maxX() - region.minX() + 1) * cellSize;
+        var height = ((long) region.maxY() - region.minY() + 1) * cellSize;
+        if (width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Frames of " + width + " by " + height + " pixels are too large");
+        }
+        this.painter = new MachinePainter(ballImage);
+        this.region = region;
+        this.cellSize = cellSize;
+        this.threads = threads;
+        this.width = (int) width;
+        this.height = (int) height;
+    }
+
+    public static BufferedImage defaultBallImage() throws IOException {
+        return ImageIO.read(Main.class.getResource("billiard_ball.png"));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Draws one frame. Safe to call from several threads at once.
+     */
+    public BufferedImage render(MachineState state) {
+        var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        var g = image.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            if (cellSize >= MIN_GRIDLINE_CELL_SIZE) {
+                g.setStroke(new BasicStroke(1));
+                g.setColor(Color.LIGHT_GRAY);
+                for (int x = region.minX(); x <= region.maxX(); x++) {
+                    var lineX = (int) pixelX(x);
+                    g.drawLine(lineX, 0, lineX, height);
+                }
+                for (int y = region.minY(); y <= region.maxY(); y++) {
+                    var lineY = (int) pixelY(y);
+                    g.drawLine(0, lineY, width, lineY);
+                }
+            }
+            // Widened by a cell, since balls and walls just outside the region reach into it.
+            for (long x = region.minX() - 1L; x <= region.maxX() + 1L; x++) {
+                for (long y = region.minY() - 1L; y <= region.maxY() + 1L; y++) {
+                    if (x < Integer.MIN_VALUE || x > Integer.MAX_VALUE || y < Integer.MIN_VALUE || y > Integer.MAX_VALUE) {
+                        continue;
+                    }
+                    var position = new Machine.Position((int) x, (int) y);
+                    var wall = state.getWallAt(position);
+                    if (wall != null) {
+                        painter.paintWall(g, wall, pixelX(x), pixelY(y), cellSize);
+                    }
+                    var ball = state.getBallAt(position);
+                    if (ball != null) {
+                        painter.paintBall(g, ball, pixelX(x), pixelY(y), cellSize, null);
+                    }
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private double pixelX(long x) {
+        return (x - region.minX()) * cellSize + cellSize / 2.0;
+    }
+
+    private double pixelY(long y) {
+        return (y - region.minY()) * cellSize + cellSize / 2.0;
+    }
+
+    /**
+     * Renders the machine as it is and after every {@code stepsPerFrame} steps, to {@code frame-00000.png} and so on
+     * in the directory, leaving the machine stepped past the last frame.
+     */
+    public void writePngs(Machine machine, int frames, int stepsPerFrame, Path directory) throws IOException, InterruptedException {
+        Files.createDirectories(directory);
+        renderFrames(machine, frames, stepsPerFrame, (index, frame) -> {
+            var file = directory.resolve(String.format(Locale.ROOT, "frame-%05d.png", index));
+            if (!ImageIO.write(frame, "png", file.toFile())) {
+                throw new IOException("No PNG writer available");
+            }
+            return null;
+        }, ignored -> {});
+    }
+
+    /**
+     * Renders frames as {@link #writePngs} does, to an animated GIF that loops forever.
+     * @param frameDelayMillis how long each frame is shown; GIFs count in hundredths of a second
+     */
+    public void writeGif(Machine machine, int frames, int stepsPerFrame, Path file, int frameDelayMillis) throws IOException, InterruptedException {
+        var writers = ImageIO.getImageWritersByFormatName("gif");
+        if (!writers.hasNext()) {
+            throw new IOException("No GIF writer available");
+        }
+        var writer = writers.next();
+        try (var out = Files.newOutputStream(file); var stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.prepareWriteSequence(null);
+            var first = new boolean[] {true};
+            // Reducing to a palette is the costly part of GIF encoding, so it is done in parallel; only compression is in order.
+            renderFrames(machine, frames, stepsPerFrame, (index, frame) -> toIndexed(frame), frame -> {
+                var metadata = gifMetadata(writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(frame), null),
+                        frameDelayMillis, first[0]);
+                first[0] = false;
+                writer.writeToSequence(new IIOImage(frame, null, metadata), null);
+            });
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private interface FrameEncoder<T> {
+        T encode(int index, BufferedImage frame) throws IOException;
+    }
+
+    private interface EncodedFrameConsumer<T> {
+        void accept(T encoded) throws IOException;
+    }
+
+    /**
+     * Steps the machine on this thread, drawing and encoding each frame on the pool, and hands the encoded frames
+     * to the consumer on this thread in order.
+     */
+    private <T> void renderFrames(Machine machine, int frames, int stepsPerFrame, FrameEncoder<T> encoder,
+                                  EncodedFrameConsumer<T> consumer) throws IOException, InterruptedException {
+        if (frames < 0 || stepsPerFrame <= 0) {
+            throw new IllegalArgumentException("Frames must not be negative and steps per frame must be positive: " + frames + ", " + stepsPerFrame);
+        }
+        var pool = Executors.newFixedThreadPool(threads, r -> {
+            var thread = new Thread(r, "frame-renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            var inFlight = new ArrayDeque<Future<T>>();
+            for (int frame = 0; frame < frames; frame++) {
+                if (frame > 0) {
+                    for (int step = 0; step < stepsPerFrame; step++) {
+                        machine.update();
+                    }
+                }
+                var index = frame;
+                var state = machine.snapshot();
+                Callable<T> task = () -> encoder.encode(index, render(state));
+                inFlight.add(pool.submit(task));
+                if (inFlight.size() >= FRAMES_IN_FLIGHT_PER_THREAD * threads) {
+                    consumer.accept(await(inFlight.poll()));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                consumer.accept(await(inFlight.poll()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IllegalStateException("Rendering a frame failed", e.getCause());
+        }
+    }
+
+    private static BufferedImage toIndexed(BufferedImage frame) {
+        var indexed = new BufferedImage(frame.getWidth(), frame.getHeight(), BufferedImage.TYPE_BYTE_INDEXED);
+        var g = indexed.createGraphics();
+        try {
+            g.drawImage(frame, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return indexed;
+    }
+
+    private static IIOMetadata gifMetadata(IIOMetadata metadata, int frameDelayMillis, boolean first) throws IOException {
+        var format = metadata.getNativeMetadataFormatName();
+        var root = (IIOMetadataNode) metadata.getAsTree(format);
+
+        var control = new IIOMetadataNode("GraphicControlExtension");
+        control.setAttribute("disposalMethod", "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(Math.max(1, Math.round(frameDelayMillis / 10f))));
+        control.setAttribute("transparentColorIndex", "0");
+        root.appendChild(control);
+
+        if (first) {
+            // The Netscape extension makes viewers loop the animation; a loop count of 0 means forever.
+            var extensions = new IIOMetadataNode("ApplicationExtensions");
+            var netscape = new IIOMetadataNode("ApplicationExtension");
+            netscape.setAttribute("applicationID", "NETSCAPE");
+            netscape.setAttribute("authenticationCode", "2.0");
+            netscape.setUserObject(new byte[] {1, 0, 0});
+            extensions.appendChild(netscape);
+            root.appendChild(extensions);
+        }
+        metadata.setFromTree(format, root);
+        return metadata;
+    }
+
+    /**
+     * Usage: {@code FrameRenderer <file.bbm> <output directory or .gif> [--from n] [--to n] [--every n] [--cell px]
+     * [--region minX,minY,maxX,maxY] [--threads n] [--delay ms]}
+     * <p>
+     * Renders the steps from {@code --from} to {@code --to}, every {@code --every} steps. The region defaults to the
+     * area the machine occupies when the first frame is drawn.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 2) {
+            System.err.println("Usage: FrameRenderer <file.bbm> <output directory or .gif> [--from n] [--to n] [--every n] "
+                    + "[--cell px] [--region minX,minY,maxX,maxY] [--threads n] [--delay ms]");
+            System.exit(2);
+        }
+        long from = 0;
+        long to = 100;
+        var every = 1;
+        var cellSize = 10;
+        Partition.Region region = null;
+        var threads = Runtime.getRuntime().availableProcessors();
+        var delay = 100;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--from" -> from = Long.parseLong(args[++i]);
+                case "--to" -> to = Long.parseLong(args[++i]);
+                case "--every" -> every = Integer.parseInt(args[++i]);
+                case "--cell" -> cellSize = Integer.parseInt(args[++i]);
+                case "--region" -> {
+                    var bounds = args[++i].split(",");
+                    region = new Partition.Region(Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]),
+                            Integer.parseInt(bounds[2]), Integer.parseInt(bounds[3]));
+                }
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--delay" -> delay = Integer.parseInt(args[++i]);
+                default -> throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+        }
+        if (from < 0 || to < from || every <= 0) {
+            throw new IllegalArgumentException("Expected 0 <= from <= to and every > 0: " + from + ", " + to + ", " + every);
+        }
+        var machine = Machine.emptyMachine();
+        machine.loadFromConfiguration(Files.readAllLines(Path.of(args[0])).stream().filter(line -> !line.isBlank()).toList());
+        for (long step = 0; step < from; step++) {
+            machine.update();
+        }
+        if (region == null) {
+            region = machine.bounds();
+            if (region == null) {
+                throw new IllegalArgumentException("The machine is empty; give a --region");
+            }
+        }
+        var frames = Math.toIntExact((to - from) / every + 1);
+        var renderer = new FrameRenderer(defaultBallImage(), region, cellSize, threads);
+        var output = Path.of(args[1]);
+        var start = System.nanoTime();
+        if (output.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".gif")) {
+            renderer.writeGif(machine, frames, every, output, delay);
+        } else {
+            renderer.writePngs(machine, frames, every, output);
+        }
+        System.out.printf(Locale.ROOT, "%d frames of %dx%d in %.1f s%n",
+                frames, renderer.getWidth(), renderer.getHeight(), (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -2,9 +2,15 @@ package io.github.billiardballmachine.billiardballmachine.ui;
 
 import io.github.billiardballmachine.billiardballmachine.Ball;
 import io.github.billiardballmachine.billiardballmachine.DiagonalWall;
+import io.github.billiardballmachine.billiardballmachine.EditHistory;
 import io.github.billiardballmachine.billiardballmachine.EditMachineCommand;
 import io.github.billiardballmachine.billiardballmachine.Machine;
+import io.github.billiardballmachine.billiardballmachine.MachineRegion;
+import io.github.billiardballmachine.billiardballmachine.OccupancyPyramid;
+import io.github.billiardballmachine.billiardballmachine.Partition;
+import io.github.billiardballmachine.billiardballmachine.TiledMachine;
 
+import javax.management.JMException;
 import javax.swing.*;
 import javax.swing.event.MouseInputListener;
 import java.awt.AlphaComposite;
@@ -15,21 +21,35 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.MouseInfo;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 public class MachineGridPanel extends JPanel implements MouseInputListener {
 
-    private final Machine machine;
-    private final BufferedImage ballImage;
+    private Machine machine;
+
+    // When showing a tiled machine, the machine of `viewport` is painted instead of `machine`. It holds only the tiles
+    // around the view and is reloaded as the view moves, while `machine` is left as it was for when the tiled machine closes.
+    private TiledMachine tiledMachine;
+    private TiledMachine.Viewport viewport;
+    private final MachinePainter painter;
+
+    // While a MachineLoader runs, `machine` is a preview of what has loaded so far and this is the machine to go back
+    // to if the load is cancelled. Only the loader that began the latest load may end it.
+    private Machine machineBeforeLoading;
+    private MachineLoader currentLoader;
 
     private GridData cachedGridData;
+    private GridKey cachedGridKey;
 
     private BufferedImage hoverIcon;
     private GridSnap hoverIconSnap;
+    private Rectangle lastHoverBounds;
 
     public enum GridSnap {
         ONLY_HALF,
@@ -38,6 +58,18 @@ public class MachineGridPanel extends JPanel implements MouseInputListener {
     }
 
     private EditMachineCommand editMachineCommand;
+    private final EditHistory editHistory = new EditHistory(1000);
+    private MachineElement lastEditedElement;
+    private Point lastMousePoint;
+
+    // Rectangle selection. While dragging, `dragStartCell` and `dragCurrentCell` track the gesture,
+    // which either draws a new selection or, if it started inside the current one, moves it.
+    private boolean selecting;
+    private CellRectangle selection;
+    private Machine.Position dragStartCell;
+    private Machine.Position dragCurrentCell;
+    private boolean movingSelection;
+    private MachineRegion clipboard;
 
     // The coordinates of the machine that should be displayed at the center of the window.
     // They don't have to be valid integer positions. This is to facilitate smooth panning.
@@ -62,7 +94,9 @@ public class MachineGridPanel extends JPanel implements MouseInputListener {
         this.centerX = centerX;
         this.centerY = centerY;
         this.gridUnitLength = gridUnitLength;
-        this.ballImage = ballImage;
+        this.painter = new MachinePainter(ballImage);
+        machine.setChangeTracking(true);
+        machine.trackOccupancy();
         addMouseListener(this);
         addMouseMotionListener(this);
         addKeyBinding(KeyStroke.getKeyStroke("DOWN"),  "panSouth", this::panSouth);
@@ -84,25 +118,40 @@ public class MachineGridPanel extends JPanel implements MouseInputListener {
     public void panWest() {
         centerX -= 1;
         repaint();
-        revalidate();
     }
 
     public void panEast() {
         centerX += 1;
         repaint();
-        revalidate();
     }
 
     public void panNorth() {
         centerY -= 1;
         repaint();
-        revalidate();
     }
 
     public void panSouth() {
         centerY += 1;
         repaint();
-        revalidate();
+    }
+
+    /**
+     * Moves the view so that the given machine coordinates are at the centre of the panel.
+     */
+    public void centerOn(double x, double y) {
+        centerX = x;
+        centerY = y;
+        repaint();
+    }
+
+    /**
+     * @return the counts of objects per block of the machine shown, or null while there are none to show
+     */
+    public OccupancyPyramid getOccupancy() {
+        if (isLoading() || tiledMachine != null && viewport == null) {
+            return null;
+        }
+        return shownMachine().getOccupancy();
     }
 
     public void setAnimationPeriod(int periodInMs) {
@@ -110,9 +159,91 @@ public class MachineGridPanel extends JPanel implements MouseInputListener {
     }
 
     public void loadMachineFromConfiguration(List<String> configuration) {
+        closeTiledMachine();
         machine.loadFromConfiguration(configuration);
+        machine.drainChangedPositions();
+        editHistory.clear();
+        repaint();
+    }
+
+    /**
+     * The cells at least partly visible in the panel.
+     */
+    public Partition.Region visibleCells() {
+        var gridData = gridData();
+        return new Partition.Region(
+                gridData.xData().cellAt(0), gridData.yData().cellAt(0),
+                gridData.xData().cellAt(getWidth()), gridData.yData().cellAt(getHeight()));
+    }
+
+    public boolean isLoading() {
+        return machineBeforeLoading != null;
+    }
+
+    /**
+     * Shows an empty preview, to be replaced by {@link #showPreview}, until {@link #finishLoading} or {@link #cancelLoading}.
+     * Editing and stepping are disabled meanwhile. A load begun while another is running takes over from it, and
+     * cancelling it goes back to the machine from before the first.
+     */
+    void beginLoading(MachineLoader loader) {
+        if (!isLoading()) {
+            stopMachine();
+            closeTiledMachine();
+            setEditMachineCommand(null);
+            machineBeforeLoading = machine;
+        }
+        currentLoader = loader;
+        machine = Machine.emptyMachine();
+        repaint();
+    }
+
+    void showPreview(MachineLoader loader, Machine preview) {
+        if (loader == currentLoader) {
+            machine = preview;
+            repaint();
+        }
+    }
+
+    /**
+     * Shows the loaded machine in place of the one from before the load, moving that one's MBean over to it.
+     */
+    void finishLoading(MachineLoader loader, Machine loaded) {
+        if (loader != currentLoader) {
+            return;
+        }
+        currentLoader = null;
+        try {
+            machineBeforeLoading.getMetrics().moveMBeanTo(loaded.getMetrics());
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        machineBeforeLoading = null;
+        machine = loaded;
+        machine.setChangeTracking(true);
+        machine.trackOccupancy();
+        editHistory.clear();
         repaint();
-        revalidate();
+    }
+
+    void cancelLoading(MachineLoader loader) {
+        if (loader == currentLoader) {
+            currentLoader = null;
+            machine = machineBeforeLoading;
+            machineBeforeLoading = null;
+            repaint();
+        }
+    }
+
+    public void undo() {
+        if (!isLoading() && editHistory.undo(machine)) {
+            repaintChangedCells();
+        }
+    }
+
+    public void redo() {
+        if (!isLoading() && editHistory.redo(machine)) {
+            repaintChangedCells();
+        }
     }
 
     public List<String> getMachineConfiguration() {
@@ -120,15 +251,107 @@ public class MachineGridPanel extends JPanel implements MouseInputListener {
     }
 
     public void updateMachine() {
-        machine.update();
-        repaint();
-        revalidate();
+        if (isLoading()) {
+            return;
+        }
+        if (tiledMachine != null) {
+            tiledMachine.update();
+            viewport = null;
+            repaint();
+            return;
+        }
+        editHistory.update(machine);
+        repaintChangedCells();
     }
 
     public void reverseMachine() {
-        machine.updateReverse();
+        if (isLoading()) {
+            return;
+        }
+        if (tiledMachine != null) {
+            tiledMachine.updateReverse();
+            viewport = null;
+            repaint();
+            return;
+        }
+        editHistory.updateReverse(machine);
+        repaintChangedCells();
+    }
+
+    /**
+     * Shows a tiled machine, loading only the tiles around the visible area. Editing is disabled while it is shown.
+     * The panel closes the tiled machine when another machine is loaded.
+     */
+    public void showTiledMachine(TiledMachine tiled) {
+        stopMachine();
+        closeTiledMachine();
+        tiledMachine = tiled;
+        setEditMachineCommand(null);
+        editHistory.clear();
         repaint();
-        revalidate();
+    }
+
+    private void closeTiledMachine() {
+        if (tiledMachine == null) {
+            return;
+        }
+        try {
+            tiledMachine.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        tiledMachine = null;
+        viewport = null;
+    }
+
+    // The machine being painted. While a tiled machine is shown, its viewport must have been loaded first.
+    private Machine shownMachine() {
+        return tiledMachine != null ? viewport.machine() : machine;
+    }
+
+    // Loads the tiles around the visible cells, with half a screen to spare on every side so that panning rarely reloads.
+    private void ensureViewportLoaded(GridData gridData) {
+        var xData = gridData.xData();
+        var yData = gridData.yData();
+        var from = new Machine.Position(xData.cellAt(0) - 1, yData.cellAt(0) - 1);
+        var to   = new Machine.Position(xData.cellAt(getWidth()) + 1, yData.cellAt(getHeight()) + 1);
+        if (viewport != null && viewport.covers(from, to)) {
+            return;
+        }
+        var spareX = (to.x() - from.x()) / 2;
+        var spareY = (to.y() - from.y()) / 2;
+        viewport = tiledMachine.viewport(
+                new Machine.Position(from.x() - spareX, from.y() - spareY),
+                new Machine.Position(to.x() + spareX, to.y() + spareY));
+        viewport.machine().trackOccupancy();
+    }
+
+    /**
+     * Repaints only the screen area covering the positions the machine reports as changed.
+     */
+    private void repaintChangedCells() {
+        var changed = machine.drainChangedPositions();
+        if (changed.isEmpty()) {
+            return;
+        }
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (Machine.Position p : changed) {
+            minX = Math.min(minX, p.x());
+            minY = Math.min(minY, p.y());
+            maxX = Math.max(maxX, p.x());
+            maxY = Math.max(maxY, p.y());
+        }
+        var gridData = gridData();
+        // Balls reach about 0.7 grid units around their position, and walls reach one unit south-east of their anchor,
+        // so pad by a grid unit on the north-west and a grid unit plus the wall stroke on the south-east.
+        var left   = (int) Math.floor(gridData.xData().pixelOf(minX - 1));
+        var top    = (int) Math.floor(gridData.yData().pixelOf(minY - 1));
+        var right  = (int) Math.ceil(gridData.xData().pixelOf(maxX + 1)) + MachinePainter.WALL_STROKE_WIDTH;
+        var bottom = (int) Math.ceil(gridData.yData().pixelOf(maxY + 1)) + MachinePainter.WALL_STROKE_WIDTH;
+        repaint(left, top, right - left, bottom - top);
     }
 
     ActionListener updateAction = e -> { updateMachine(); };
@@ -164,42 +387,69 @@ public class MachineGridPanel extends JPanel implements MouseInputListener {
         var height = getHeight();
         var width = getWidth();
 
-        var gridData = calculateGridData();
-        cachedGridData = gridData;
-        var xCoords = gridData.xData().gridCoords();
-        var yCoords = gridData.yData().gridCoords();
+        var gridData = gridData();
+        var xData = gridData.xData();
+        var yData = gridData.yData();
+        if (tiledMachine != null) {
+            ensureViewportLoaded(gridData);
+        }
+        var shown = shownMachine();
+        var clip = g2.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, width, height);
+        }
 
         // Draw gridlines
         g2.setStroke(new BasicStroke(1));
         g2.setColor(Color.LIGHT_GRAY);
-        for (double x : xCoords) {
+        for (double x : xData.gridCoords()) {
             var lineX = (int) x;
-            g2.drawLine(lineX, 0, lineX, height);
+            if (lineX >= clip.x && lineX <= clip.x + clip.width) {
+                g2.drawLine(lineX, clip.y, lineX, clip.y + clip.height);
+            }
         }
 
-        for (double y : yCoords) {
+        for (double y : yData.gridCoords()) {
             var lineY = (int) y;
-            g2.setColor(Color.LIGHT_GRAY);
-            g2.drawLine(0, lineY, width, lineY);
+            if (lineY >= clip.y && lineY <= clip.y + clip.height) {
+                g2.drawLine(clip.x, lineY, clip.x + clip.width, lineY);
+            }
         }
 
-        // Draw balls and walls
-        int machineGridX = gridData.xData().machineGridStart();
-        for (double x : xCoords) {
-            int machineGridY = gridData.yData().machineGridStart();
-            for (double y : yCoords) {
+        // Draw balls and walls in the clip, widened by a cell since both can reach into neighbouring cells.
+        var firstX = xData.cellAt(clip.x) - 1;
+        var lastX  = xData.cellAt(clip.x + clip.width) + 1;
+        var firstY = yData.cellAt(clip.y) - 1;
+        var lastY  = yData.cellAt(clip.y + clip.height) + 1;
+        for (int machineGridX = firstX; machineGridX <= lastX; machineGridX++) {
+            var x = xData.pixelOf(machineGridX);
+            for (int machineGridY = firstY; machineGridY <= lastY; machineGridY++) {
+                var y = yData.pixelOf(machineGridY);
                 var position = new Machine.Position(machineGridX, machineGridY);
-                if (machine.wallIsAt(position)) {
-                    var wall = machine.getWallAt(position);
+                if (shown.wallIsAt(position)) {
+                    var wall = shown.getWallAt(position);
                     paintWall(g2, wall, x, y);
                 }
-                if (machine.ballIsAt(position)) {
-                    var ball = machine.getBallAt(position);
+                if (shown.ballIsAt(position)) {
+                    var ball = shown.getBallAt(position);
                     paintBall(g2, ball, x, y);
                 }
-                machineGridY++;
             }
-            machineGridX++;
+        }
+
+        // Draw selection
+        var shownSelection = shownSelection();
+        if (shownSelection != null) {
+            var left   = (int) gridData.xData().pixelOf(shownSelection.min().x());
+            var top    = (int) gridData.yData().pixelOf(shownSelection.min().y());
+            var right  = (int) gridData.xData().pixelOf(shownSelection.max().x() + 1);
+            var bottom = (int) gridData.yData().pixelOf(shownSelection.max().y() + 1);
+            g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.2f));
+            g2.setColor(Color.BLUE);
+            g2.fillRect(left, top, right - left, bottom - top);
+            g2.setPaintMode();
+            g2.setStroke(new BasicStroke(1));
+            g2.drawRect(left, top, right - left, bottom - top);
         }
 
         // Draw editor hover icon
@@ -214,45 +464,55 @@ public class MachineGridPanel extends JPanel implements MouseInputListener {
         }
     }
 
+    private CellRectangle shownSelection() {
+        if (dragStartCell == null) {
+            return selection;
+        }
+        if (movingSelection) {
+            return selection.translated(dragCurrentCell.x() - dragStartCell.x(), dragCurrentCell.y() - dragStartCell.y());
+        }
+        return CellRectangle.spanning(dragStartCell, dragCurrentCell);
+    }
+
     private Point snapPoint(GridData gridData) {
         Point p = MouseInfo.getPointerInfo().getLocation();
         SwingUtilities.convertPointFromScreen(p, this);
-        var x = p.getX();
-        var y = p.getY();
-        SnapPointInfo xSnapInfo = snapPointInfo(x, gridData.xData().gridCoords());
-        SnapPointInfo ySnapInfo = snapPointInfo(y, gridData.yData().gridCoords());
-        var halfGridPoint = new Point((int) xSnapInfo.halfGridV(), (int) ySnapInfo.halfGridV());
-        var nearestWholeGridPoint = new Point((int) xSnapInfo.nearestGridV(), (int) ySnapInfo.nearestGridV());
-        switch (hoverIconSnap) {
-            case ONLY_HALF -> { return halfGridPoint; }
-            case WHOLE -> { return nearestWholeGridPoint; }
+        return snap(gridData, p.getX(), p.getY(), hoverIconSnap).point();
+    }
+
+    private record Snap(Point point, MachineElement element) {}
+
+    private Snap snap(GridData gridData, double x, double y, GridSnap gridSnap) {
+        var xData = gridData.xData();
+        var yData = gridData.yData();
+        var cellX = xData.cellAt(x);
+        var cellY = yData.cellAt(y);
+        var gridX = xData.pixelOf(cellX);
+        var gridY = yData.pixelOf(cellY);
+        var halfGridLength = gridUnitLength / 2;
+        var nearestX = (x < gridX + halfGridLength) ? cellX : cellX + 1;
+        var nearestY = (y < gridY + halfGridLength) ? cellY : cellY + 1;
+        var halfGridSnap = new Snap(
+                new Point((int) (gridX + halfGridLength), (int) (gridY + halfGridLength)),
+                new MachineElement(new Machine.Position(cellX, cellY), false));
+        var nearestWholeGridSnap = new Snap(
+                new Point((int) xData.pixelOf(nearestX), (int) yData.pixelOf(nearestY)),
+                new MachineElement(new Machine.Position(nearestX, nearestY), true));
+        return switch (gridSnap) {
+            case ONLY_HALF -> halfGridSnap;
+            case WHOLE -> nearestWholeGridSnap;
             case HALF -> {
-                var halfGridLength = gridUnitLength / 2;
-                var xOff = x - xSnapInfo.gridV();
-                var yOff = y - ySnapInfo.gridV();
+                var xOff = x - gridX;
+                var yOff = y - gridY;
                 // Check if in diamond around half-point. If so, snap to half-point, else nearest whole grid point.
-                return ((yOff > -xOff + halfGridLength) &&
+                yield ((yOff > -xOff + halfGridLength) &&
                         (yOff < -xOff + 3 * halfGridLength) &&
                         (yOff > xOff - halfGridLength) &&
                         (yOff < xOff + halfGridLength))
-                        ? halfGridPoint
-                        : nearestWholeGridPoint;
+                        ? halfGridSnap
+                        : nearestWholeGridSnap;
             }
-        }
-        return null;
-    }
-
-    private record SnapPointInfo(double gridV, double halfGridV, double nearestGridV) {}
-
-    private SnapPointInfo snapPointInfo(double v, List<Double> gridCoords) {
-        double gridV = Double.MAX_VALUE;
-        for (int i = gridCoords.size() - 1; i >= 0 && gridV > v; i--) {
-            gridV = gridCoords.get(i);
-        }
-        var halfGridLength = gridUnitLength / 2;
-        var halfGridV = gridV + halfGridLength;
-        var nearestGridV = (v < halfGridV) ? gridV : gridV + gridUnitLength;
-        return new SnapPointInfo(gridV, halfGridV, nearestGridV);
+        };
     }
 
     public void setHoverIcon(BufferedImage icon, GridSnap snap) {
@@ -261,16 +521,80 @@ public class MachineGridPanel extends JPanel implements MouseInputListener {
     }
 
     // Unused
-    @Override public void mouseDragged(MouseEvent e) { }
     @Override public void mouseEntered(MouseEvent e) { }
     @Override public void mouseExited(MouseEvent e) { }
-    @Override public void mousePressed(MouseEvent e) { }
-    @Override public void mouseReleased(MouseEvent e) { }
+
+    @Override
+    public void mousePressed(MouseEvent e) {
+        if (selecting) {
+            var cell = cellAt(e.getPoint());
+            movingSelection = selection != null && selection.contains(cell);
+            if (!movingSelection) {
+                selection = null;
+            }
+            dragStartCell = cell;
+            dragCurrentCell = cell;
+            repaint();
+        } else if (editMachineCommand != null) {
+            editHistory.beginGroup();
+            paintEditAt(e.getPoint());
+        }
+    }
+
+    @Override
+    public void mouseDragged(MouseEvent e) {
+        lastMousePoint = e.getPoint();
+        if (selecting && dragStartCell != null) {
+            var cell = cellAt(e.getPoint());
+            if (!cell.equals(dragCurrentCell)) {
+                dragCurrentCell = cell;
+                repaint();
+            }
+        } else if (editMachineCommand != null) {
+            paintEditAt(e.getPoint());
+        }
+    }
+
+    @Override
+    public void mouseReleased(MouseEvent e) {
+        if (selecting && dragStartCell != null) {
+            if (movingSelection) {
+                var dx = dragCurrentCell.x() - dragStartCell.x();
+                var dy = dragCurrentCell.y() - dragStartCell.y();
+                if (dx != 0 || dy != 0) {
+                    var moved = selection.translated(dx, dy);
+                    editHistory.moveRegion(machine, selection.min(), selection.max(), moved.min());
+                    selection = moved;
+                }
+            } else {
+                selection = CellRectangle.spanning(dragStartCell, dragCurrentCell);
+            }
+            dragStartCell = null;
+            dragCurrentCell = null;
+            movingSelection = false;
+            repaint();
+        }
+        editHistory.endGroup();
+        lastEditedElement = null;
+    }
 
     @Override
     public void mouseMoved(MouseEvent e) {
+        lastMousePoint = e.getPoint();
         if (hoverIcon != null) {
-            repaint();
+            var snapPoint = snap(gridData(), e.getX(), e.getY(), hoverIconSnap).point();
+            var hoverBounds = new Rectangle(
+                    snapPoint.x - hoverIcon.getWidth() / 2 - 1,
+                    snapPoint.y - hoverIcon.getHeight() / 2 - 1,
+                    hoverIcon.getWidth() + 2,
+                    hoverIcon.getHeight() + 2);
+            if (!hoverBounds.equals(lastHoverBounds)) {
+                if (lastHoverBounds != null) {
+                    repaint(lastHoverBounds);
+                }
+                repaint(hoverBounds);
+                lastHoverBounds = hoverBounds;
+            }
         }
     }
 
@@ -278,42 +602,118 @@ public class MachineGridPanel extends JPanel implements MouseInputListener {
     public void mouseClicked(MouseEvent e) {
         if (editMachineCommand == null) {
             requestFocus();
+        }
+    }
+
+    // Applies the edit command to the element under the pointer, once per element entered during a drag.
+    private void paintEditAt(Point p) {
+        var snap = hoverIconSnap == null ? GridSnap.HALF : hoverIconSnap;
+        var elem = snap(gridData(), p.getX(), p.getY(), snap).element();
+        if (elem.equals(lastEditedElement)) {
             return;
         }
-        var elem = machineElementForPoint(snapPoint(cachedGridData)); // TODO: cache some of this?
-        editMachineCommand.execute(machine, elem.position(), elem.isBall()); // TODO
-        repaint();
+        lastEditedElement = elem;
+        editHistory.execute(editMachineCommand, machine, elem.position(), elem.isBall());
+        repaintChangedCells();
     }
 
     private record MachineElement(Machine.Position position, boolean isBall) {}
 
-    private MachineElement machineElementForPoint(Point p) {
-        var gridData = cachedGridData;
-        var xCoords = gridData.xData().gridCoords();
-        var machineXStart = gridData.xData().machineGridStart();
-        var x = p.getX();
-        double gridX = Double.MAX_VALUE;
-        int machineX = Integer.MAX_VALUE;
-        for (int i = xCoords.size() - 1; i >= 0 && gridX > x; i--) {
-            gridX = xCoords.get(i);
-            machineX = machineXStart + i;
+    private Machine.Position cellAt(Point p) {
+        var gridData = gridData();
+        return new Machine.Position(
+                gridData.xData().cellAt(p.getX()),
+                gridData.yData().cellAt(p.getY()));
+    }
+
+    /**
+     * A rectangle of grid cells from {@code min} to {@code max} inclusive.
+     */
+    private record CellRectangle(Machine.Position min, Machine.Position max) {
+        static CellRectangle spanning(Machine.Position a, Machine.Position b) {
+            return new CellRectangle(
+                    new Machine.Position(Math.min(a.x(), b.x()), Math.min(a.y(), b.y())),
+                    new Machine.Position(Math.max(a.x(), b.x()), Math.max(a.y(), b.y())));
+        }
+
+        boolean contains(Machine.Position p) {
+            return p.x() >= min.x() && p.x() <= max.x() && p.y() >= min.y() && p.y() <= max.y();
+        }
+
+        CellRectangle translated(int dx, int dy) {
+            return new CellRectangle(
+                    new Machine.Position(min.x() + dx, min.y() + dy),
+                    new Machine.Position(max.x() + dx, max.y() + dy));
         }
-        var yCoords = gridData.yData().gridCoords();
-        var machineYStart = gridData.yData().machineGridStart();
-        var y = p.getY();
-        double gridY = Double.MAX_VALUE;
-        int machineY = Integer.MAX_VALUE;
-        for (int i = yCoords.size() - 1; i >= 0 && gridY > y; i--) {
-            gridY = yCoords.get(i);
-            machineY = machineYStart + i;
+    }
+
+    public void setSelectionMode(boolean selecting) {
+        this.selecting = selecting && tiledMachine == null && !isLoading();
+        if (this.selecting) {
+            editMachineCommand = null;
+        } else {
+            selection = null;
+        }
+        repaint();
+    }
+
+    public void copySelection() {
+        if (selection != null) {
+            clipboard = machine.copyRegion(selection.min(), selection.max());
+        }
+    }
+
+    public void cutSelection() {
+        copySelection();
+        deleteSelection();
+    }
+
+    public void deleteSelection() {
+        if (selection != null) {
+            editHistory.deleteRegion(machine, selection.min(), selection.max());
+            repaint();
+        }
+    }
+
+    public void rotateSelection() {
+        if (selection == null) {
+            return;
         }
-        boolean isBall = gridX == x && gridY == y;
+        editHistory.rotateRegion(machine, selection.min(), selection.max());
+        var min = selection.min();
+        var height = selection.max().y() - min.y() + 1;
+        var width  = selection.max().x() - min.x() + 1;
+        selection = new CellRectangle(min, new Machine.Position(min.x() + height - 1, min.y() + width - 1));
+        repaint();
+    }
 
-        return new MachineElement(new Machine.Position(machineX, machineY), isBall);
+    /**
+     * Pastes the last copied region with its northwest corner at the cell under the pointer.
+     */
+    public void pasteClipboard() {
+        if (clipboard == null || tiledMachine != null || isLoading()) {
+            return;
+        }
+        var origin = lastMousePoint != null
+                ? cellAt(lastMousePoint)
+                : (selection != null ? selection.min() : new Machine.Position((int) centerX, (int) centerY));
+        editHistory.pasteRegion(machine, clipboard, origin);
+        if (selecting) {
+            selection = new CellRectangle(origin,
+                    new Machine.Position(origin.x() + clipboard.width() - 1, origin.y() + clipboard.height() - 1));
+        }
+        repaint();
     }
 
+    private record DimensionData(int machineGridStart, double start, double gridUnitLength, List<Double> gridCoords) {
+        int cellAt(double v) {
+            return machineGridStart + (int) Math.floor((v - start) / gridUnitLength);
+        }
 
-    private record DimensionData(int machineGridStart, List<Double> gridCoords) {}
+        double pixelOf(int machineCoordinate) {
+            return start + (machineCoordinate - machineGridStart) * gridUnitLength;
+        }
+    }
     private record GridData(DimensionData xData, DimensionData yData) {}
 
     private DimensionData calculateDimensionData(int length, double center) {
@@ -337,7 +737,19 @@ public class MachineGridPanel extends JPanel implements MouseInputListener {
         for (double x = start; x < length; x += gridUnitLength) {
             coords.add(x);
         }
-        return new DimensionData(machineGridStart, coords);
+        return new DimensionData(machineGridStart, start, gridUnitLength, coords);
+    }
+
+    // The grid only needs recalculating when the window is resized, panned or zoomed.
+    private record GridKey(int width, int height, double centerX, double centerY, double gridUnitLength) {}
+
+    private GridData gridData() {
+        var key = new GridKey(getWidth(), getHeight(), centerX, centerY, gridUnitLength);
+        if (cachedGridData == null || !key.equals(cachedGridKey)) {
+            cachedGridData = calculateGridData();
+            cachedGridKey = key;
+        }
+        return cachedGridData;
     }
 
     private GridData calculateGridData() {
@@ -348,45 +760,16 @@ public class MachineGridPanel extends JPanel implements MouseInputListener {
     }
 
     public void setEditMachineCommand(EditMachineCommand command) {
-        this.editMachineCommand = command;
+        this.editMachineCommand = tiledMachine == null && !isLoading() ? command : null;
+        this.selecting = false;
+        this.selection = null;
     }
 
     private void paintBall(Graphics2D g, Ball ball, double x, double y) {
-        var diameter = gridUnitLength * 1.4; // roughly sqrt(2), minus a little to account for stroke width
-        var radius = diameter / 2;
-        var left   = (x - radius);
-        var top    = (y - radius);
-
-        var transform = new AffineTransform();
-        var rotations = switch (ball.directionOfMovement()) {
-            case EAST -> 0;
-            case SOUTH -> 1;
-            case WEST -> 2;
-            case NORTH -> 3;
-        };
-        var imgW = ballImage.getWidth();
-        var imgH = ballImage.getHeight();
-        transform.translate(left, top);
-        transform.scale(diameter / imgW, diameter / imgH);
-        transform.quadrantRotate(rotations, imgW / 2, imgH / 2);
-        g.drawImage(ballImage, transform, null);
+        painter.paintBall(g, ball, x, y, gridUnitLength, getGraphicsConfiguration());
     }
 
     private void paintWall(Graphics2D g, DiagonalWall wall, double x, double y) {
-        double leftY = 0;
-        double rightY = 0;
-        switch (wall) {
-            case NORTHWEST_TO_SOUTHEAST -> {
-                leftY = y;
-                rightY = y + gridUnitLength;
-            }
-            case SOUTHWEST_TO_NORTHEAST -> {
-                leftY = y + gridUnitLength;
-                rightY = y;
-            }
-        }
-        g.setStroke(new BasicStroke(3));
-        g.setColor(Color.BLACK);
-        g.drawLine((int)x, (int)leftY, (int)(x + gridUnitLength), (int)rightY);
+        painter.paintWall(g, wall, x, y, gridUnitLength);
     }
 }
@@ -0,0 +1,146 @@
+package io.github.billiardballmachine.billiardballmachine.ui;
+
+import io.github.billiardballmachine.billiardballmachine.Machine;
+import io.github.billiardballmachine.billiardballmachine.Partition;
+
+import javax.swing.SwingWorker;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads a configuration file into a new machine off the event dispatch thread, showing it on a panel as it loads.
+ * <p>
+ * The objects in the panel's visible area are shown a chunk at a time as they are read, then the rest, so the view
+ * can be panned during the load. The preview is built on the loading thread and handed to the panel as a fork, so the
+ * event dispatch thread only paints it. If the placement rules keep every object, the order they were added in made no
+ * difference, and the preview becomes the machine. Otherwise the machine is built again in file order, so that
+ * conflicts are resolved as {@link Machine#loadFromConfiguration} would. Either way it only replaces the panel's
+ * machine once it is complete.
+ * Progress runs from 0 to 50 through reading and then to 100 through adding the rest, and from 50 again through
+ * building in file order if that is needed.
+ */
+public class MachineLoader extends SwingWorker<Machine, Machine> {
+
+    private static final int CHUNK_SIZE = 20_000;
+
+    private final Path file;
+    private final MachineGridPanel panel;
+    private final Partition.Region visible;
+
+    /**
+     * Call from the event dispatch thread, then {@link #execute()}. The panel shows nothing else until the load ends.
+     */
+    public MachineLoader(Path file, MachineGridPanel panel) {
+        this.file = file;
+        this.panel = panel;
+        this.visible = panel.visibleCells().expandedBy(1);
+        panel.beginLoading(this);
+    }
+
+    @Override
+    protected Machine doInBackground() throws IOException {
+        var size = Math.max(1, Files.size(file));
+        var configuration = new ArrayList<String>();
+        var inView = new ArrayList<String>();
+        var outOfView = new ArrayList<String>();
+        var preview = Machine.emptyMachine();
+        var placed = 0;
+        long bytesRead = 0;
+        try (var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                bytesRead += line.length() + 1;
+                if (line.isBlank()) {
+                    continue;
+                }
+                configuration.add(line);
+                if (isInView(line)) {
+                    inView.add(line);
+                } else {
+                    outOfView.add(line);
+                }
+                if (configuration.size() % CHUNK_SIZE == 0) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    placed += showInView(preview, inView);
+                    setProgress((int) Math.min(50, 50 * bytesRead / size));
+                }
+            }
+        }
+        placed += showInView(preview, inView);
+
+        for (int start = 0; start < outOfView.size(); start += CHUNK_SIZE) {
+            if (isCancelled()) {
+                return null;
+            }
+            var chunk = outOfView.subList(start, Math.min(outOfView.size(), start + CHUNK_SIZE));
+            placed += preview.addFromConfiguration(chunk);
+            publish(preview.fork());
+            setProgress(50 + (int) (50L * (start + chunk.size()) / outOfView.size()));
+        }
+
+        var machine = preview;
+        if (placed < configuration.size()) {
+            // Which of two conflicting objects is kept depends on which comes first.
+            machine = Machine.emptyMachine();
+            for (int start = 0; start < configuration.size(); start += CHUNK_SIZE) {
+                if (isCancelled()) {
+                    return null;
+                }
+                var chunk = configuration.subList(start, Math.min(configuration.size(), start + CHUNK_SIZE));
+                machine.addFromConfiguration(chunk);
+                setProgress(50 + (int) (50L * (start + chunk.size()) / configuration.size()));
+            }
+        }
+        // Fill the minimap's counts here rather than on the event dispatch thread.
+        machine.trackOccupancy();
+        return machine;
+    }
+
+    // Adds the objects in view read since the last call to the preview and shows it, returning how many were placed.
+    private int showInView(Machine preview, List<String> inView) {
+        if (inView.isEmpty()) {
+            return 0;
+        }
+        var placed = preview.addFromConfiguration(inView);
+        inView.clear();
+        publish(preview.fork());
+        return placed;
+    }
+
+    private boolean isInView(String line) {
+        var parts = line.trim().split("\\s+");
+        try {
+            return parts.length == 4 && visible.contains(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+        } catch (NumberFormatException e) {
+            // Left for the machine to reject.
+            return false;
+        }
+    }
+
+    @Override
+    protected void process(List<Machine> previews) {
+        if (!isCancelled()) {
+            panel.showPreview(this, previews.get(previews.size() - 1));
+        }
+    }
+
+    @Override
+    protected void done() {
+        if (isCancelled()) {
+            panel.cancelLoading(this);
+            return;
+        }
+        try {
+            panel.finishLoading(this, get());
+        } catch (Exception e) {
+            e.printStackTrace();
+            panel.cancelLoading(this);
+        }
+    }
+}
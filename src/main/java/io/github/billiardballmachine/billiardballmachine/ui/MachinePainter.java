@@ -0,0 +1,58 @@
+package io.github.billiardballmachine.billiardballmachine.ui;
+
+import io.github.billiardballmachine.billiardballmachine.Ball;
+import io.github.billiardballmachine.billiardballmachine.DiagonalWall;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.image.BufferedImage;
+
+/**
+ * Draws balls and walls, for both the {@link MachineGridPanel} and the offscreen {@link FrameRenderer}.
+ * Safe to use from several threads at once.
+ */
+final class MachinePainter {
+
+    static final int WALL_STROKE_WIDTH = 3;
+
+    private final BallSprites ballSprites;
+
+    MachinePainter(BufferedImage ballImage) {
+        this.ballSprites = new BallSprites(ballImage);
+    }
+
+    /**
+     * @param x the pixel the ball's centre falls on
+     * @param graphicsConfiguration the screen's, or null when drawing offscreen
+     */
+    void paintBall(Graphics2D g, Ball ball, double x, double y, double gridUnitLength, GraphicsConfiguration graphicsConfiguration) {
+        var direction = ball.directionOfMovement();
+        var sprite = ballSprites.spriteFor(direction, gridUnitLength, graphicsConfiguration);
+        var radius = sprite.getWidth() / 2;
+        g.drawImage(sprite, (int) Math.round(x) - radius, (int) Math.round(y) - radius, null);
+    }
+
+    /**
+     * @param x the pixel of the left edge of the wall's cell
+     * @param y the pixel of the top edge of the wall's cell
+     */
+    void paintWall(Graphics2D g, DiagonalWall wall, double x, double y, double gridUnitLength) {
+        double leftY = 0;
+        double rightY = 0;
+        switch (wall) {
+            case NORTHWEST_TO_SOUTHEAST -> {
+                leftY = y;
+                rightY = y + gridUnitLength;
+            }
+            case SOUTHWEST_TO_NORTHEAST -> {
+                leftY = y + gridUnitLength;
+                rightY = y;
+            }
+        }
+        g.setStroke(new BasicStroke(WALL_STROKE_WIDTH));
+        g.setColor(Color.BLACK);
+        g.drawLine((int)x, (int)leftY, (int)(x + gridUnitLength), (int)rightY);
+    }
+}
@@ -0,0 +1,160 @@
+package io.github.billiardballmachine.billiardballmachine.ui;
+
+import io.github.billiardballmachine.billiardballmachine.OccupancyPyramid;
+import io.github.billiardballmachine.billiardballmachine.Partition;
+
+import javax.swing.JPanel;
+import javax.swing.Timer;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * An overview of the whole machine shown in a {@link MachineGridPanel}, with the panel's view outlined.
+ * Clicking or dragging on it centres the panel's view there.
+ * <p>
+ * It is drawn from the machine's {@link OccupancyPyramid}, reading one block per pixel at the level whose blocks are
+ * about a pixel across, so a frame costs the same however large the machine is.
+ */
+public class MinimapPanel extends JPanel {
+
+    // The extent is found from the coarsest level with at most this many occupied blocks, which is cheap to scan.
+    private static final int EXTENT_BLOCKS = 256;
+    private static final int REFRESH_PERIOD_MS = 200;
+    private static final int BACKGROUND = 0x202020;
+
+    private final MachineGridPanel machinePanel;
+    private BufferedImage image;
+
+    // The cell at the top-left pixel, and the number of cells along each pixel, as of the last frame.
+    private double originX;
+    private double originY;
+    private double cellsPerPixel = 1;
+
+    public MinimapPanel(MachineGridPanel machinePanel) {
+        this.machinePanel = machinePanel;
+        var mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                jumpTo(e);
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                jumpTo(e);
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        // The machine changes under the panel's animation as well as its edits, so redraw regularly rather than on events.
+        new Timer(REFRESH_PERIOD_MS, e -> repaint()).start();
+    }
+
+    private void jumpTo(MouseEvent e) {
+        machinePanel.centerOn(originX + e.getX() * cellsPerPixel, originY + e.getY() * cellsPerPixel);
+        repaint();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(200, 200);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        var width = getWidth();
+        var height = getHeight();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        var view = machinePanel.visibleCells();
+        var occupancy = machinePanel.getOccupancy();
+        var extent = occupancy == null ? view : union(view, extentOf(occupancy));
+        var cellsWide = (double) extent.maxX() - extent.minX() + 1;
+        var cellsHigh = (double) extent.maxY() - extent.minY() + 1;
+        cellsPerPixel = Math.max(cellsWide / width, cellsHigh / height);
+        // Centre the extent in the panel.
+        originX = extent.minX() + cellsWide / 2 - width * cellsPerPixel / 2;
+        originY = extent.minY() + cellsHigh / 2 - height * cellsPerPixel / 2;
+
+        var pixels = new int[width * height];
+        if (occupancy == null) {
+            Arrays.fill(pixels, BACKGROUND);
+        } else {
+            drawOccupancy(occupancy, pixels, width, height);
+        }
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        g.drawImage(image, 0, 0, null);
+
+        g.setColor(Color.YELLOW);
+        g.drawRect(
+                (int) ((view.minX() - originX) / cellsPerPixel),
+                (int) ((view.minY() - originY) / cellsPerPixel),
+                Math.max(2, (int) ((view.maxX() - view.minX() + 1) / cellsPerPixel)),
+                Math.max(2, (int) ((view.maxY() - view.minY() + 1) / cellsPerPixel)));
+    }
+
+    private void drawOccupancy(OccupancyPyramid occupancy, int[] pixels, int width, int height) {
+        var level = occupancy.levelFor(cellsPerPixel);
+        var blockSize = OccupancyPyramid.blockSize(level);
+        // A block is full at one object per cell; most are far sparser, so scale up before clamping.
+        var fullCount = blockSize * blockSize / 16.0;
+        for (int py = 0; py < height; py++) {
+            var by = Math.floorDiv((long) Math.floor(originY + py * cellsPerPixel), blockSize);
+            long lastBx = Long.MIN_VALUE;
+            int lastColour = BACKGROUND;
+            for (int px = 0; px < width; px++) {
+                var bx = Math.floorDiv((long) Math.floor(originX + px * cellsPerPixel), blockSize);
+                // Neighbouring pixels often fall in the same block.
+                if (bx != lastBx) {
+                    lastBx = bx;
+                    lastColour = colour(occupancy.ballCount(level, bx, by), occupancy.wallCount(level, bx, by), fullCount);
+                }
+                pixels[py * width + px] = lastColour;
+            }
+        }
+    }
+
+    private static int colour(int balls, int walls, double fullCount) {
+        if (balls == 0 && walls == 0) {
+            return BACKGROUND;
+        }
+        var wallShade = walls == 0 ? 0 : (int) (96 + 159 * Math.min(1, walls / fullCount));
+        var ballShade = balls == 0 ? 0 : (int) (96 + 159 * Math.min(1, balls / fullCount));
+        return Math.max(wallShade, ballShade) << 16 | wallShade << 8 | wallShade;
+    }
+
+    private static Partition.Region extentOf(OccupancyPyramid occupancy) {
+        var level = occupancy.levelCount() - 1;
+        while (level > 0 && occupancy.blockCount(level - 1) <= EXTENT_BLOCKS) {
+            level--;
+        }
+        var blocks = occupancy.occupiedBlocks(level);
+        if (blocks == null) {
+            return null;
+        }
+        var size = OccupancyPyramid.blockSize(level);
+        return new Partition.Region(
+                (int) Math.max(Integer.MIN_VALUE, blocks.minX() * size),
+                (int) Math.max(Integer.MIN_VALUE, blocks.minY() * size),
+                (int) Math.min(Integer.MAX_VALUE, (blocks.maxX() + 1) * size - 1),
+                (int) Math.min(Integer.MAX_VALUE, (blocks.maxY() + 1) * size - 1));
+    }
+
+    private static Partition.Region union(Partition.Region a, Partition.Region b) {
+        if (b == null) {
+            return a;
+        }
+        return new Partition.Region(
+                Math.min(a.minX(), b.minX()), Math.min(a.minY(), b.minY()),
+                Math.max(a.maxX(), b.maxX()), Math.max(a.maxY(), b.maxY()));
+    }
+}
@@ -0,0 +1,65 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BatchRunnerTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testGoldenFilesCatchChangedCircuits() throws IOException, InterruptedException {
+        var golden = directory.resolve("golden");
+        var circuits = Files.createDirectory(directory.resolve("circuits"));
+        Files.copy(Path.of("examples/interaction_gate.bbm"), circuits.resolve("interaction_gate.bbm"));
+        Files.copy(Path.of("examples/mirror_delay.bbm"), circuits.resolve("mirror_delay.bbm"));
+        var files = BatchRunner.findFiles(circuits.toString());
+        assertEquals(2, files.size());
+
+        new BatchRunner(new BatchRunner.Options(50, 2, BatchRunner.StopCondition.NONE, golden, true)).run(files);
+        var checking = new BatchRunner(new BatchRunner.Options(50, 2, BatchRunner.StopCondition.NONE, golden, false));
+        for (BatchRunner.Result result : checking.run(files)) {
+            assertEquals(50, result.steps());
+            assertEquals(true, result.goldenMatch());
+            assertTrue(result.anomalies().isEmpty(), result.anomalies().toString());
+        }
+
+        Files.write(circuits.resolve("mirror_delay.bbm"), List.of("ball E 0 100"), StandardOpenOption.APPEND);
+        var results = checking.run(files);
+        assertEquals(false, results.get(1).goldenMatch());
+        assertFalse(results.get(1).anomalies().isEmpty());
+        assertTrue(BatchRunner.toJson(results).contains("\"goldenMatch\": false"));
+        assertEquals(3, BatchRunner.toCsv(results).size());
+    }
+
+    @Test
+    public void testStopsWhenStateRepeats() throws IOException, InterruptedException {
+        // A ball going round a loop of four mirrors.
+        Files.write(directory.resolve("loop.bbm"), List.of(
+                "ball E 5 0", "wall NWSE 10 -1", "wall SWNE 10 10", "wall NWSE -1 10", "wall SWNE -1 -1"));
+        var runner = new BatchRunner(new BatchRunner.Options(1000, 1, BatchRunner.StopCondition.CYCLE, null, false));
+        var result = runner.run(BatchRunner.findFiles(directory.resolve("*.bbm").toString())).get(0);
+        assertTrue(result.steps() < 1000, "ran " + result.steps() + " steps");
+    }
+
+    @Test
+    public void testStopsWhenBallsEscape() throws IOException, InterruptedException {
+        // The ball leaves the box around itself and the wall after passing x = 5.
+        Files.write(directory.resolve("escape.bbm"), List.of("ball E 0 0", "wall NWSE 5 5"));
+        var runner = new BatchRunner(new BatchRunner.Options(1000, 1, BatchRunner.StopCondition.ESCAPED, null, false));
+        var result = runner.run(BatchRunner.findFiles(directory.toString())).get(0);
+        assertEquals(6, result.steps());
+        assertTrue(result.anomalies().isEmpty(), result.anomalies().toString());
+    }
+}
@@ -0,0 +1,66 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CheckpointerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testResumedRunMatchesUninterruptedRun() throws IOException {
+        var file = tempDir.resolve("soak.checkpoint");
+        var generator = new MachineGenerator(200, 200, 0.4, 1.0);
+
+        var machine = generator.generate(3);
+        try (var checkpointer = new Checkpointer(file, 25)) {
+            // The run is cut short part of the way past its last checkpoint, as a crash would.
+            for (long step = 1; step <= 110; step++) {
+                machine.update();
+                checkpointer.stepped(machine, step);
+            }
+        }
+        assertFalse(Files.exists(file.resolveSibling("soak.checkpoint.tmp")));
+
+        var checkpoint = Checkpointer.resume(file);
+        assertEquals(100, checkpoint.step());
+        var resumed = checkpoint.machine();
+        for (long step = checkpoint.step(); step < 300; step++) {
+            resumed.update();
+        }
+        var uninterrupted = generator.generate(3);
+        for (int step = 0; step < 300; step++) {
+            uninterrupted.update();
+        }
+        assertEquals(uninterrupted.stateHash(), resumed.stateHash());
+    }
+
+    @Test
+    public void testRejectsDamagedCheckpoint() throws IOException {
+        var file = tempDir.resolve("damaged.checkpoint");
+        try (var checkpointer = new Checkpointer(file, 1)) {
+            checkpointer.checkpoint(new MachineGenerator(50, 50, 0.3, 1.0).generate(1), 7);
+        }
+        var lines = Files.readAllLines(file);
+        Files.write(file, lines.subList(0, lines.size() - 1));
+        assertThrows(IOException.class, () -> Checkpointer.resume(file));
+
+        for (String corrupt : List.of("ball E 3", "ball E x 3", "ball Q 3 3", "step 8")) {
+            var corrupted = new ArrayList<>(lines);
+            corrupted.set(corrupted.size() - 1, corrupt);
+            Files.write(file, corrupted);
+            assertThrows(IOException.class, () -> Checkpointer.resume(file));
+        }
+    }
+}
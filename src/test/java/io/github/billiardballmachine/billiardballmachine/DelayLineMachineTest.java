@@ -0,0 +1,66 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DelayLineMachineTest {
+
+    @Test
+    public void testMirrorLoopIsKeptAsQueue() {
+        var configuration = List.of(
+                "ball E 5 0", "ball W 5 10",
+                "wall NWSE 10 -1", "wall SWNE 10 10", "wall NWSE -1 10", "wall SWNE -1 -1");
+        var engine = new DelayLineMachine();
+        engine.loadFromConfiguration(configuration);
+        assertEquals(2, engine.getCompressedBallCount());
+        var harness = new DifferentialHarness(Machine::emptyMachine, DelayLineMachine::new);
+        assertTrue(harness.run(configuration, 100).isEmpty());
+    }
+
+    @Test
+    public void testBallLeavingMirrorDelayJoinsWire() throws IOException {
+        var configuration = Files.readAllLines(Path.of("examples/mirror_delay.bbm"));
+        var engine = new DelayLineMachine();
+        engine.loadFromConfiguration(configuration);
+        assertEquals(0, engine.getCompressedBallCount());
+        for (int i = 0; i < 6; i++) {
+            engine.update();
+        }
+        assertEquals(1, engine.getCompressedBallCount());
+        assertEquals(List.of("ball E 4 0"), engine.getConfigurationAsStrings().stream().filter(s -> s.startsWith("ball")).toList());
+    }
+
+    @Test
+    public void testMatchesReferenceWithWiresAndCrossingTraffic() {
+        var directions = CardinalDirection.values();
+        for (int seed = 0; seed < 30; seed++) {
+            var random = new Random(seed);
+            var configuration = new ArrayList<String>();
+            for (int i = 0; i < 30; i++) {
+                configuration.add("wall " + (random.nextBoolean() ? "NWSE" : "SWNE")
+                        + " " + (random.nextInt(200) - 100) + " " + (random.nextInt(200) - 100));
+            }
+            for (int i = 0; i < 40; i++) {
+                configuration.add("ball " + directions[random.nextInt(4)].toConfigurationString()
+                        + " " + (random.nextInt(200) - 100) + " " + (random.nextInt(200) - 100));
+            }
+            var lane = random.nextInt(100);
+            for (int i = 0; i < 10; i++) {
+                configuration.add("ball E " + (-150 + 3 * i) + " " + lane);
+            }
+            var engine = new DelayLineMachine[1];
+            var harness = new DifferentialHarness(Machine::emptyMachine, () -> engine[0] = new DelayLineMachine());
+            assertTrue(harness.run(configuration, 300).isEmpty(), "seed " + seed);
+            assertTrue(engine[0].getCompressedBallCount() > 0);
+        }
+    }
+}
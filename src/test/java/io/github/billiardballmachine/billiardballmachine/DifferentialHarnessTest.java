@@ -0,0 +1,74 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DifferentialHarnessTest {
+
+    // Behaves like the reference machine except that balls moving north stop one step short.
+    private static class BrokenEngine implements MachineEngine {
+        private final Machine machine = Machine.emptyMachine();
+
+        @Override
+        public void loadFromConfiguration(List<String> configuration) {
+            machine.loadFromConfiguration(configuration);
+        }
+
+        @Override
+        public void update() {
+            var northBound = machine.getConfigurationAsStrings().stream().anyMatch(s -> s.startsWith("ball N"));
+            if (!northBound) {
+                machine.update();
+            }
+        }
+
+        @Override
+        public List<String> getConfigurationAsStrings() {
+            return machine.getConfigurationAsStrings();
+        }
+    }
+
+    @Test
+    public void testGeneratedMachineIsValidAndReproducible() {
+        var generator = new MachineGenerator(40, 30, 0.2, 1.0);
+        var configuration = generator.generate(42).getConfigurationAsStrings();
+        var reloaded = Machine.emptyMachine();
+        reloaded.loadFromConfiguration(configuration);
+        assertEquals(configuration.size(), reloaded.getConfigurationAsStrings().size());
+        assertEquals(generator.generate(42).stateHash(), reloaded.stateHash());
+        assertTrue(configuration.size() > 40 * 30 / 10);
+    }
+
+    @Test
+    public void testStateHashMatchesConfigurationHash() {
+        var machine = new MachineGenerator(20, 20, 0.3, 0.5).generate(7);
+        assertEquals(StateHash.ofConfiguration(machine.getConfigurationAsStrings()), machine.stateHash());
+    }
+
+    @Test
+    public void testReferenceAgreesWithItself() {
+        var harness = new DifferentialHarness(Machine::emptyMachine, Machine::emptyMachine);
+        var configuration = new MachineGenerator(50, 50, 0.1, 1.0).generate(1).getConfigurationAsStrings();
+        assertTrue(harness.run(configuration, 100).isEmpty());
+    }
+
+    @Test
+    public void testShrinkFindsMinimalDivergingConfiguration() {
+        var harness = new DifferentialHarness(Machine::emptyMachine, BrokenEngine::new);
+        var configuration = new MachineGenerator(30, 30, 0.2, 1.0).generate(3).getConfigurationAsStrings();
+        assertTrue(harness.run(configuration, 10).isPresent());
+        var shrunk = harness.shrink(configuration, 10);
+        assertTrue(shrunk.size() <= 2);
+        assertTrue(harness.run(shrunk, 10).isPresent());
+        for (int i = 0; i < shrunk.size(); i++) {
+            var smaller = new ArrayList<>(shrunk);
+            smaller.remove(i);
+            assertTrue(harness.run(smaller, 10).isEmpty());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DistributedSimulationTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static long referenceHashAfter(List<String> configuration, int steps) {
+        var machine = Machine.emptyMachine();
+        machine.loadFromConfiguration(configuration);
+        for (int i = 0; i < steps; i++) {
+            machine.update();
+        }
+        return machine.stateHash();
+    }
+
+    @Test
+    public void testInProcessWorkersMatchReferenceForEveryExchangeInterval() throws Exception {
+        var configuration = new MachineGenerator(60, 60, 0.25, 1.0).generate(4).getConfigurationAsStrings();
+        var partition = Partition.balanced(configuration, 3, 2);
+        for (int stepsPerExchange : new int[] {1, 3, 7}) {
+            var result = new DistributedCoordinator(partition, stepsPerExchange).runInProcess(configuration, 50);
+            assertEquals(referenceHashAfter(configuration, 50), StateHash.ofConfiguration(result));
+        }
+    }
+
+    @Test
+    public void testSocketTransportCarriesHalos() throws Exception {
+        var configuration = new MachineGenerator(40, 40, 0.25, 1.0).generate(9).getConfigurationAsStrings();
+        var partition = new Partition(new int[] {20}, new int[0]);
+        var coordinator = new DistributedCoordinator(partition, 2);
+        var parts = coordinator.split(configuration);
+        var transports = listenOnFreePorts(parts.size());
+        var executor = Executors.newFixedThreadPool(parts.size());
+        try {
+            var results = new ArrayList<Future<List<String>>>();
+            for (int worker = 0; worker < parts.size(); worker++) {
+                var id = worker;
+                results.add(executor.submit(() -> {
+                    try (var transport = transports.get(id)) {
+                        return new RegionWorker(id, partition, 2, 30, parts.get(id), transport).call();
+                    }
+                }));
+            }
+            var gathered = new ArrayList<String>();
+            for (Future<List<String>> result : results) {
+                gathered.addAll(result.get());
+            }
+            assertEquals(referenceHashAfter(configuration, 30), StateHash.ofConfiguration(gathered));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<SocketHaloTransport> listenOnFreePorts(int workers) throws IOException {
+        var transports = new ArrayList<SocketHaloTransport>();
+        var addresses = new ArrayList<InetSocketAddress>();
+        for (int worker = 0; worker < workers; worker++) {
+            var transport = new SocketHaloTransport(worker, new InetSocketAddress("localhost", 0));
+            transports.add(transport);
+            addresses.add(new InetSocketAddress("localhost", transport.localPort()));
+        }
+        for (SocketHaloTransport transport : transports) {
+            transport.setAddresses(addresses);
+        }
+        return transports;
+    }
+
+    @Test
+    public void testReceivingFromClosedSenderFails() throws Exception {
+        var transports = listenOnFreePorts(2);
+        try (var receiver = transports.get(0)) {
+            try (var sender = transports.get(1)) {
+                sender.send(0, new HaloMessage(1, 0, new int[] {7}));
+            }
+            assertEquals(7, receiver.receive(1).balls()[0]);
+            assertThrows(EOFException.class, () -> receiver.receive(1));
+        }
+    }
+
+    @Test
+    public void testWorkerProcessesMatchReference() throws Exception {
+        var configuration = new MachineGenerator(30, 30, 0.25, 1.0).generate(2).getConfigurationAsStrings();
+        var partition = Partition.balanced(configuration, 2, 1);
+        var result = new DistributedCoordinator(partition, 2).runInProcesses(configuration, 20, tempDir);
+        assertEquals(referenceHashAfter(configuration, 20), StateHash.ofConfiguration(result));
+    }
+}
@@ -0,0 +1,93 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EditHistoryTest {
+
+    private static final EditMachineCommand ADD_BALL =
+            (machine, position, __) -> machine.addBall(new Ball(CardinalDirection.EAST), position);
+    private static final EditMachineCommand ROTATE =
+            (machine, position, editingBall) -> {
+                if (editingBall) {
+                    machine.rotateBall(position);
+                } else {
+                    machine.rotateWall(position);
+                }
+            };
+
+    @Test
+    public void testUndoAndRedoSingleEdits() {
+        var machine = Machine.emptyMachine();
+        var history = new EditHistory(10);
+        var position = new Machine.Position(2, 3);
+        history.execute(ADD_BALL, machine, position, true);
+        history.execute(ROTATE, machine, position, true);
+        assertEquals(new Ball(CardinalDirection.SOUTH), machine.getBallAt(position));
+        assertTrue(history.undo(machine));
+        assertEquals(new Ball(CardinalDirection.EAST), machine.getBallAt(position));
+        assertTrue(history.undo(machine));
+        assertNull(machine.getBallAt(position));
+        assertFalse(history.undo(machine));
+        assertTrue(history.redo(machine));
+        assertTrue(history.redo(machine));
+        assertEquals(new Ball(CardinalDirection.SOUTH), machine.getBallAt(position));
+    }
+
+    @Test
+    public void testSteppingClearsHistory() {
+        var machine = Machine.emptyMachine();
+        var history = new EditHistory(10);
+        history.execute(ADD_BALL, machine, new Machine.Position(0, 0), true);
+        history.update(machine);
+        var stepped = machine.getConfigurationAsStrings();
+        assertFalse(history.undo(machine));
+        assertFalse(history.canRedo());
+        assertEquals(stepped, machine.getConfigurationAsStrings());
+        assertEquals(new Ball(CardinalDirection.EAST), machine.getBallAt(new Machine.Position(1, 0)));
+    }
+
+    @Test
+    public void testGroupedEditsUndoTogether() {
+        var machine = Machine.emptyMachine();
+        var history = new EditHistory(10);
+        history.beginGroup();
+        for (int x = 0; x < 5; x++) {
+            history.execute(ADD_BALL, machine, new Machine.Position(x * 2, 0), true);
+        }
+        history.execute(ROTATE, machine, new Machine.Position(0, 0), true);
+        history.endGroup();
+        history.undo(machine);
+        assertTrue(machine.getConfigurationAsStrings().isEmpty());
+        assertFalse(history.canUndo());
+    }
+
+    @Test
+    public void testEditsThatChangeNothingAreNotRecorded() {
+        var machine = Machine.emptyMachine();
+        var history = new EditHistory(10);
+        history.execute(ROTATE, machine, new Machine.Position(0, 0), false);
+        assertFalse(history.canUndo());
+    }
+
+    @Test
+    public void testOldestEntriesAreEvicted() {
+        var machine = Machine.emptyMachine();
+        var history = new EditHistory(2);
+        for (int x = 0; x < 3; x++) {
+            history.execute(ADD_BALL, machine, new Machine.Position(x * 2, 0), true);
+        }
+        history.undo(machine);
+        history.undo(machine);
+        assertAll(
+                () -> assertFalse(history.undo(machine)),
+                () -> assertEquals(new Ball(CardinalDirection.EAST), machine.getBallAt(new Machine.Position(0, 0))),
+                () -> assertNull(machine.getBallAt(new Machine.Position(2, 0)))
+        );
+    }
+}
@@ -0,0 +1,66 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import io.github.billiardballmachine.billiardballmachine.ui.FrameRenderer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class FrameRendererTest {
+
+    @TempDir
+    Path tempDir;
+
+    // A ball going round a loop of four mirrors.
+    private static final List<String> LOOP = List.of(
+            "ball E 5 0", "wall NWSE 10 -1", "wall SWNE 10 10", "wall NWSE -1 10", "wall SWNE -1 -1");
+
+    private static Machine loop() {
+        var machine = Machine.emptyMachine();
+        machine.addFromConfiguration(LOOP);
+        return machine;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    @Test
+    public void testParallelFramesMatchFramesRenderedOneByOne() throws IOException, InterruptedException {
+        var directory = tempDir.resolve("frames");
+        var renderer = new FrameRenderer(FrameRenderer.defaultBallImage(), new Partition.Region(-1, -1, 11, 11), 12, 3);
+        renderer.writePngs(loop(), 10, 3, directory);
+
+        var machine = loop();
+        for (int frame = 0; frame < 10; frame++) {
+            var written = ImageIO.read(directory.resolve(String.format("frame-%05d.png", frame)).toFile());
+            assertEquals(renderer.getWidth(), written.getWidth());
+            assertArrayEquals(pixels(renderer.render(machine)), pixels(written));
+            for (int step = 0; step < 3; step++) {
+                machine.update();
+            }
+        }
+    }
+
+    @Test
+    public void testGifHasOneImagePerFrame() throws IOException, InterruptedException {
+        var file = tempDir.resolve("loop.gif");
+        var renderer = new FrameRenderer(FrameRenderer.defaultBallImage(), new Partition.Region(-1, -1, 11, 11), 8, 2);
+        renderer.writeGif(loop(), 7, 5, file, 50);
+
+        var reader = ImageIO.getImageReadersByFormatName("gif").next();
+        try (var stream = ImageIO.createImageInputStream(file.toFile())) {
+            reader.setInput(stream);
+            assertEquals(7, reader.getNumImages(true));
+        } finally {
+            reader.dispose();
+        }
+    }
+}
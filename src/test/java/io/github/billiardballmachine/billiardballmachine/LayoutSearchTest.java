@@ -0,0 +1,49 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LayoutSearchTest {
+
+    @Test
+    public void testFindsSingleMirrorDeflection() {
+        var frame = new GateBox(new Machine.Position(0, 0), new Machine.Position(3, 3), Map.of(),
+                List.of(new GateBox.Port(new Machine.Position(-1, 1), CardinalDirection.EAST)));
+        var outputs = List.of(new GateBox.Port(new Machine.Position(1, -2), CardinalDirection.NORTH));
+        var search = new LayoutSearch(frame, outputs, new int[] {0, 1}, 2, 30, 5);
+        var layouts = search.run();
+        assertFalse(layouts.isEmpty());
+        assertEquals(1, layouts.get(0).walls().size());
+
+        // The exported layout sends the ball out of the output port.
+        var machine = Machine.emptyMachine();
+        machine.loadFromConfiguration(search.toConfiguration(layouts.get(0)));
+        var passed = false;
+        for (int step = 0; step < 30 && !passed; step++) {
+            var ball = machine.getBallAt(new Machine.Position(1, -2));
+            passed = ball != null && ball.directionOfMovement() == CardinalDirection.NORTH;
+            machine.update();
+        }
+        assertTrue(passed);
+    }
+
+    @Test
+    public void testSkipsReflectionsOfSymmetricSpec() {
+        var frame = new GateBox(new Machine.Position(0, 0), new Machine.Position(4, 4), Map.of(), List.of(
+                new GateBox.Port(new Machine.Position(-1, 1), CardinalDirection.EAST),
+                new GateBox.Port(new Machine.Position(1, -1), CardinalDirection.SOUTH)));
+        var outputs = List.of(
+                new GateBox.Port(new Machine.Position(6, 1), CardinalDirection.EAST),
+                new GateBox.Port(new Machine.Position(1, 6), CardinalDirection.SOUTH));
+        var search = new LayoutSearch(frame, outputs, new int[] {0, 1, 2, 3}, 2, 40, 5);
+        assertEquals(2, search.symmetryCount());
+        search.run();
+        assertTrue(search.progress().skippedBySymmetry() > 0);
+    }
+}
@@ -2,8 +2,16 @@ package io.github.billiardballmachine.billiardballmachine;
 
 import org.junit.jupiter.api.Test;
 
+import javax.management.JMException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class MachineTest {
 
@@ -86,4 +94,148 @@ public class MachineTest {
         assertEquals(new Ball(CardinalDirection.EAST), machine.getBallAt(new Machine.Position(1, 0)));
     }
 
+    @Test
+    public void testUpdateRecordsMetrics() {
+        Machine machine = Machine.emptyMachine();
+        machine.addBall(new Ball(CardinalDirection.EAST ), new Machine.Position(0,  0));
+        machine.addBall(new Ball(CardinalDirection.SOUTH), new Machine.Position(1, -1));
+        machine.addBall(new Ball(CardinalDirection.EAST ), new Machine.Position(10, 0));
+        machine.addWall(DiagonalWall.SOUTHWEST_TO_NORTHEAST, new Machine.Position(10, 0));
+        machine.update();
+        var metrics = machine.getMetrics();
+        assertAll(
+                () -> assertEquals(1, metrics.getSteps()),
+                () -> assertEquals(3, metrics.getBallsStepped()),
+                () -> assertEquals(1, metrics.getWallDeflections()),
+                () -> assertEquals(1, metrics.getPortCollisions()),
+                () -> assertEquals(1, metrics.getStarboardCollisions()),
+                () -> assertEquals(0, metrics.getHeadOnReversals()),
+                () -> assertEquals(3, metrics.getBallCount()),
+                () -> assertEquals(1, metrics.getWallCount())
+        );
+    }
+
+    @Test
+    public void testMetricsMBeanMovesToReplacementMachine() throws JMException {
+        var machine = Machine.emptyMachine();
+        var replacement = Machine.emptyMachine();
+        replacement.addBall(new Ball(CardinalDirection.EAST), new Machine.Position(0, 0));
+        replacement.update();
+        var name = machine.getMetrics().registerMBean("replaced");
+        try {
+            machine.getMetrics().moveMBeanTo(replacement.getMetrics());
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Steps"));
+        } finally {
+            replacement.getMetrics().unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testRotateRegionTurnsBallsAndWallsClockwise() {
+        Machine machine = Machine.emptyMachine();
+        machine.addBall(new Ball(CardinalDirection.EAST), new Machine.Position(0, 0));
+        machine.addWall(DiagonalWall.NORTHWEST_TO_SOUTHEAST, new Machine.Position(2, 0));
+        machine.rotateRegion(new Machine.Position(0, 0), new Machine.Position(2, 0));
+        assertAll(
+                () -> assertEquals(2, machine.getConfigurationAsStrings().size()),
+                () -> assertEquals(new Ball(CardinalDirection.SOUTH), machine.getBallAt(new Machine.Position(1, 0))),
+                () -> assertEquals(DiagonalWall.SOUTHWEST_TO_NORTHEAST, machine.getWallAt(new Machine.Position(0, 2)))
+        );
+    }
+
+    @Test
+    public void testMoveRegionIsUndoneAsOneEdit() {
+        Machine machine = Machine.emptyMachine();
+        for (int x = 0; x < 10; x++) {
+            machine.addWall(DiagonalWall.NORTHWEST_TO_SOUTHEAST, new Machine.Position(x, 0));
+        }
+        var before = machine.stateHash();
+        var history = new EditHistory(10);
+        history.moveRegion(machine, new Machine.Position(0, 0), new Machine.Position(9, 0), new Machine.Position(5, 3));
+        assertAll(
+                () -> assertEquals(10, machine.getConfigurationAsStrings().size()),
+                () -> assertEquals(DiagonalWall.NORTHWEST_TO_SOUTHEAST, machine.getWallAt(new Machine.Position(14, 3)))
+        );
+        history.undo(machine);
+        assertEquals(before, machine.stateHash());
+    }
+
+    @Test
+    public void testChangeTrackingReportsOldAndNewBallPositions() {
+        Machine machine = Machine.emptyMachine();
+        machine.setChangeTracking(true);
+        machine.addBall(new Ball(CardinalDirection.EAST), new Machine.Position(0, 0));
+        machine.addWall(DiagonalWall.NORTHWEST_TO_SOUTHEAST, new Machine.Position(5, 5));
+        assertEquals(Set.of(new Machine.Position(0, 0), new Machine.Position(5, 5)), machine.drainChangedPositions());
+        machine.update();
+        assertEquals(Set.of(new Machine.Position(0, 0), new Machine.Position(1, 0)), machine.drainChangedPositions());
+        assertEquals(Set.of(), machine.drainChangedPositions());
+    }
+
+    @Test
+    public void testSnapshotIsUnaffectedByLaterSteps() {
+        Machine machine = Machine.emptyMachine();
+        machine.addBall(new Ball(CardinalDirection.EAST), new Machine.Position(0, 0));
+        var snapshot = machine.snapshot();
+        assertFalse(snapshot instanceof Machine);
+        var fork = machine.fork();
+        machine.update();
+        fork.addBall(new Ball(CardinalDirection.WEST), new Machine.Position(7, 0));
+        assertTrue(snapshot.ballIsAt(new Machine.Position(0, 0)));
+        assertFalse(snapshot.ballIsAt(new Machine.Position(1, 0)));
+        assertFalse(snapshot.ballIsAt(new Machine.Position(7, 0)));
+        assertTrue(machine.ballIsAt(new Machine.Position(1, 0)));
+        assertFalse(machine.ballIsAt(new Machine.Position(7, 0)));
+    }
+
+    @Test
+    public void testProbeMatchesFullSimulation() {
+        Machine machine = new MachineGenerator(80, 80, 0.3, 1.0).generate(11);
+        var region = new Partition.Region(30, 30, 45, 40);
+        var probed = machine.evaluateProbe(region, 25);
+        var full = machine.fork();
+        for (int i = 0; i < 25; i++) {
+            full.update();
+        }
+        var expected = new HashMap<Machine.Position, Ball>();
+        full.forEachBall((p, ball) -> {
+            if (region.contains(p)) {
+                expected.put(p, ball);
+            }
+        });
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, probed);
+        assertEquals(
+                new HashSet<>(new MachineGenerator(80, 80, 0.3, 1.0).generate(11).getConfigurationAsStrings()),
+                new HashSet<>(machine.getConfigurationAsStrings()));
+    }
+
+    @Test
+    public void testOccupancyFollowsStepsAndEdits() {
+        var machine = new MachineGenerator(300, 300, 0.3, 1.0).generate(5);
+        var occupancy = machine.trackOccupancy();
+        for (int i = 0; i < 40; i++) {
+            machine.update();
+        }
+        machine.removeRegion(new Machine.Position(100, 100), new Machine.Position(150, 150));
+        machine.moveRegion(new Machine.Position(0, 0), new Machine.Position(40, 40), new Machine.Position(-500, 20));
+        for (int i = 0; i < 40; i++) {
+            machine.updateReverse();
+        }
+
+        var expected = machine.fork().trackOccupancy();
+        for (int level = 0; level < occupancy.levelCount(); level++) {
+            assertEquals(expected.blockCount(level), occupancy.blockCount(level), "level " + level);
+            var blockSize = OccupancyPyramid.blockSize(level);
+            var l = level;
+            machine.forEachBall((p, ball) -> assertEquals(
+                    expected.ballCount(l, Math.floorDiv(p.x(), blockSize), Math.floorDiv(p.y(), blockSize)),
+                    occupancy.ballCount(l, Math.floorDiv(p.x(), blockSize), Math.floorDiv(p.y(), blockSize))));
+            machine.forEachWall((p, wall) -> assertEquals(
+                    expected.wallCount(l, Math.floorDiv(p.x(), blockSize), Math.floorDiv(p.y(), blockSize)),
+                    occupancy.wallCount(l, Math.floorDiv(p.x(), blockSize), Math.floorDiv(p.y(), blockSize))));
+        }
+    }
+
 }
@@ -0,0 +1,69 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MacroMachineTest {
+
+    private static final List<GateBox.Port> PORTS = List.of(
+            new GateBox.Port(new Machine.Position(-1, 1), CardinalDirection.EAST),
+            new GateBox.Port(new Machine.Position(1, 6), CardinalDirection.NORTH),
+            new GateBox.Port(new Machine.Position(6, 4), CardinalDirection.WEST),
+            new GateBox.Port(new Machine.Position(4, -1), CardinalDirection.SOUTH));
+
+    private static GateBox box(Map<Machine.Position, DiagonalWall> walls) {
+        return new GateBox(new Machine.Position(0, 0), new Machine.Position(5, 5), walls, PORTS);
+    }
+
+    @Test
+    public void testInteractionGateIsSteppedByTable() {
+        var table = TransferTable.characterise(box(Map.of()), 3, 30);
+        // Two balls meeting inside the box, as in the interaction gate example.
+        var configuration = List.of("ball E -9 1", "ball N 1 11");
+        var macro = new MacroMachine[1];
+        var harness = new DifferentialHarness(Machine::emptyMachine, () -> macro[0] = new MacroMachine(List.of(table)));
+        assertTrue(harness.run(configuration, 40).isEmpty());
+        assertEquals(1, macro[0].getTableHits());
+        assertEquals(0, macro[0].getFallbacks());
+    }
+
+    @Test
+    public void testMatchesReferenceWithTrafficAroundTheBox() {
+        var walls = Map.of(
+                new Machine.Position(1, 3), DiagonalWall.SOUTHWEST_TO_NORTHEAST,
+                new Machine.Position(3, 1), DiagonalWall.NORTHWEST_TO_SOUTHEAST);
+        var table = TransferTable.characterise(box(walls), 1, 30);
+        var directions = CardinalDirection.values();
+        long hits = 0;
+        long fallbacks = 0;
+        for (int seed = 0; seed < 100; seed++) {
+            var random = new Random(seed);
+            var configuration = new ArrayList<String>();
+            walls.forEach((p, wall) -> configuration.add("wall " + wall.toConfigurationString() + " " + p.toConfigurationString()));
+            for (GateBox.Port port : PORTS) {
+                if (random.nextBoolean()) {
+                    var start = port.approach().inDirection(port.direction().opposite(), 2 + 2 * random.nextInt(6));
+                    configuration.add("ball " + port.direction().toConfigurationString() + " " + start.toConfigurationString());
+                }
+            }
+            for (int i = random.nextInt(8); i > 0; i--) {
+                configuration.add("ball " + directions[random.nextInt(4)].toConfigurationString()
+                        + " " + (random.nextInt(40) - 17) + " " + (random.nextInt(40) - 17));
+            }
+            var macro = new MacroMachine[1];
+            var harness = new DifferentialHarness(Machine::emptyMachine, () -> macro[0] = new MacroMachine(List.of(table)));
+            assertTrue(harness.run(configuration, 50).isEmpty(), "seed " + seed);
+            hits += macro[0].getTableHits();
+            fallbacks += macro[0].getFallbacks();
+        }
+        assertTrue(hits > 0);
+        assertTrue(fallbacks > 0);
+    }
+}
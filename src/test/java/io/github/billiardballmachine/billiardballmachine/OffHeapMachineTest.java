@@ -0,0 +1,30 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OffHeapMachineTest {
+
+    @Test
+    public void testAgreesWithReference() {
+        var harness = new DifferentialHarness(Machine::emptyMachine, OffHeapMachine::new);
+        for (long seed = 0; seed < 5; seed++) {
+            var configuration = new MachineGenerator(60, 40, 0.25, 1.0).generate(seed).getConfigurationAsStrings();
+            assertTrue(harness.run(configuration, 200).isEmpty());
+        }
+    }
+
+    @Test
+    public void testReportsFootprintAndCannotBeUsedAfterClose() {
+        var machine = new OffHeapMachine();
+        machine.loadFromConfiguration(new MachineGenerator(100, 100, 0.2, 1.0).generate(5).getConfigurationAsStrings());
+        var footprint = machine.footprint();
+        assertEquals(machine.getConfigurationAsStrings().size(), footprint.objects());
+        assertTrue(footprint.bytesPerObject() > 0 && footprint.bytesPerObject() < 80);
+        machine.close();
+        assertThrows(IllegalStateException.class, machine::update);
+    }
+}
@@ -0,0 +1,142 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StepEventPublisherTest {
+
+    // A ball going round a loop of four mirrors, once every 40 steps.
+    private static final List<String> LOOP = List.of(
+            "ball E 5 0", "wall NWSE 10 -1", "wall SWNE 10 10", "wall NWSE -1 10", "wall SWNE -1 -1");
+
+    private static class Collector implements Flow.Subscriber<StepEventPublisher.Batch> {
+        private final long initialRequest;
+        private final List<StepEventPublisher.Batch> batches = new ArrayList<>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private Flow.Subscription subscription;
+        volatile Throwable error;
+
+        Collector(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(StepEventPublisher.Batch batch) {
+            batches.add(batch);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        List<StepEventPublisher.Batch> batches() throws InterruptedException {
+            assertTrue(completed.await(10, TimeUnit.SECONDS));
+            return batches;
+        }
+
+        List<StepEventPublisher.Event> events(StepEventPublisher.Kind kind) throws InterruptedException {
+            return batches().stream().flatMap(batch -> batch.events().stream()).filter(event -> event.kind() == kind).toList();
+        }
+    }
+
+    private static Machine loop() {
+        var machine = Machine.emptyMachine();
+        machine.addFromConfiguration(LOOP);
+        return machine;
+    }
+
+    @Test
+    public void testRegionSubscriberSeesOnlyItsRegion() throws InterruptedException {
+        var machine = loop();
+        var publisher = machine.publishStepEvents();
+        var everything = new Collector(Long.MAX_VALUE);
+        var corner = new Collector(Long.MAX_VALUE);
+        publisher.subscribe(everything);
+        publisher.subscribe(corner, new Partition.Region(6, -5, 20, 4), 16, StepEventPublisher.OverflowPolicy.BLOCK);
+        // Two laps, each passing the mirror at (10, 0).
+        for (int step = 0; step < 80; step++) {
+            machine.update();
+        }
+        publisher.close();
+
+        assertEquals(80, everything.batches().size());
+        assertEquals(8, everything.events(StepEventPublisher.Kind.WALL_DEFLECTION).size());
+        assertTrue(everything.events(StepEventPublisher.Kind.ENTERED_REGION).isEmpty());
+        assertEquals(2, corner.events(StepEventPublisher.Kind.WALL_DEFLECTION).size());
+        assertEquals(2, corner.events(StepEventPublisher.Kind.ENTERED_REGION).size());
+        assertEquals(2, corner.events(StepEventPublisher.Kind.LEFT_REGION).size());
+    }
+
+    @Test
+    public void testFullBuffersDropOrCoalesce() throws InterruptedException {
+        var machine = loop();
+        var publisher = machine.publishStepEvents();
+        var dropping = new Collector(0);
+        var coalescing = new Collector(0);
+        publisher.subscribe(dropping, null, 4, StepEventPublisher.OverflowPolicy.DROP);
+        publisher.subscribe(coalescing, null, 4, StepEventPublisher.OverflowPolicy.COALESCE);
+        for (int step = 0; step < 40; step++) {
+            machine.update();
+        }
+        assertEquals(36, publisher.getDroppedBatches());
+        dropping.subscription.request(Long.MAX_VALUE);
+        coalescing.subscription.request(Long.MAX_VALUE);
+        publisher.close();
+
+        // The first four steps are kept; the lap's deflections all come later.
+        assertEquals(4, dropping.batches().size());
+        assertTrue(dropping.events(StepEventPublisher.Kind.WALL_DEFLECTION).isEmpty());
+        assertEquals(4, coalescing.batches().size());
+        assertEquals(4, coalescing.events(StepEventPublisher.Kind.WALL_DEFLECTION).size());
+        var last = coalescing.batches().get(3);
+        assertEquals(3, last.firstStep());
+        assertEquals(39, last.lastStep());
+    }
+
+    @Test
+    public void testThrowingSubscriberIsCancelledRatherThanBlockingSteps() throws InterruptedException {
+        var machine = loop();
+        var publisher = machine.publishStepEvents();
+        var failing = new Collector(Long.MAX_VALUE) {
+            @Override
+            public void onNext(StepEventPublisher.Batch batch) {
+                throw new IllegalStateException("Subscriber failed");
+            }
+        };
+        publisher.subscribe(failing, null, 1, StepEventPublisher.OverflowPolicy.BLOCK);
+        for (int step = 0; step < 20; step++) {
+            machine.update();
+        }
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        // The subscriber is cancelled first and then told why.
+        while ((publisher.hasSubscribers() || failing.error == null) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(publisher.hasSubscribers());
+        assertEquals("Subscriber failed", failing.error.getMessage());
+        assertEquals(null, publisher.getLastSubscriberFailure());
+    }
+}
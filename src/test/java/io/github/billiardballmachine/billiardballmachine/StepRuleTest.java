@@ -0,0 +1,40 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class StepRuleTest {
+
+    @Test
+    public void testTableMatchesReferenceRuleInEveryNeighbourhood() {
+        List<DiagonalWall> walls = new ArrayList<>(Arrays.asList(DiagonalWall.values()));
+        walls.add(null);
+        List<CardinalDirection> balls = new ArrayList<>(Arrays.asList(CardinalDirection.values()));
+        balls.add(null);
+        for (CardinalDirection direction : CardinalDirection.values()) {
+            for (DiagonalWall portWall : walls) {
+                for (DiagonalWall starboardWall : walls) {
+                    for (CardinalDirection portBall : balls) {
+                        for (CardinalDirection starboardBall : balls) {
+                            var expectedTally = new MachineMetrics.StepTally();
+                            var tally = new MachineMetrics.StepTally();
+                            var expected = StepRule.referenceNextDirection(direction, portWall, starboardWall, portBall, starboardBall, expectedTally);
+                            var actual = StepRule.nextDirection(direction, portWall, starboardWall, portBall, starboardBall, tally);
+                            var neighbourhood = direction + " " + portWall + " " + starboardWall + " " + portBall + " " + starboardBall;
+                            assertEquals(expected, actual, neighbourhood);
+                            assertEquals(expectedTally.wallDeflections, tally.wallDeflections, neighbourhood);
+                            assertEquals(expectedTally.portCollisions, tally.portCollisions, neighbourhood);
+                            assertEquals(expectedTally.starboardCollisions, tally.starboardCollisions, neighbourhood);
+                            assertEquals(expectedTally.headOnReversals, tally.headOnReversals, neighbourhood);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package io.github.billiardballmachine.billiardballmachine;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TiledMachineTest {
+
+    @TempDir
+    Path tempDir;
+
+    private TiledMachine tiledMachine(String name, int cacheTiles) {
+        try {
+            return TiledMachine.create(tempDir.resolve(name), new Machine.Position(-384, -384), 48, 48, 16, cacheTiles);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    public void testTiledMachineAgreesWithReferenceWithASmallCache() {
+        var files = new int[1];
+        var harness = new DifferentialHarness(Machine::emptyMachine, () -> tiledMachine("machine" + files[0]++ + ".bbmt", 8));
+        for (long seed = 0; seed < 3; seed++) {
+            var configuration = new MachineGenerator(60, 40, 0.25, 1.0).generate(seed).getConfigurationAsStrings();
+            assertTrue(harness.run(configuration, 100).isEmpty());
+        }
+    }
+
+    @Test
+    public void testReopenedMachineContinuesFromLastStep() throws IOException, JMException {
+        var file = tempDir.resolve("reopened.bbmt");
+        var configuration = new MachineGenerator(40, 40, 0.2, 1.0).generate(11).getConfigurationAsStrings();
+        var reference = Machine.emptyMachine();
+        reference.loadFromConfiguration(configuration);
+        try (var tiled = TiledMachine.fromConfiguration(file, configuration, 16, 2, 4)) {
+            for (int i = 0; i < 5; i++) {
+                tiled.update();
+                reference.update();
+            }
+        }
+        ObjectName name;
+        try (var tiled = TiledMachine.open(file, 4)) {
+            name = tiled.getMetrics().registerMBean("reopened");
+            assertEquals(5, tiled.getSteps());
+            tiled.update();
+            reference.update();
+            assertEquals(reference.stateHash(), tiled.stateHash());
+            assertTrue(tiled.getMetrics().getTileCacheMisses() > 0);
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testOpenRejectsInvalidHeaderAndTruncatedFile() throws IOException {
+        var zeroTileSize = tempDir.resolve("zero-tile-size.bbmt");
+        tiledMachine("zero-tile-size.bbmt", 4).close();
+        try (var channel = FileChannel.open(zeroTileSize, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), 8);
+        }
+        assertThrows(IOException.class, () -> TiledMachine.open(zeroTileSize, 4));
+
+        var truncated = tempDir.resolve("truncated.bbmt");
+        tiledMachine("truncated.bbmt", 4).close();
+        try (var channel = FileChannel.open(truncated, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        var sizeBefore = truncated.toFile().length();
+        assertThrows(IOException.class, () -> TiledMachine.open(truncated, 4));
+        assertEquals(sizeBefore, truncated.toFile().length());
+    }
+
+    @Test
+    public void testViewportLoadsOnlyOverlappingTiles() throws IOException {
+        try (var tiled = tiledMachine("viewport.bbmt", 16)) {
+            tiled.addBall(CardinalDirection.EAST, 0, 0);
+            tiled.addBall(CardinalDirection.EAST, 100, 100);
+            var viewport = tiled.viewport(new Machine.Position(-5, -5), new Machine.Position(5, 5));
+            assertEquals(1, viewport.machine().getConfigurationAsStrings().size());
+            assertEquals(new Machine.Position(-16, -16), viewport.min());
+            assertEquals(new Machine.Position(15, 15), viewport.max());
+        }
+    }
+}